@@ -0,0 +1,27 @@
+package com.blockchain.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Entry point of the benchmark jar. {@code load ...} runs the {@link LoadGenerator}; anything
+ * else is passed to the JMH runner, which writes the results as JSON to {@code jmh-result.json}
+ * unless a result format is given on the command line.
+ *
+ * @author shurenwei
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "load".equals(args[0])) {
+            LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        if (!arguments.contains("-rf")) {
+            arguments.addAll(0, Arrays.asList("-rf", "json", "-rff", "jmh-result.json"));
+        }
+        org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,154 @@
+package com.blockchain.benchmark;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key and certificate material shaped like what a Fabric CA issues.
+ *
+ * @author shurenwei
+ */
+public final class Fixtures {
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return a fresh P-256 key pair, the curve Fabric CA uses by default
+     */
+    public static KeyPair keyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC", BouncyCastleProvider.PROVIDER_NAME);
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return generator.generateKeyPair();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param subject subject common name
+     * @param subjectKey key pair of the subject
+     * @param issuer issuer common name, equal to subject for a self-signed certificate
+     * @param issuerKey key pair signing the certificate
+     * @return a certificate valid for one year
+     */
+    public static X509Certificate certificate(String subject, KeyPair subjectKey, String issuer, KeyPair issuerKey) {
+        try {
+            long now = System.currentTimeMillis();
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name("CN=" + issuer),
+                    BigInteger.valueOf(now), new Date(now), new Date(now + TimeUnit.DAYS.toMillis(365)),
+                    new X500Name("CN=" + subject), subjectKey.getPublic());
+            return new JcaX509CertificateConverter().setProvider(BouncyCastleProvider.PROVIDER_NAME)
+                    .getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(issuerKey.getPrivate())));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param subject subject common name
+     * @param subjectKey key pair of the subject
+     * @param issuer issuer common name
+     * @param issuerKey key pair signing the certificate
+     * @param root true for a self-signed root, which carries no authority key identifier
+     * @return a CA certificate with key identifiers, valid for one year
+     */
+    public static X509Certificate caCertificate(String subject, KeyPair subjectKey, String issuer, KeyPair issuerKey, boolean root) {
+        try {
+            long now = System.currentTimeMillis();
+            JcaX509ExtensionUtils extensions = new JcaX509ExtensionUtils();
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(new X500Name("CN=" + issuer),
+                    BigInteger.valueOf(now), new Date(now), new Date(now + TimeUnit.DAYS.toMillis(365)),
+                    new X500Name("CN=" + subject), subjectKey.getPublic())
+                    .addExtension(Extension.basicConstraints, true, new BasicConstraints(true))
+                    .addExtension(Extension.subjectKeyIdentifier, false, extensions.createSubjectKeyIdentifier(subjectKey.getPublic()));
+            if (!root) {
+                builder.addExtension(Extension.authorityKeyIdentifier, false, extensions.createAuthorityKeyIdentifier(issuerKey.getPublic()));
+            }
+            return new JcaX509CertificateConverter().setProvider(BouncyCastleProvider.PROVIDER_NAME)
+                    .getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(issuerKey.getPrivate())));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param root root CA key pair
+     * @param intermediate intermediate CA key pair
+     * @return the CA chain as returned by the Fabric CA info endpoint: Base64 of the PEM root
+     * and intermediate certificates
+     */
+    public static String caChain(KeyPair root, KeyPair intermediate) {
+        try {
+            String pem = pem("CERTIFICATE", caCertificate("ca.org1.example.com", root, "ca.org1.example.com", root, true).getEncoded())
+                    + pem("CERTIFICATE", caCertificate("intermediaca2", intermediate, "ca.org1.example.com", root, false).getEncoded());
+            return Base64.getEncoder().encodeToString(pem.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Create a scratch directory, on tmpfs when /dev/shm exists, and point the artifact and
+     * enrollment store paths at it. Must run before {@code Config} is first loaded in the fork.
+     *
+     * @return the scratch directory
+     */
+    public static File sandbox() {
+        try {
+            Path shm = Paths.get("/dev/shm");
+            Path dir = Files.isDirectory(shm) && Files.isWritable(shm)
+                    ? Files.createTempDirectory(shm, "fabric-ca-bench")
+                    : Files.createTempDirectory("fabric-ca-bench");
+            System.setProperty("artifacts.store.path", dir.resolve("users").toString());
+            System.setProperty("enrollment.store.path", dir.resolve("HyperledgerEnroll.properties").toString());
+            return dir.toFile();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return PEM text of a DER object
+     */
+    public static String pem(String type, byte[] der) {
+        StringWriter writer = new StringWriter();
+        try (PemWriter pemWriter = new PemWriter(writer)) {
+            pemWriter.writeObject(new PemObject(type, der));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+}
@@ -0,0 +1,504 @@
+package com.blockchain.benchmark;
+
+import com.blockchain.HFCAUtils;
+import com.blockchain.benchmark.ca.StandInCAServer;
+import com.blockchain.dto.BaseRequest;
+import com.blockchain.dto.EnrollmentRequest;
+import com.blockchain.dto.ExportRequest;
+import com.blockchain.dto.RegistrationRequest;
+import com.blockchain.metrics.FabricMetrics;
+import com.blockchain.model.Result;
+import com.blockchain.utils.ArtifactArchive;
+import org.apache.commons.io.output.NullOutputStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator driving a mix of enroll, exists and export through {@link HFCAUtils}, against
+ * the CA of the network config or an in-process {@link StandInCAServer}.
+ * <p>
+ * With {@code --rate} operations are started on a fixed schedule (open loop) by up to
+ * {@code --concurrency} threads, and latency is measured from when each one was due, so a CA that
+ * falls behind shows up as latency instead of as a lower request rate. Operations still queued or
+ * running a minute after the end are recorded as errors, with their latency up to then. Without it
+ * each of the {@code --concurrency} threads starts the next operation as soon as the previous one
+ * completes. Throughput counts only the operations completed by the end of the measurement.
+ *
+ * <pre>
+ * java -jar benchmarks.jar load --stand-in --latency 5 --mix enroll=60,exists=30,export=10 \
+ *     --rate 200 --warmup 10s --duration 60s --json load.json
+ * </pre>
+ *
+ * @author shurenwei
+ */
+public class LoadGenerator {
+
+    static final String ENROLL = "enroll";
+    static final String EXISTS = "exists";
+    static final String EXPORT = "export";
+
+    private static final String UNFINISHED = "not completed a minute after the end of the run";
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "usage: load [options]",
+            "  --mix enroll=N,exists=N,export=N  relative weight of each operation (enroll=1)",
+            "  --rate N              operations started per second, open loop (closed loop if absent)",
+            "  --concurrency N       worker threads (16)",
+            "  --warmup D            warmup, not recorded (10s); D is e.g. 500ms, 30s, 2m",
+            "  --duration D          measurement (30s)",
+            "  --org NAME            organization (Org1)",
+            "  --profile NAME        signing profile of enroll",
+            "  --secret S            enrollment secret (secret)",
+            "  --register            register each identity before enrolling it",
+            "  --affiliation A       affiliation of registered identities (org1.department1)",
+            "  --users N             identities enrolled up front for exists and export (100)",
+            "  --export-format F     export to a zip or tar stream instead of the artifacts directory",
+            "  --stand-in            serve the CAs of the network config in process",
+            "  --latency MS          stand-in latency per request (0)",
+            "  --jitter MS           stand-in random extra latency (0)",
+            "  --error-rate X        stand-in fraction of failed requests (0)",
+            "  --tls                 stand-in serves HTTPS",
+            "  --sandbox             keep the store and artifacts in a temporary directory (implied by --stand-in)",
+            "  --csv FILE            write the report as CSV",
+            "  --json FILE           write the report as JSON");
+
+    static final class Options {
+        final Map<String, Integer> mix = new LinkedHashMap<>();
+        double rate;
+        int concurrency = 16;
+        Duration warmup = Duration.ofSeconds(10);
+        Duration duration = Duration.ofSeconds(30);
+        String org = "Org1";
+        String profile;
+        String secret = "secret";
+        boolean register;
+        String affiliation = "org1.department1";
+        int users = 100;
+        ArtifactArchive.Format exportFormat;
+        boolean standIn;
+        long latency;
+        long jitter;
+        double errorRate;
+        boolean tls;
+        boolean sandbox;
+        File csv;
+        File json;
+        final Map<String, String> settings = new LinkedHashMap<>();
+    }
+
+    private final Options options;
+    private final String[] operations;
+    private final int[] cumulativeWeights;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong sequence = new AtomicLong();
+    private final LoadReport report;
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        this.operations = options.mix.keySet().toArray(new String[0]);
+        this.cumulativeWeights = new int[operations.length];
+        int total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            total += options.mix.get(operations[i]);
+            cumulativeWeights[i] = total;
+        }
+        this.report = new LoadReport(options.mix.keySet(), options.warmup.plus(options.duration).plusMinutes(10));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        int status = 0;
+        try {
+            LoadReport report = new LoadGenerator(options).run();
+            report.print(System.out);
+            if (options.csv != null) {
+                report.writeCsv(options.csv);
+            }
+            if (options.json != null) {
+                report.writeJson(options.json, options.settings);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            status = 1;
+        }
+        // the SDK leaves non-daemon threads running
+        System.exit(status);
+    }
+
+    LoadReport run() throws Exception {
+        StandInCAServer server = null;
+        if (options.standIn || options.sandbox) {
+            File dir = Fixtures.sandbox();
+            System.out.println("sandbox " + dir);
+            if (options.standIn) {
+                server = StandInCAServer.builder()
+                        .latency(options.latency, options.jitter)
+                        .errorRate(options.errorRate)
+                        .tls(options.tls)
+                        .acceptAnyIdentity(!options.register)
+                        .build();
+                System.setProperty("network.config.path", server.start(dir.toPath()).toString());
+            }
+        }
+        try {
+            if (options.mix.containsKey(EXISTS) || options.mix.containsKey(EXPORT)) {
+                seed();
+            }
+            long start = System.nanoTime();
+            long measureFrom = start + options.warmup.toNanos();
+            long end = measureFrom + options.duration.toNanos();
+            ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+            timer.schedule(() -> FabricMetrics.addRegistry(report.getPhaseRegistry()), options.warmup.toNanos(), TimeUnit.NANOSECONDS);
+            if (options.rate > 0) {
+                openLoop(start, measureFrom, end);
+            } else {
+                closedLoop(measureFrom, end);
+            }
+            timer.shutdownNow();
+            report.setMeasured(Math.max(1, Math.min(System.nanoTime(), end) - measureFrom));
+            return report;
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Start operation i at start + i / rate, whether or not earlier ones have completed.
+     */
+    private void openLoop(long start, long measureFrom, long end) throws InterruptedException {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(options.concurrency, options.concurrency, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemon("load-worker"));
+        Set<Scheduled> pending = ConcurrentHashMap.newKeySet();
+        double interval = 1e9 / options.rate;
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * interval);
+            if (due >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Scheduled operation = new Scheduled(due, measureFrom, end, pending);
+            pending.add(operation);
+            workers.execute(operation);
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(1, TimeUnit.MINUTES)) {
+            workers.shutdownNow();
+            int unfinished = 0;
+            for (Scheduled operation : pending) {
+                if (operation.abandon()) {
+                    unfinished++;
+                }
+            }
+            System.err.println(unfinished + " operations were still queued or running a minute after the end, recorded as errors");
+        }
+    }
+
+    /**
+     * An operation of the open loop, recorded once: by its worker when it completes, or as
+     * unfinished when the run stops waiting for it.
+     */
+    private final class Scheduled implements Runnable {
+        private final String operation = pick();
+        private final long due;
+        private final long measureFrom;
+        private final long end;
+        private final Set<Scheduled> pending;
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        Scheduled(long due, long measureFrom, long end, Set<Scheduled> pending) {
+            this.due = due;
+            this.measureFrom = measureFrom;
+            this.end = end;
+            this.pending = pending;
+        }
+
+        @Override
+        public void run() {
+            String error = attempt(operation);
+            if (recorded.compareAndSet(false, true)) {
+                pending.remove(this);
+                record(operation, due, measureFrom, end, error);
+            }
+        }
+
+        boolean abandon() {
+            if (!recorded.compareAndSet(false, true)) {
+                return false;
+            }
+            record(operation, due, measureFrom, end, UNFINISHED);
+            return true;
+        }
+    }
+
+    private void closedLoop(long measureFrom, long end) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.concurrency; i++) {
+            Thread thread = daemon("load-worker").newThread(() -> {
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    String operation = pick();
+                    record(operation, now, measureFrom, end, attempt(operation));
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * @return error message, null on success
+     */
+    private String attempt(String operation) {
+        try {
+            Result result = perform(operation);
+            return result.getCode() != null && result.getCode() == 200 ? null : result.getMsg();
+        } catch (RuntimeException e) {
+            return e.toString();
+        }
+    }
+
+    private void record(String operation, long due, long measureFrom, long end, String error) {
+        if (due >= measureFrom) {
+            long now = System.nanoTime();
+            report.record(operation, now - due, error, now <= end);
+        }
+    }
+
+    private String pick() {
+        int r = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (r < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    private Result perform(String operation) {
+        switch (operation) {
+            case ENROLL:
+                return enroll("lg-" + runId + "-" + sequence.incrementAndGet());
+            case EXISTS: {
+                BaseRequest request = new BaseRequest();
+                request.setOrgName(options.org);
+                request.setEnrollmentID(seedId());
+                return HFCAUtils.userIsExist(request);
+            }
+            case EXPORT: {
+                ExportRequest request = new ExportRequest();
+                request.setOrgName(options.org);
+                request.setEnrollmentID(seedId());
+                return options.exportFormat == null
+                        ? HFCAUtils.exportUser(request)
+                        : HFCAUtils.exportUser(request, new NullOutputStream(), options.exportFormat);
+            }
+            default:
+                throw new IllegalStateException(operation);
+        }
+    }
+
+    private Result enroll(String id) {
+        String secret = options.secret;
+        if (options.register) {
+            RegistrationRequest registration = new RegistrationRequest();
+            registration.setOrgName(options.org);
+            registration.setEnrollmentID(id);
+            registration.setEnrollmentSecret(options.secret);
+            registration.setAffiliation(options.affiliation);
+            registration.setProfile(options.profile);
+            Result registered = HFCAUtils.register(registration);
+            if (registered.getCode() != 200) {
+                return registered;
+            }
+            secret = registered.getData();
+        }
+        EnrollmentRequest request = new EnrollmentRequest();
+        request.setOrgName(options.org);
+        request.setEnrollmentID(id);
+        request.setEnrollmentSecret(secret);
+        request.setProfile(options.profile);
+        return HFCAUtils.enroll(request);
+    }
+
+    private String seedId() {
+        return "lg-seed-" + ThreadLocalRandom.current().nextInt(options.users);
+    }
+
+    /**
+     * Enroll the identities used by exists and export, keeping those enrolled by an earlier run.
+     */
+    private void seed() {
+        int failed = 0;
+        for (int i = 0; i < options.users; i++) {
+            BaseRequest request = new BaseRequest();
+            request.setOrgName(options.org);
+            request.setEnrollmentID("lg-seed-" + i);
+            if (HFCAUtils.userIsExist(request).getCode() == 200) {
+                continue;
+            }
+            if (enroll(request.getEnrollmentID()).getCode() != 200) {
+                failed++;
+            }
+        }
+        System.out.printf("seeded %d identities, %d failed%n", options.users, failed);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--register":
+                    options.register = true;
+                    break;
+                case "--stand-in":
+                    options.standIn = true;
+                    break;
+                case "--tls":
+                    options.tls = true;
+                    break;
+                case "--sandbox":
+                    options.sandbox = true;
+                    break;
+                case "-h":
+                case "--help":
+                    throw new IllegalArgumentException("");
+                default: {
+                    if (!arg.startsWith("--") || i + 1 >= args.length) {
+                        throw new IllegalArgumentException("unknown or incomplete option " + arg);
+                    }
+                    String value = args[++i];
+                    options.settings.put(arg.substring(2), value);
+                    set(options, arg.substring(2), value);
+                }
+            }
+        }
+        if (options.mix.isEmpty()) {
+            options.mix.put(ENROLL, 1);
+        }
+        options.settings.putIfAbsent("mix", options.mix.toString());
+        if (options.register) {
+            options.settings.put("register", "true");
+        }
+        if (options.standIn) {
+            options.settings.put("stand-in", "true");
+        }
+        return options;
+    }
+
+    private static void set(Options options, String name, String value) {
+        try {
+            switch (name) {
+                case "mix":
+                    for (String part : value.split(",")) {
+                        String[] kv = part.split("=");
+                        String operation = kv[0].trim();
+                        if (!operation.equals(ENROLL) && !operation.equals(EXISTS) && !operation.equals(EXPORT)) {
+                            throw new IllegalArgumentException("unknown operation " + operation);
+                        }
+                        int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+                        if (weight > 0) {
+                            options.mix.put(operation, weight);
+                        }
+                    }
+                    break;
+                case "rate":
+                    options.rate = Double.parseDouble(value);
+                    break;
+                case "concurrency":
+                    options.concurrency = Integer.parseInt(value);
+                    break;
+                case "warmup":
+                    options.warmup = duration(value);
+                    break;
+                case "duration":
+                    options.duration = duration(value);
+                    break;
+                case "org":
+                    options.org = value;
+                    break;
+                case "profile":
+                    options.profile = value;
+                    break;
+                case "secret":
+                    options.secret = value;
+                    break;
+                case "affiliation":
+                    options.affiliation = value;
+                    break;
+                case "users":
+                    options.users = Integer.parseInt(value);
+                    break;
+                case "export-format":
+                    options.exportFormat = ArtifactArchive.Format.valueOf(value.toUpperCase());
+                    break;
+                case "latency":
+                    options.latency = Long.parseLong(value);
+                    break;
+                case "jitter":
+                    options.jitter = Long.parseLong(value);
+                    break;
+                case "error-rate":
+                    options.errorRate = Double.parseDouble(value);
+                    break;
+                case "csv":
+                    options.csv = new File(value);
+                    break;
+                case "json":
+                    options.json = new File(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option --" + name);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid value for --" + name + ": " + value);
+        }
+    }
+
+    /**
+     * @param value 500ms, 30s, 2m or a number of seconds
+     */
+    static Duration duration(String value) {
+        if (value.endsWith("ms")) {
+            return Duration.ofMillis(Long.parseLong(value.substring(0, value.length() - 2)));
+        }
+        if (value.endsWith("s")) {
+            return Duration.ofSeconds(Long.parseLong(value.substring(0, value.length() - 1)));
+        }
+        if (value.endsWith("m")) {
+            return Duration.ofMinutes(Long.parseLong(value.substring(0, value.length() - 1)));
+        }
+        return Duration.ofSeconds(Long.parseLong(value));
+    }
+}
@@ -0,0 +1,237 @@
+package com.blockchain.benchmark;
+
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.config.MeterFilter;
+import io.micrometer.core.instrument.distribution.DistributionStatisticConfig;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import javax.json.*;
+import javax.json.stream.JsonGenerator;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies recorded by the {@link LoadGenerator}: one HdrHistogram per operation, measured from
+ * the time the operation was due so that a backlog shows up as latency, and the per-phase
+ * timers recorded by {@code FabricMetrics} during the measurement. Throughput counts only the
+ * operations completed within the measurement, the ones completed after it only add latency.
+ *
+ * @author shurenwei
+ */
+public class LoadReport {
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    /**
+     * One line of the report, latencies in milliseconds.
+     */
+    public static final class Row {
+        private final String type;
+        private final String name;
+        private final long count;
+        private final long errors;
+        private final double throughput;
+        private final double mean;
+        private final double[] percentiles;
+        private final double max;
+
+        Row(String type, String name, long count, long errors, double throughput, double mean, double[] percentiles, double max) {
+            this.type = type;
+            this.name = name;
+            this.count = count;
+            this.errors = errors;
+            this.throughput = throughput;
+            this.mean = mean;
+            this.percentiles = percentiles;
+            this.max = max;
+        }
+    }
+
+    private final Map<String, Histogram> latencies = new LinkedHashMap<>();
+    private final Map<String, LongAdder> errors = new LinkedHashMap<>();
+    private final Map<String, LongAdder> completed = new LinkedHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> messages = new ConcurrentHashMap<>();
+    private final SimpleMeterRegistry phases = new SimpleMeterRegistry();
+    private volatile long measuredNanos;
+
+    /**
+     * @param operations names of the operations to record
+     * @param retention how long phase percentiles are kept, at least the whole measurement
+     */
+    public LoadReport(Collection<String> operations, Duration retention) {
+        for (String operation : operations) {
+            latencies.put(operation, new ConcurrentHistogram(MAX_LATENCY_MICROS, 3));
+            errors.put(operation, new LongAdder());
+            completed.put(operation, new LongAdder());
+        }
+        phases.config().meterFilter(new MeterFilter() {
+            @Override
+            public DistributionStatisticConfig configure(Meter.Id id, DistributionStatisticConfig config) {
+                return DistributionStatisticConfig.builder()
+                        .percentiles(PERCENTILES)
+                        .percentilePrecision(2)
+                        .expiry(retention)
+                        .bufferLength(1)
+                        .build()
+                        .merge(config);
+            }
+        });
+    }
+
+    /**
+     * @return registry to add to the global registry when the measurement starts
+     */
+    public SimpleMeterRegistry getPhaseRegistry() {
+        return phases;
+    }
+
+    /**
+     * @param operation operation name
+     * @param latencyNanos time from when the operation was due until it completed
+     * @param error error message, null on success
+     * @param inTime true if the operation completed before the end of the measurement
+     */
+    public void record(String operation, long latencyNanos, String error, boolean inTime) {
+        latencies.get(operation).recordValue(Math.min(MAX_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(latencyNanos)));
+        if (inTime) {
+            completed.get(operation).increment();
+        }
+        if (error != null) {
+            errors.get(operation).increment();
+            messages.computeIfAbsent(operation + ": " + error, m -> new LongAdder()).increment();
+        }
+    }
+
+    /**
+     * @param measuredNanos length of the measurement, for throughput
+     */
+    public void setMeasured(long measuredNanos) {
+        this.measuredNanos = measuredNanos;
+    }
+
+    public List<Row> rows() {
+        double seconds = measuredNanos / 1e9;
+        List<Row> rows = new ArrayList<>();
+        for (Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+            Histogram histogram = entry.getValue();
+            long count = histogram.getTotalCount();
+            double[] percentiles = new double[PERCENTILES.length];
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                percentiles[i] = count == 0 ? 0 : histogram.getValueAtPercentile(PERCENTILES[i] * 100) / 1000.0;
+            }
+            rows.add(new Row("operation", entry.getKey(), count, errors.get(entry.getKey()).sum(), completed.get(entry.getKey()).sum() / seconds,
+                    count == 0 ? 0 : histogram.getMean() / 1000.0, percentiles, histogram.getMaxValue() / 1000.0));
+        }
+        List<Timer> timers = new ArrayList<>();
+        for (Meter meter : phases.getMeters()) {
+            if (meter instanceof Timer && ((Timer) meter).count() > 0) {
+                timers.add((Timer) meter);
+            }
+        }
+        timers.sort(Comparator.comparing(LoadReport::phaseName));
+        for (Timer timer : timers) {
+            HistogramSnapshot snapshot = timer.takeSnapshot();
+            double[] percentiles = new double[PERCENTILES.length];
+            ValueAtPercentile[] values = snapshot.percentileValues();
+            for (int i = 0; i < values.length && i < percentiles.length; i++) {
+                percentiles[i] = values[i].value(TimeUnit.MILLISECONDS);
+            }
+            boolean error = "error".equals(timer.getId().getTag("outcome"));
+            rows.add(new Row("phase", phaseName(timer), snapshot.count(), error ? snapshot.count() : 0, snapshot.count() / seconds,
+                    snapshot.mean(TimeUnit.MILLISECONDS), percentiles, snapshot.max(TimeUnit.MILLISECONDS)));
+        }
+        return rows;
+    }
+
+    /**
+     * @return phase name without the common prefix, followed by its tags other than none
+     */
+    private static String phaseName(Timer timer) {
+        StringJoiner tags = new StringJoiner(",", "[", "]").setEmptyValue("");
+        for (Tag tag : timer.getId().getTags()) {
+            if (!"none".equals(tag.getValue())) {
+                tags.add(tag.getValue());
+            }
+        }
+        return timer.getId().getName().replaceFirst("^fabric\\.", "") + tags;
+    }
+
+    public void print(PrintStream out) {
+        out.printf("%-48s %9s %7s %9s %9s %9s %9s %9s %9s %9s%n", "name (ms)", "count", "errors", "ops/s",
+                "mean", "p50", "p90", "p99", "p99.9", "max");
+        String type = null;
+        for (Row row : rows()) {
+            if (!row.type.equals(type)) {
+                type = row.type;
+                out.println(type.equals("operation") ? "-- operations" : "-- phases");
+            }
+            out.printf("%-48s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", row.name, row.count, row.errors,
+                    row.throughput, row.mean, row.percentiles[0], row.percentiles[1], row.percentiles[2], row.percentiles[3], row.max);
+        }
+        if (!messages.isEmpty()) {
+            out.println("-- errors");
+            messages.entrySet().stream()
+                    .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                    .limit(10)
+                    .forEach(e -> out.printf("%9d  %s%n", e.getValue().sum(), e.getKey()));
+        }
+    }
+
+    public void writeCsv(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            out.println("type,name,count,errors,throughput,mean_ms,p50_ms,p90_ms,p99_ms,p999_ms,max_ms");
+            for (Row row : rows()) {
+                out.printf(Locale.ROOT, "%s,\"%s\",%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f%n", row.type, row.name, row.count, row.errors,
+                        row.throughput, row.mean, row.percentiles[0], row.percentiles[1], row.percentiles[2], row.percentiles[3], row.max);
+            }
+        }
+    }
+
+    /**
+     * @param settings run settings, written as they are
+     */
+    public void writeJson(File file, Map<String, String> settings) throws IOException {
+        JsonObjectBuilder config = Json.createObjectBuilder();
+        settings.forEach(config::add);
+        JsonArrayBuilder operations = Json.createArrayBuilder();
+        JsonArrayBuilder phaseRows = Json.createArrayBuilder();
+        for (Row row : rows()) {
+            JsonObjectBuilder percentiles = Json.createObjectBuilder();
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                percentiles.add("p" + String.valueOf(PERCENTILES[i] * 100).replaceAll("\\.0$", ""), row.percentiles[i]);
+            }
+            JsonObjectBuilder json = Json.createObjectBuilder()
+                    .add("name", row.name)
+                    .add("count", row.count)
+                    .add("errors", row.errors)
+                    .add("throughput", row.throughput)
+                    .add("meanMs", row.mean)
+                    .add("percentilesMs", percentiles)
+                    .add("maxMs", row.max);
+            (row.type.equals("operation") ? operations : phaseRows).add(json);
+        }
+        JsonObjectBuilder errorMessages = Json.createObjectBuilder();
+        messages.forEach((message, count) -> errorMessages.add(message, count.sum()));
+        JsonObject report = Json.createObjectBuilder()
+                .add("config", config)
+                .add("operations", operations)
+                .add("phases", phaseRows)
+                .add("errors", errorMessages)
+                .build();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            Json.createWriterFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true)).createWriter(writer).write(report);
+        }
+    }
+}
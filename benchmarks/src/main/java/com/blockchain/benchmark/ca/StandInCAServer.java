@@ -0,0 +1,503 @@
+package com.blockchain.benchmark.ca;
+
+import com.blockchain.benchmark.Fixtures;
+import com.sun.net.httpserver.*;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.asn1.x509.*;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.yaml.snakeyaml.DumperOptions;
+import org.yaml.snakeyaml.Yaml;
+
+import javax.json.*;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for fabric-ca-server, serving the REST endpoints the SDK uses:
+ * cainfo, enroll, reenroll, register, certificates and revoke.
+ * <p>
+ * {@link #start(Path)} reads a network config, starts one listener on a local port for each
+ * distinct CA url in it and writes a copy of the config pointing at those listeners. Every CA
+ * named in the config is served by the listener of its url, selected by caname like on a
+ * multi-CA fabric-ca-server; requests without caname go to the first CA of that url. Each
+ * request can be delayed and failed at random, per endpoint, to reproduce slow or flaky CAs.
+ *
+ * <pre>
+ * StandInCAServer server = StandInCAServer.builder()
+ *         .latency(5, 2)
+ *         .errorRate("enroll", 0.01)
+ *         .acceptAnyIdentity(true)
+ *         .build();
+ * Path config = server.start(dir);
+ * System.setProperty("network.config.path", config.toString());
+ * </pre>
+ *
+ * @author shurenwei
+ */
+public class StandInCAServer implements Closeable {
+
+    public static final String CAINFO = "cainfo";
+    public static final String ENROLL = "enroll";
+    public static final String REENROLL = "reenroll";
+    public static final String REGISTER = "register";
+    public static final String CERTIFICATES = "certificates";
+    public static final String REVOKE = "revoke";
+
+    private static final String API = "/api/v1/";
+
+    /**
+     * Latency and error rate injected into one endpoint.
+     */
+    private static final class Fault {
+        private final long latencyMillis;
+        private final long jitterMillis;
+        private final double errorRate;
+
+        private Fault(long latencyMillis, long jitterMillis, double errorRate) {
+            this.latencyMillis = latencyMillis;
+            this.jitterMillis = jitterMillis;
+            this.errorRate = errorRate;
+        }
+    }
+
+    public static final class Builder {
+        private String networkConfig = "/network-config.yaml";
+        private boolean tls;
+        private boolean acceptAnyIdentity;
+        private Duration validity = Duration.ofDays(365);
+        private int threads = 64;
+        private Fault fault = new Fault(0, 0, 0);
+        private final Map<String, Fault> faults = new HashMap<>();
+
+        /**
+         * @param resource classpath resource of the network config to serve, network-config.yaml by default
+         */
+        public Builder networkConfig(String resource) {
+            this.networkConfig = resource;
+            return this;
+        }
+
+        /**
+         * @param tls serve HTTPS with a certificate for localhost; the written config trusts it
+         */
+        public Builder tls(boolean tls) {
+            this.tls = tls;
+            return this;
+        }
+
+        /**
+         * @param acceptAnyIdentity enroll identities which were never registered, with any secret
+         */
+        public Builder acceptAnyIdentity(boolean acceptAnyIdentity) {
+            this.acceptAnyIdentity = acceptAnyIdentity;
+            return this;
+        }
+
+        /**
+         * @param validity validity of issued certificates, one year by default
+         */
+        public Builder validity(Duration validity) {
+            this.validity = validity;
+            return this;
+        }
+
+        /**
+         * @param threads request handler threads shared by all listeners
+         */
+        public Builder threads(int threads) {
+            this.threads = threads;
+            return this;
+        }
+
+        /**
+         * Delay every request by latency plus a uniformly random jitter.
+         */
+        public Builder latency(long latencyMillis, long jitterMillis) {
+            this.fault = new Fault(latencyMillis, jitterMillis, fault.errorRate);
+            return this;
+        }
+
+        /**
+         * Delay requests to one endpoint by latency plus a uniformly random jitter.
+         */
+        public Builder latency(String endpoint, long latencyMillis, long jitterMillis) {
+            Fault current = faults.getOrDefault(endpoint, fault);
+            faults.put(endpoint, new Fault(latencyMillis, jitterMillis, current.errorRate));
+            return this;
+        }
+
+        /**
+         * Fail this fraction of all requests with an HTTP 500 error response.
+         */
+        public Builder errorRate(double errorRate) {
+            this.fault = new Fault(fault.latencyMillis, fault.jitterMillis, errorRate);
+            return this;
+        }
+
+        /**
+         * Fail this fraction of requests to one endpoint with an HTTP 500 error response.
+         */
+        public Builder errorRate(String endpoint, double errorRate) {
+            Fault current = faults.getOrDefault(endpoint, fault);
+            faults.put(endpoint, new Fault(current.latencyMillis, current.jitterMillis, errorRate));
+            return this;
+        }
+
+        public StandInCAServer build() {
+            return new StandInCAServer(this);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private final Builder config;
+    private final Map<String, TestCA> authorities = new ConcurrentHashMap<>();
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final ConcurrentHashMap<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, AtomicLong> injected = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+    private String tlsCertPem;
+
+    private StandInCAServer(Builder builder) {
+        this.config = builder;
+    }
+
+    /**
+     * Start the listeners and write the network config pointing at them.
+     *
+     * @param dir directory to write network-config.yaml into
+     * @return the written network config
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Path start(Path dir) throws IOException {
+        Map<String, Object> yaml;
+        try (InputStream in = StandInCAServer.class.getResourceAsStream(config.networkConfig)) {
+            if (in == null) {
+                throw new FileNotFoundException(config.networkConfig);
+            }
+            yaml = (Map<String, Object>) new Yaml().load(in);
+        }
+        executor = Executors.newFixedThreadPool(config.threads, r -> {
+            Thread t = new Thread(r, "stand-in-ca");
+            t.setDaemon(true);
+            return t;
+        });
+        SSLContext sslContext = config.tls ? sslContext() : null;
+
+        Map<String, Map<String, Object>> cas = (Map<String, Map<String, Object>>) yaml.get("certificateAuthorities");
+        Map<String, String> urls = new HashMap<>();
+        Map<String, Map<String, TestCA>> byUrl = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Object>> entry : cas.entrySet()) {
+            Map<String, Object> ca = entry.getValue();
+            String caName = ca.get("caName") == null ? entry.getKey() : ca.get("caName").toString();
+            TestCA authority = authorities.computeIfAbsent(caName, n -> new TestCA(n, config.validity, config.acceptAnyIdentity));
+            Object registrars = ca.get("registrar");
+            if (registrars instanceof List) {
+                for (Map<String, Object> registrar : (List<Map<String, Object>>) registrars) {
+                    Object secret = registrar.get("enrollSecret");
+                    authority.bootstrap(registrar.get("enrollId").toString(), secret == null ? null : secret.toString());
+                }
+            }
+            byUrl.computeIfAbsent(ca.get("url").toString(), u -> new LinkedHashMap<>()).put(caName, authority);
+        }
+        for (Map.Entry<String, Map<String, TestCA>> entry : byUrl.entrySet()) {
+            HttpServer server = sslContext == null
+                    ? HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0)
+                    : HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            if (server instanceof HttpsServer) {
+                ((HttpsServer) server).setHttpsConfigurator(new HttpsConfigurator(sslContext));
+            }
+            Map<String, TestCA> served = entry.getValue();
+            TestCA defaultCA = served.values().iterator().next();
+            server.createContext(API, exchange -> handle(exchange, served, defaultCA));
+            server.setExecutor(executor);
+            server.start();
+            servers.add(server);
+            urls.put(entry.getKey(), (sslContext == null ? "http" : "https") + "://127.0.0.1:" + server.getAddress().getPort());
+        }
+        for (Map<String, Object> ca : cas.values()) {
+            ca.put("url", urls.get(ca.get("url").toString()));
+            ca.remove("tlsCACerts");
+            if (tlsCertPem != null) {
+                ca.put("tlsCACerts", Collections.singletonMap("pem", tlsCertPem));
+            }
+        }
+        Path file = dir.resolve("network-config.yaml");
+        DumperOptions options = new DumperOptions();
+        options.setDefaultFlowStyle(DumperOptions.FlowStyle.BLOCK);
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            new Yaml(options).dump(yaml, writer);
+        }
+        return file;
+    }
+
+    /**
+     * @param caName CA name of the network config
+     * @return the CA serving it, after {@link #start}
+     */
+    public TestCA getCA(String caName) {
+        return authorities.get(caName);
+    }
+
+    /**
+     * @return requests received by endpoint, including failed ones
+     */
+    public long getRequests(String endpoint) {
+        AtomicLong count = requests.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return requests to endpoint failed by the injected error rate
+     */
+    public long getInjectedErrors(String endpoint) {
+        AtomicLong count = injected.get(endpoint);
+        return count == null ? 0 : count.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+        servers.clear();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange, Map<String, TestCA> served, TestCA defaultCA) throws IOException {
+        String endpoint = exchange.getRequestURI().getPath().substring(API.length());
+        requests.computeIfAbsent(endpoint, e -> new AtomicLong()).incrementAndGet();
+        try {
+            injectFault(endpoint);
+            JsonObject body = readBody(exchange);
+            Map<String, String> query = query(exchange.getRequestURI());
+            String caName = body.getString("caname", query.getOrDefault("ca", ""));
+            TestCA ca = caName.isEmpty() ? defaultCA : served.get(caName);
+            if (ca == null) {
+                throw new TestCA.CAException(404, 19, "CA '" + caName + "' does not exist");
+            }
+            respond(exchange, 200, success(dispatch(exchange, endpoint, ca, body, query)));
+        } catch (TestCA.CAException e) {
+            respond(exchange, e.getStatus(), failure(e.getCode(), e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, failure(0, "Server shutting down"));
+        } catch (RuntimeException e) {
+            respond(exchange, 500, failure(0, String.valueOf(e.getMessage())));
+        }
+    }
+
+    private JsonObjectBuilder dispatch(HttpExchange exchange, String endpoint, TestCA ca, JsonObject body,
+                                       Map<String, String> query) throws TestCA.CAException {
+        switch (endpoint) {
+            case CAINFO:
+                return serverInfo(ca);
+            case ENROLL: {
+                String[] credentials = basicAuth(exchange);
+                String cert = ca.enroll(credentials[0], credentials[1], body.getString("certificate_request", ""));
+                return Json.createObjectBuilder().add("Cert", TestCA.base64(cert)).add("ServerInfo", serverInfo(ca));
+            }
+            case REENROLL: {
+                String cert = ca.reenroll(tokenAuth(exchange), body.getString("certificate_request", ""));
+                return Json.createObjectBuilder().add("Cert", TestCA.base64(cert)).add("ServerInfo", serverInfo(ca));
+            }
+            case REGISTER: {
+                tokenAuth(exchange);
+                String secret = ca.register(body.getString("id", null), body.getString("secret", null), body.getString("type", null),
+                        body.getString("affiliation", null), body.getInt("max_enrollments", -1));
+                return Json.createObjectBuilder().add("secret", secret);
+            }
+            case CERTIFICATES: {
+                JsonArrayBuilder certs = Json.createArrayBuilder();
+                for (String pem : ca.certificates(tokenAuth(exchange), query.get("id"))) {
+                    certs.add(Json.createObjectBuilder().add("PEM", pem));
+                }
+                return Json.createObjectBuilder().add("caname", ca.getName()).add("certs", certs);
+            }
+            case REVOKE: {
+                JsonArrayBuilder revoked = Json.createArrayBuilder();
+                for (X509Certificate certificate : ca.revoke(tokenAuth(exchange), body.getString("id", null), body.getString("serial", null))) {
+                    revoked.add(Json.createObjectBuilder()
+                            .add("Serial", certificate.getSerialNumber().toString(16))
+                            .add("AKI", ca.authorityKeyId()));
+                }
+                return Json.createObjectBuilder().add("RevokedCerts", revoked)
+                        .add("CRL", body.getBoolean("gencrl", false) ? TestCA.base64(ca.crl()) : "");
+            }
+            default:
+                throw new TestCA.CAException(404, 0, "Unsupported endpoint " + endpoint);
+        }
+    }
+
+    private void injectFault(String endpoint) throws InterruptedException, TestCA.CAException {
+        Fault fault = config.faults.getOrDefault(endpoint, config.fault);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = fault.latencyMillis + (fault.jitterMillis > 0 ? random.nextLong(fault.jitterMillis + 1) : 0);
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+        if (fault.errorRate > 0 && random.nextDouble() < fault.errorRate) {
+            injected.computeIfAbsent(endpoint, e -> new AtomicLong()).incrementAndGet();
+            throw new TestCA.CAException(500, 0, "Injected failure");
+        }
+    }
+
+    private static JsonObjectBuilder serverInfo(TestCA ca) {
+        return Json.createObjectBuilder()
+                .add("CAName", ca.getName())
+                .add("CAChain", TestCA.base64(ca.getChainPem()))
+                .add("Version", "1.4.4");
+    }
+
+    /**
+     * @return enrollment ID and secret of the basic authorization header
+     */
+    private static String[] basicAuth(HttpExchange exchange) throws TestCA.CAException {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || !header.startsWith("Basic ")) {
+            throw new TestCA.CAException(401, 20, "Authentication failure");
+        }
+        String decoded = new String(Base64.getDecoder().decode(header.substring(6).trim()), StandardCharsets.UTF_8);
+        int colon = decoded.indexOf(':');
+        if (colon < 0) {
+            throw new TestCA.CAException(401, 20, "Authentication failure");
+        }
+        return new String[]{decoded.substring(0, colon), decoded.substring(colon + 1)};
+    }
+
+    /**
+     * The token is the caller's certificate and a signature over the request, both Base64 and
+     * separated by a dot. Only the certificate is decoded, to identify the caller.
+     *
+     * @return enrollment ID of the caller
+     */
+    private static String tokenAuth(HttpExchange exchange) throws TestCA.CAException {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header == null || header.indexOf('.') < 0) {
+            throw new TestCA.CAException(401, 20, "Authentication failure");
+        }
+        try {
+            byte[] pem = Base64.getDecoder().decode(header.substring(0, header.indexOf('.')));
+            X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                    .generateCertificate(new ByteArrayInputStream(pem));
+            X500Name subject = new JcaX509CertificateHolder(certificate).getSubject();
+            return IETFUtils.valueToString(subject.getRDNs(BCStyle.CN)[0].getFirst().getValue());
+        } catch (Exception e) {
+            throw new TestCA.CAException(401, 20, "Authentication failure");
+        }
+    }
+
+    private static JsonObject readBody(HttpExchange exchange) throws IOException {
+        byte[] bytes = readAll(exchange.getRequestBody());
+        if (bytes.length == 0) {
+            return JsonValue.EMPTY_JSON_OBJECT;
+        }
+        try (JsonReader reader = Json.createReader(new ByteArrayInputStream(bytes))) {
+            return reader.readObject();
+        }
+    }
+
+    private static Map<String, String> query(URI uri) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (uri.getRawQuery() != null) {
+            for (String pair : uri.getRawQuery().split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static JsonObject success(JsonObjectBuilder result) {
+        return Json.createObjectBuilder()
+                .add("success", true)
+                .add("result", result)
+                .add("errors", Json.createArrayBuilder())
+                .add("messages", Json.createArrayBuilder())
+                .build();
+    }
+
+    private static JsonObject failure(int code, String message) {
+        return Json.createObjectBuilder()
+                .add("success", false)
+                .addNull("result")
+                .add("errors", Json.createArrayBuilder().add(Json.createObjectBuilder().add("code", code).add("message", message)))
+                .add("messages", Json.createArrayBuilder())
+                .build();
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n; (n = in.read(buffer)) > 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A self-signed certificate for localhost and 127.0.0.1, which the written config trusts.
+     */
+    private SSLContext sslContext() throws IOException {
+        try {
+            KeyPair key = Fixtures.keyPair();
+            long now = System.currentTimeMillis();
+            X500Name name = new X500Name("CN=localhost");
+            X509Certificate certificate = new JcaX509CertificateConverter().setProvider(BouncyCastleProvider.PROVIDER_NAME)
+                    .getCertificate(new JcaX509v3CertificateBuilder(name, BigInteger.valueOf(now), new Date(now - 60_000),
+                            new Date(now + TimeUnit.DAYS.toMillis(365)), name, key.getPublic())
+                            .addExtension(Extension.subjectAlternativeName, false, new GeneralNames(new GeneralName[]{
+                                    new GeneralName(GeneralName.dNSName, "localhost"),
+                                    new GeneralName(GeneralName.iPAddress, "127.0.0.1")}))
+                            .build(new JcaContentSignerBuilder("SHA256withECDSA").build(key.getPrivate())));
+            tlsCertPem = Fixtures.pem("CERTIFICATE", certificate.getEncoded());
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(null, null);
+            keyStore.setKeyEntry("tls", key.getPrivate(), new char[0], new X509Certificate[]{certificate});
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, new char[0]);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), null, null);
+            return context;
+        } catch (Exception e) {
+            throw new IOException("Could not create TLS certificate", e);
+        }
+    }
+}
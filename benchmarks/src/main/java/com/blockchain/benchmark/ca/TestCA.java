@@ -0,0 +1,311 @@
+package com.blockchain.benchmark.ca;
+
+import com.blockchain.benchmark.Fixtures;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.*;
+import org.bouncycastle.cert.X509CRLHolder;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.openssl.PEMParser;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.pkcs.PKCS10CertificationRequest;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequest;
+
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One certificate authority of the stand-in server: a root and an intermediate certificate,
+ * the registered identities and the certificates issued to them.
+ * <p>
+ * Certificates are issued by the intermediate, with the enrollment ID as common name and the
+ * identity type as organizational unit, like fabric-ca-server does.
+ *
+ * @author shurenwei
+ */
+public class TestCA {
+
+    /**
+     * Raised for requests fabric-ca-server would reject, with its error code and HTTP status.
+     */
+    public static final class CAException extends Exception {
+        private final int status;
+        private final int code;
+
+        CAException(int status, int code, String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public int getCode() {
+            return code;
+        }
+    }
+
+    /**
+     * A registered identity.
+     */
+    static final class Identity {
+        private final String id;
+        private final String secret;
+        private final String type;
+        private final String affiliation;
+        private final int maxEnrollments;
+        private final AtomicInteger enrollments = new AtomicInteger();
+        private final List<X509Certificate> certificates = new CopyOnWriteArrayList<>();
+
+        Identity(String id, String secret, String type, String affiliation, int maxEnrollments) {
+            this.id = id;
+            this.secret = secret;
+            this.type = type;
+            this.affiliation = affiliation;
+            this.maxEnrollments = maxEnrollments;
+        }
+    }
+
+    private final String name;
+    private final KeyPair rootKey;
+    private final KeyPair intermediateKey;
+    private final X509Certificate intermediate;
+    private final String chainPem;
+    private final Duration validity;
+    private final boolean acceptAnyIdentity;
+    private final ConcurrentHashMap<String, Identity> identities = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<BigInteger, X509Certificate> issued = new ConcurrentHashMap<>();
+    private final Set<BigInteger> revoked = ConcurrentHashMap.newKeySet();
+    private final AtomicLong serial = new AtomicLong(System.currentTimeMillis() << 16);
+
+    /**
+     * @param name CA name, as in caName of the network config
+     * @param validity validity of issued certificates
+     * @param acceptAnyIdentity true to enroll unknown identities with any secret
+     */
+    public TestCA(String name, Duration validity, boolean acceptAnyIdentity) {
+        this.name = name;
+        this.validity = validity;
+        this.acceptAnyIdentity = acceptAnyIdentity;
+        this.rootKey = Fixtures.keyPair();
+        this.intermediateKey = Fixtures.keyPair();
+        X509Certificate root = Fixtures.caCertificate("root." + name, rootKey, "root." + name, rootKey, true);
+        this.intermediate = Fixtures.caCertificate(name, intermediateKey, "root." + name, rootKey, false);
+        try {
+            this.chainPem = Fixtures.pem("CERTIFICATE", intermediate.getEncoded()) + Fixtures.pem("CERTIFICATE", root.getEncoded());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return intermediate and root certificate in PEM, as returned in CAChain by cainfo
+     */
+    public String getChainPem() {
+        return chainPem;
+    }
+
+    /**
+     * Register a bootstrap identity, such as a registrar of the network config.
+     *
+     * @param id enrollment ID
+     * @param secret enrollment secret, null to accept any secret
+     */
+    public void bootstrap(String id, String secret) {
+        identities.putIfAbsent(id, new Identity(id, secret, "client", "", -1));
+    }
+
+    /**
+     * @return secret of the new identity, generated when none is given
+     */
+    String register(String id, String secret, String type, String affiliation, int maxEnrollments) throws CAException {
+        if (id == null || id.isEmpty()) {
+            throw new CAException(400, 0, "Identity ID is required");
+        }
+        String actual = secret == null || secret.isEmpty() ? UUID.randomUUID().toString().replace("-", "").substring(0, 12) : secret;
+        Identity identity = new Identity(id, actual, type == null || type.isEmpty() ? "client" : type,
+                affiliation == null ? "" : affiliation, maxEnrollments == 0 ? -1 : maxEnrollments);
+        if (identities.putIfAbsent(id, identity) != null) {
+            throw new CAException(500, 74, "Identity '" + id + "' is already registered");
+        }
+        return actual;
+    }
+
+    /**
+     * Enroll with an enrollment ID and secret (basic authentication).
+     *
+     * @return issued certificate in PEM
+     */
+    String enroll(String id, String secret, String csr) throws CAException {
+        Identity identity = identities.get(id);
+        if (identity == null && acceptAnyIdentity) {
+            identity = identities.computeIfAbsent(id, i -> new Identity(i, null, "client", "", -1));
+        }
+        if (identity == null || (identity.secret != null && !identity.secret.equals(secret))) {
+            throw new CAException(401, 20, "Authentication failure");
+        }
+        int count = identity.enrollments.incrementAndGet();
+        if (identity.maxEnrollments > 0 && count > identity.maxEnrollments) {
+            throw new CAException(401, 20, "The identity " + id + " has already enrolled " + identity.maxEnrollments + " times");
+        }
+        return issue(identity, csr);
+    }
+
+    /**
+     * Reenroll the identity authenticated by its current certificate (token authentication).
+     *
+     * @return issued certificate in PEM
+     */
+    String reenroll(String caller, String csr) throws CAException {
+        return issue(identity(caller), csr);
+    }
+
+    /**
+     * @return certificates issued to id and not revoked, in PEM
+     */
+    List<String> certificates(String caller, String id) throws CAException {
+        identity(caller);
+        Identity identity = identities.get(id);
+        List<String> pems = new ArrayList<>();
+        if (identity != null) {
+            for (X509Certificate certificate : identity.certificates) {
+                if (!revoked.contains(certificate.getSerialNumber())) {
+                    pems.add(pem(certificate));
+                }
+            }
+        }
+        return pems;
+    }
+
+    /**
+     * Revoke every certificate of id, or the certificate with the given serial.
+     *
+     * @return revoked certificates
+     */
+    List<X509Certificate> revoke(String caller, String id, String serialHex) throws CAException {
+        identity(caller);
+        List<X509Certificate> certificates = new ArrayList<>();
+        if (id != null && !id.isEmpty()) {
+            Identity identity = identities.get(id);
+            if (identity == null) {
+                throw new CAException(404, 63, "Identity '" + id + "' does not exist");
+            }
+            certificates.addAll(identity.certificates);
+        } else if (serialHex != null && !serialHex.isEmpty()) {
+            X509Certificate certificate = issued.get(new BigInteger(serialHex, 16));
+            if (certificate == null) {
+                throw new CAException(404, 62, "Certificate with serial " + serialHex + " does not exist");
+            }
+            certificates.add(certificate);
+        } else {
+            throw new CAException(400, 0, "Either Name or Serial and AKI are required for a revocation request");
+        }
+        List<X509Certificate> done = new ArrayList<>();
+        for (X509Certificate certificate : certificates) {
+            if (revoked.add(certificate.getSerialNumber())) {
+                done.add(certificate);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * @return the CRL of every revoked certificate, in PEM
+     */
+    String crl() {
+        try {
+            Date now = new Date();
+            X509v2CRLBuilder builder = new X509v2CRLBuilder(X500Name.getInstance(intermediate.getSubjectX500Principal().getEncoded()), now);
+            for (BigInteger serialNumber : revoked) {
+                builder.addCRLEntry(serialNumber, now, CRLReason.unspecified);
+            }
+            X509CRLHolder crl = builder.build(signer());
+            return Fixtures.pem("X509 CRL", crl.getEncoded());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return hex encoded authority key identifier of issued certificates
+     */
+    String authorityKeyId() {
+        byte[] extension = intermediate.getExtensionValue(Extension.subjectKeyIdentifier.getId());
+        byte[] keyId = SubjectKeyIdentifier.getInstance(
+                org.bouncycastle.asn1.ASN1OctetString.getInstance(extension).getOctets()).getKeyIdentifier();
+        return String.format("%0" + keyId.length * 2 + "x", new BigInteger(1, keyId));
+    }
+
+    private Identity identity(String caller) throws CAException {
+        Identity identity = caller == null ? null : identities.get(caller);
+        if (identity == null) {
+            throw new CAException(401, 20, "Authentication failure");
+        }
+        return identity;
+    }
+
+    private String issue(Identity identity, String csr) throws CAException {
+        PublicKey publicKey;
+        try (PEMParser parser = new PEMParser(new StringReader(csr))) {
+            publicKey = new JcaPKCS10CertificationRequest((PKCS10CertificationRequest) parser.readObject())
+                    .setProvider(BouncyCastleProvider.PROVIDER_NAME).getPublicKey();
+        } catch (Exception e) {
+            throw new CAException(400, 0, "Invalid certificate request: " + e.getMessage());
+        }
+        try {
+            long now = System.currentTimeMillis();
+            JcaX509ExtensionUtils extensions = new JcaX509ExtensionUtils();
+            X500Name subject = new X500Name("CN=" + identity.id + ",OU=" + identity.type);
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(intermediate, BigInteger.valueOf(serial.incrementAndGet()),
+                    new Date(now - 60_000), new Date(now + validity.toMillis()), subject, publicKey)
+                    .addExtension(Extension.basicConstraints, true, new BasicConstraints(false))
+                    .addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.digitalSignature))
+                    .addExtension(Extension.subjectKeyIdentifier, false, extensions.createSubjectKeyIdentifier(publicKey))
+                    .addExtension(Extension.authorityKeyIdentifier, false, extensions.createAuthorityKeyIdentifier(intermediate));
+            X509Certificate certificate = new JcaX509CertificateConverter().setProvider(BouncyCastleProvider.PROVIDER_NAME)
+                    .getCertificate(builder.build(signer()));
+            identity.certificates.add(certificate);
+            issued.put(certificate.getSerialNumber(), certificate);
+            return pem(certificate);
+        } catch (Exception e) {
+            throw new CAException(500, 0, "Failed to sign certificate: " + e.getMessage());
+        }
+    }
+
+    private ContentSigner signer() throws Exception {
+        return new JcaContentSignerBuilder("SHA256withECDSA").build(intermediateKey.getPrivate());
+    }
+
+    private static String pem(X509Certificate certificate) {
+        try {
+            return Fixtures.pem("CERTIFICATE", certificate.getEncoded());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String base64(String value) {
+        return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,73 @@
+package com.blockchain.model;
+
+import com.blockchain.benchmark.Fixtures;
+import org.bouncycastle.util.encoders.Hex;
+import org.hyperledger.fabric.sdk.identity.X509Enrollment;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Java serialization plus hex, as {@code HyperUser.saveState} used to write records,
+ * against {@link HyperUserCodec}. Record sizes are printed once per fork.
+ *
+ * @author shurenwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HyperUserCodecBenchmark {
+
+    private HyperUser user;
+    private byte[] legacyRecord;
+    private byte[] binaryRecord;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPair ca = Fixtures.keyPair();
+        KeyPair key = Fixtures.keyPair();
+        String cert = Fixtures.pem("CERTIFICATE", Fixtures.certificate("user1", key, "ca.org1.example.com", ca).getEncoded());
+        user = new HyperUser("user1", "Org1", "intermediaca2", "Org1MSP", null, "org1.department1",
+                "secret", Collections.singleton("client"), new X509Enrollment(key.getPrivate(), cert));
+        legacyRecord = legacy(user);
+        binaryRecord = HyperUserCodec.encode(user);
+        System.out.printf("%nrecord bytes: legacy=%d binary=%d%n", legacyRecord.length, binaryRecord.length);
+    }
+
+    @Benchmark
+    public byte[] encodeLegacy() throws IOException {
+        return legacy(user);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return HyperUserCodec.encode(user);
+    }
+
+    @Benchmark
+    public HyperUser decodeLegacy() {
+        return HyperUserCodec.decode(legacyRecord);
+    }
+
+    @Benchmark
+    public HyperUser decodeBinary() {
+        return HyperUserCodec.decode(binaryRecord);
+    }
+
+    private static byte[] legacy(HyperUser user) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(user);
+        }
+        return Hex.toHexString(bos.toByteArray()).getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,61 @@
+package com.blockchain.model;
+
+import com.blockchain.benchmark.Fixtures;
+import org.apache.commons.io.FileUtils;
+import org.hyperledger.fabric.sdk.identity.X509Enrollment;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HyperUser#saveState} and {@link HyperUser#restoreState} of an enrolled user
+ * against a {@link Store} on the default engine.
+ *
+ * @author shurenwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HyperUserStateBenchmark {
+
+    private File dir;
+    private Store store;
+    private HyperUser user;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Fixtures.sandbox();
+        store = new Store(new File(dir, "store.properties"));
+        KeyPair ca = Fixtures.keyPair();
+        KeyPair key = Fixtures.keyPair();
+        String cert = Fixtures.pem("CERTIFICATE", Fixtures.certificate("user1", key, "ca.org1.example.com", ca).getEncoded());
+        user = new HyperUser("user1", "Org1", "ca", store);
+        user.edit()
+                .setMspId("Org1MSP")
+                .setAffiliation("org1.department1")
+                .setEnrollment(new X509Enrollment(key.getPrivate(), cert))
+                .commit();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.flush();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public void saveState() {
+        user.saveState();
+    }
+
+    @Benchmark
+    public HyperUser restoreState() {
+        return user.restoreState();
+    }
+}
@@ -0,0 +1,63 @@
+package com.blockchain.model;
+
+import com.blockchain.benchmark.Fixtures;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PEM private key parsing with {@link Store#getPrivateKeyFromBytes}, and the same key and
+ * certificate pair served by {@link CredentialCache} while the files are unchanged.
+ *
+ * @author shurenwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrivateKeyBenchmark {
+
+    private File dir;
+    private byte[] keyPem;
+    private File keyFile;
+    private File certFile;
+    private CredentialCache cache;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Fixtures.sandbox();
+        KeyPair ca = Fixtures.keyPair();
+        KeyPair key = Fixtures.keyPair();
+        keyPem = Fixtures.pem("PRIVATE KEY", key.getPrivate().getEncoded()).getBytes(StandardCharsets.UTF_8);
+        String cert = Fixtures.pem("CERTIFICATE", Fixtures.certificate("user1", key, "ca.org1.example.com", ca).getEncoded());
+        keyFile = new File(dir, "user_ls");
+        certFile = new File(dir, "cert.pem");
+        Files.write(keyFile.toPath(), keyPem);
+        Files.write(certFile.toPath(), cert.getBytes(StandardCharsets.UTF_8));
+        cache = new CredentialCache(16);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public PrivateKey getPrivateKeyFromBytes() throws Exception {
+        return Store.getPrivateKeyFromBytes(keyPem);
+    }
+
+    @Benchmark
+    public CredentialCache.Credentials credentialCacheHit() throws Exception {
+        return cache.get(keyFile, certFile);
+    }
+}
@@ -0,0 +1,92 @@
+package com.blockchain.model;
+
+import com.blockchain.benchmark.Fixtures;
+import org.apache.commons.io.FileUtils;
+import org.hyperledger.fabric.sdk.identity.X509Enrollment;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.util.Collections;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Store} reads and writes of user records with 1k, 10k and 100k users stored,
+ * for both storage engines.
+ *
+ * @author shurenwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int users;
+
+    @Param({"log", "properties"})
+    public String engine;
+
+    private File dir;
+    private Store store;
+    private String[] keys;
+    private byte[] record;
+    private String value;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Fixtures.sandbox();
+        System.setProperty("enrollment.store.engine", engine);
+        KeyPair ca = Fixtures.keyPair();
+        KeyPair key = Fixtures.keyPair();
+        String cert = Fixtures.pem("CERTIFICATE", Fixtures.certificate("user1", key, "ca.org1.example.com", ca).getEncoded());
+        HyperUser user = new HyperUser("user1", "Org1", "ca", "Org1MSP", null, "org1.department1",
+                "secret", Collections.singleton("client"), new X509Enrollment(key.getPrivate(), cert));
+        record = HyperUserCodec.encode(user);
+        value = new String(record, StandardCharsets.ISO_8859_1);
+
+        store = new Store(new File(dir, "store.properties"));
+        keys = new String[users];
+        for (int i = 0; i < users; i++) {
+            keys[i] = HyperUser.toKeyValStoreName("user" + i, "Org1", "ca");
+            store.setBytes(keys[i], record);
+        }
+        store.flush();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.flush();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public String getValue() {
+        return store.getValue(randomKey());
+    }
+
+    @Benchmark
+    public void setValue() {
+        store.setValue(randomKey(), value);
+    }
+
+    @Benchmark
+    public byte[] getBytes() {
+        return store.getBytes(randomKey());
+    }
+
+    @Benchmark
+    public void setBytes() {
+        store.setBytes(randomKey(), record);
+    }
+
+    private String randomKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+}
@@ -0,0 +1,67 @@
+package com.blockchain.utils;
+
+import com.blockchain.benchmark.Fixtures;
+import org.hyperledger.fabric_ca.sdk.HFCAInfo;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Constructor;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the CA chain returned by the info endpoint with {@link CAChain#parse}, and the
+ * {@link FabricHelper#isRootCA} check run on every certificate of it.
+ *
+ * @author shurenwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CAChainBenchmark {
+
+    private HFCAInfo info;
+    private X509Certificate root;
+    private X509Certificate intermediate;
+
+    @Setup
+    public void setup() throws Exception {
+        Fixtures.sandbox();
+        KeyPair rootKey = Fixtures.keyPair();
+        KeyPair intermediateKey = Fixtures.keyPair();
+        info = newInfo("intermediaca2", Fixtures.caChain(rootKey, intermediateKey));
+        CAChain chain = CAChain.parse(info);
+        root = chain.getCertificates().get(0);
+        intermediate = chain.getCertificates().get(1);
+        if (!FabricHelper.isRootCA(root) || FabricHelper.isRootCA(intermediate)) {
+            throw new IllegalStateException("Unexpected CA chain fixture");
+        }
+    }
+
+    @Benchmark
+    public CAChain parse() throws Exception {
+        return CAChain.parse(info);
+    }
+
+    @Benchmark
+    public boolean isRootCARoot() {
+        return FabricHelper.isRootCA(root);
+    }
+
+    @Benchmark
+    public boolean isRootCAIntermediate() {
+        return FabricHelper.isRootCA(intermediate);
+    }
+
+    /**
+     * HFCAInfo is only built by the SDK from an info response.
+     */
+    static HFCAInfo newInfo(String caName, String caChain) throws Exception {
+        Constructor<HFCAInfo> constructor = HFCAInfo.class.getDeclaredConstructor(String.class, String.class, String.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(caName, caChain, "1.4.4");
+    }
+}
@@ -0,0 +1,64 @@
+package com.blockchain.utils;
+
+import com.blockchain.benchmark.Fixtures;
+import com.blockchain.model.HyperUser;
+import com.blockchain.model.Store;
+import org.apache.commons.io.FileUtils;
+import org.hyperledger.fabric.sdk.identity.X509Enrollment;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FabricHelper#constructMSP} of an enrolled user into a tmpfs directory, replacing the
+ * previous tree each time, for each fsync policy.
+ *
+ * @author shurenwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConstructMSPBenchmark {
+
+    @Param({"none", "tree", "file"})
+    public String sync;
+
+    private File dir;
+    private Store store;
+    private HyperUser user;
+    private CAChain caChain;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Fixtures.sandbox();
+        System.setProperty("artifacts.sync", sync);
+        KeyPair rootKey = Fixtures.keyPair();
+        KeyPair intermediateKey = Fixtures.keyPair();
+        KeyPair key = Fixtures.keyPair();
+        caChain = CAChain.parse(CAChainBenchmark.newInfo("intermediaca2", Fixtures.caChain(rootKey, intermediateKey)));
+        String cert = Fixtures.pem("CERTIFICATE", Fixtures.certificate("user1", key, "intermediaca2", intermediateKey).getEncoded());
+        store = new Store(new File(dir, "store.properties"));
+        user = store.getMember("user1", "Org1", "intermediaca2");
+        user.edit()
+                .setMspId("Org1MSP")
+                .setEnrollment(new X509Enrollment(key.getPrivate(), cert))
+                .commit();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        store.flush();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public void constructMSP() throws Exception {
+        FabricHelper.constructMSP(user, caChain, null);
+    }
+}
@@ -0,0 +1,71 @@
+package com.blockchain.utils;
+
+import com.blockchain.benchmark.Fixtures;
+import com.blockchain.benchmark.ca.StandInCAServer;
+import com.blockchain.dto.EnrollmentRequest;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link FabricHelper#enroll} of a new identity and {@link FabricHelper#exportUser} of an
+ * enrolled one, end to end against a {@link StandInCAServer} with the given CA latency.
+ *
+ * @author shurenwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnrollEndToEndBenchmark {
+
+    @Param({"0", "5"})
+    public long latencyMillis;
+
+    private final AtomicLong ids = new AtomicLong();
+    private File dir;
+    private StandInCAServer server;
+
+    @Setup
+    public void setup() throws Exception {
+        dir = Fixtures.sandbox();
+        server = StandInCAServer.builder()
+                .latency(latencyMillis, latencyMillis / 2)
+                .acceptAnyIdentity(true)
+                .build();
+        System.setProperty("network.config.path", server.start(dir.toPath()).toString());
+        FabricHelper.enroll(request("exported"));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean enroll() throws Exception {
+        return FabricHelper.enroll(request("user" + ids.incrementAndGet()));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void exportUser() throws Exception {
+        FabricHelper.exportUser("exported", "Org1", null);
+    }
+
+    private static EnrollmentRequest request(String id) {
+        EnrollmentRequest request = new EnrollmentRequest();
+        request.setOrgName("Org1");
+        request.setEnrollmentID(id);
+        request.setEnrollmentSecret("secret");
+        return request;
+    }
+}
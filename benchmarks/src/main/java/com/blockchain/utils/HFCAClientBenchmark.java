@@ -0,0 +1,39 @@
+package com.blockchain.utils;
+
+import com.blockchain.benchmark.Fixtures;
+import org.hyperledger.fabric_ca.sdk.HFCAClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FabricHelper#getHFCAClient} served from the client pool, and with the pool cleared
+ * before every call so each one builds a new client from the network config.
+ *
+ * @author shurenwei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HFCAClientBenchmark {
+
+    @Setup
+    public void setup() throws Exception {
+        Fixtures.sandbox();
+        FabricHelper.getHFCAClient("Org1", null, false);
+    }
+
+    @Benchmark
+    public HFCAClient pooled() throws Exception {
+        return FabricHelper.getHFCAClient("Org1", null, false);
+    }
+
+    @Benchmark
+    public HFCAClient created() throws Exception {
+        FabricHelper.getClientPool().clear();
+        return FabricHelper.getHFCAClient("Org1", null, false);
+    }
+}
@@ -2,13 +2,28 @@ package com.blockchain;
 
 import com.blockchain.dto.BaseRequest;
 import com.blockchain.dto.EnrollmentRequest;
+import com.blockchain.dto.ExportRequest;
+import com.blockchain.dto.RegistrationRequest;
 import com.blockchain.exception.MyException;
 import com.blockchain.model.HyperUser;
 import com.blockchain.model.Result;
+import com.blockchain.utils.ArtifactArchive;
+import com.blockchain.utils.AsyncExecutors;
+import com.blockchain.utils.BulkEnrollment;
+import com.blockchain.utils.EnrolledUser;
 import com.blockchain.utils.FabricHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
 /**
  * @author shurenwei
  */
@@ -28,6 +43,20 @@ public class HFCAUtils {
         }
     }
 
+    /**
+     * 注册用户
+     * @param registrationRequest
+     * @return 成功时data为登记Secret
+     */
+    public static Result register(RegistrationRequest registrationRequest){
+        try {
+            return Result.getSuccInstance(FabricHelper.register(registrationRequest));
+        } catch (MyException e) {
+            logger.error("HFCAUtils | register ", e.getMessage());
+            return Result.getErrorInstance(e.getMessage());
+        }
+    }
+
     public static Result userIsExist(BaseRequest request){
         try {
             boolean flag = FabricHelper.getMember(request.getEnrollmentID(),request.getOrgName(),null).isEnrolled();
@@ -41,6 +70,154 @@ public class HFCAUtils {
         }
     }
 
+    public static Result exportUser(ExportRequest request){
+        try {
+            FabricHelper.exportUser(request.getEnrollmentID(),request.getOrgName(),request.getProfile());
+            return Result.getSuccInstance(null);
+        } catch (MyException e) {
+            logger.error("HFCAUtils | exportUser ", e.getMessage());
+            return Result.getErrorInstance(e.getMessage());
+        }
+    }
+
+    /**
+     * 导出用户证书到输出流, 格式为zip或tar, 条目为 用户名/msp/...
+     * @param request
+     * @param out 输出流, 写完后不关闭
+     * @param format 归档格式
+     * @return
+     */
+    public static Result exportUser(ExportRequest request, OutputStream out, ArtifactArchive.Format format){
+        try {
+            FabricHelper.exportUser(request.getEnrollmentID(),request.getOrgName(),request.getProfile(),out,format);
+            return Result.getSuccInstance(null);
+        } catch (MyException e) {
+            logger.error("HFCAUtils | exportUser ", e.getMessage());
+            return Result.getErrorInstance(e.getMessage());
+        }
+    }
+
+    /**
+     * 把多个用户的证书导出到同一个归档, 任一用户失败时返回错误, 已写出的内容不完整
+     * @param requests 导出请求, 按需读取
+     * @param out 输出流, 写完后不关闭
+     * @param format 归档格式
+     * @return 成功时data为导出的用户数
+     */
+    public static Result exportUsers(Stream<ExportRequest> requests, OutputStream out, ArtifactArchive.Format format){
+        try {
+            int count = FabricHelper.exportUsers(requests.iterator(),out,format);
+            return Result.getSuccInstance(String.valueOf(count));
+        } catch (MyException e) {
+            logger.error("HFCAUtils | exportUsers ", e.getMessage());
+            return Result.getErrorInstance(e.getMessage());
+        }
+    }
+
+    /**
+     * 异步登记用户, CA请求在网络线程池执行, 证书文件在文件线程池写入
+     * @param enrollmentRequest
+     * @return 登记结果, 不会异常完成
+     */
+    public static CompletableFuture<Result> enrollAsync(EnrollmentRequest enrollmentRequest){
+        return enrollAsync(enrollmentRequest, AsyncExecutors.network(), AsyncExecutors.file());
+    }
+
+    public static CompletableFuture<Result> enrollAsync(EnrollmentRequest enrollmentRequest, Executor network, Executor file){
+        return AsyncExecutors.supplyAsync(() -> FabricHelper.enrollWithCA(enrollmentRequest), network)
+                .thenCompose(enrolled -> {
+                    if (enrolled == null) {
+                        return CompletableFuture.completedFuture(Result.getErrorInstance(Result.FAIL));
+                    }
+                    return store(enrolled, file);
+                })
+                .exceptionally(e -> toErrorResult("enrollAsync", e));
+    }
+
+    /**
+     * 异步查询用户是否已登记, 在文件线程池执行
+     * @param request
+     * @return 查询结果, 不会异常完成
+     */
+    public static CompletableFuture<Result> userIsExistAsync(BaseRequest request){
+        return userIsExistAsync(request, AsyncExecutors.file());
+    }
+
+    public static CompletableFuture<Result> userIsExistAsync(BaseRequest request, Executor file){
+        return AsyncExecutors.supplyAsync(() -> userIsExist(request), file)
+                .exceptionally(e -> toErrorResult("userIsExistAsync", e));
+    }
+
+    /**
+     * 异步导出用户证书, CA信息在网络线程池获取, 证书文件在文件线程池写入
+     * @param request
+     * @return 导出结果, 不会异常完成
+     */
+    public static CompletableFuture<Result> exportUserAsync(ExportRequest request){
+        return exportUserAsync(request, AsyncExecutors.network(), AsyncExecutors.file());
+    }
+
+    public static CompletableFuture<Result> exportUserAsync(ExportRequest request, Executor network, Executor file){
+        return AsyncExecutors.supplyAsync(() -> FabricHelper.prepareExport(request.getEnrollmentID(), request.getOrgName(), request.getProfile()), network)
+                .thenCompose(enrolled -> store(enrolled, file))
+                .exceptionally(e -> toErrorResult("exportUserAsync", e));
+    }
+
+    /**
+     * 批量登记用户, 每个请求完成后立即回调结果, 单个失败不影响其余请求
+     * @param requests 登记请求, 按需读取
+     * @param listener 单个请求的结果, 在线程池线程中并发调用
+     * @return 处理统计
+     */
+    public static BulkEnrollment.Summary enrollAll(Stream<EnrollmentRequest> requests, BiConsumer<EnrollmentRequest, Result> listener){
+        return FabricHelper.getBulkEnrollment().run(requests.iterator(), (request, error) -> listener.accept(request,
+                error == null ? Result.getSuccInstance(null) : toErrorResult("enrollAll", error)));
+    }
+
+    public static BulkEnrollment.Summary enrollAll(Collection<EnrollmentRequest> requests, BiConsumer<EnrollmentRequest, Result> listener){
+        return enrollAll(requests.stream(), listener);
+    }
+
+    /**
+     * 批量注册并登记用户, 每个身份注册返回后立即登记, Registrar登记结果在整批中复用
+     * @param requests 注册请求, 按需读取
+     * @param listener 单个请求的结果, 成功时data为登记Secret, 在线程池线程中并发调用
+     * @return 处理统计
+     */
+    public static BulkEnrollment.Summary registerAndEnrollAll(Stream<RegistrationRequest> requests, BiConsumer<RegistrationRequest, Result> listener){
+        return FabricHelper.getBulkEnrollment().registerAndEnroll(requests.iterator(), (request, error) -> listener.accept(request,
+                error == null ? Result.getSuccInstance(request.getEnrollmentSecret()) : toErrorResult("registerAndEnrollAll", error)));
+    }
+
+    public static BulkEnrollment.Summary registerAndEnrollAll(Collection<RegistrationRequest> requests, BiConsumer<RegistrationRequest, Result> listener){
+        return registerAndEnrollAll(requests.stream(), listener);
+    }
+
+    /**
+     * 写入证书文件; CA已经处理了请求, 文件线程池已满时由当前线程写入而不是拒绝
+     */
+    private static CompletableFuture<Result> store(EnrolledUser enrolled, Executor file){
+        if (enrolled.isFollower()) {
+            return enrolled.getStored().thenApply(v -> Result.getSuccInstance(null));
+        }
+        return AsyncExecutors.supplyAsyncOrRun(() -> {
+            FabricHelper.storeEnrollment(enrolled);
+            return Result.getSuccInstance(null);
+        }, file);
+    }
+
+    private static Result toErrorResult(String method, Throwable e){
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        logger.error("HFCAUtils | " + method + " ", cause.getMessage());
+        if (cause instanceof MyException) {
+            return Result.getErrorInstance(cause.getMessage());
+        }
+        if (cause instanceof RejectedExecutionException) {
+            return Result.getErrorInstance("系统繁忙,请稍后重试");
+        }
+        return Result.getErrorInstance(Result.FAIL);
+    }
+
     public static void main(String []args){
         EnrollmentRequest enrollmentRequest = new EnrollmentRequest();
         enrollmentRequest.setOrgName("Org1");
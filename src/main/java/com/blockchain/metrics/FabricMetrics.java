@@ -0,0 +1,187 @@
+package com.blockchain.metrics;
+
+import io.micrometer.core.instrument.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 登记各阶段及本地存储的指标
+ * <p>
+ * 所有指标注册到{@link Metrics#globalRegistry}. 引入spring-boot-starter-actuator后,
+ * Spring Boot默认把它创建的MeterRegistry加入全局注册表(management.metrics.use-global-registry),
+ * 其它环境可以用{@link #addRegistry}加入; 没有加入任何注册表时记录操作不做任何事.
+ * <p>
+ * CA相关指标带org、ca、profile标签, 值为空时为"none"; 耗时指标另带outcome标签(success/error)
+ *
+ * @author shurenwei
+ */
+public final class FabricMetrics {
+
+    /** CA info()调用耗时, 只在CA信息缓存未命中时发生 */
+    public static final String CA_INFO = "fabric.ca.info";
+    /** CA enroll调用耗时 */
+    public static final String CA_ENROLL = "fabric.ca.enroll";
+    /** CA reenroll调用耗时, 即证书续期 */
+    public static final String CA_REENROLL = "fabric.ca.reenroll";
+    /** CA register调用耗时 */
+    public static final String CA_REGISTER = "fabric.ca.register";
+    /** 获取Admin证书(getHFCACertificates)耗时 */
+    public static final String CA_CERTIFICATES = "fabric.ca.certificates";
+    /** 创建CA客户端耗时, 次数即客户端创建数 */
+    public static final String CLIENT_CREATE = "fabric.ca.client.create";
+    /** 写入MSP/TLS目录耗时, tree标签为msp或tls */
+    public static final String ARTIFACTS_WRITE = "fabric.artifacts.write";
+    /** 写入MSP/TLS目录的字节数 */
+    public static final String ARTIFACTS_BYTES = "fabric.artifacts.bytes";
+    /** 本地存储读写耗时, op标签为read或write */
+    public static final String STORE_OPERATION = "fabric.store.operation";
+    /** 本地存储读写字节数, op标签为read或write */
+    public static final String STORE_BYTES = "fabric.store.bytes";
+    /** 缓存查询次数, cache标签为缓存名, result标签为hit或miss */
+    public static final String CACHE_REQUESTS = "fabric.cache.requests";
+    /** CA副本选择事件, event标签为failover(换副本重试)、ejected(摘除)或readmitted(恢复) */
+    public static final String CA_ROUTING = "fabric.ca.routing";
+    /**
+     * CA调用容错事件, op标签为操作名, event标签为retry(重试)、hedge(对冲)、hedge_won(对冲请求先返回)、
+     * deadline_exceeded(超过截止时间)、outcome_unknown(非幂等请求已发出但没有收到结果)、breaker_open(熔断器打开)、
+     * breaker_rejected(熔断拒绝)或bulkhead_rejected(对冲线程已满, 在调用线程执行且不对冲)
+     */
+    public static final String CA_RESILIENCE = "fabric.ca.resilience";
+    /** 与进行中的相同请求合并、共享其结果的请求数, op标签为操作名 */
+    public static final String REQUESTS_COALESCED = "fabric.requests.coalesced";
+    /** 等待同一身份的其他请求完成的次数, op标签为操作名 */
+    public static final String LOCKS_CONTENDED = "fabric.locks.contended";
+
+    private static final String NONE = "none";
+
+    /** 本地存储在热路径上, 预先创建避免每次按名称查找 */
+    private static final Timer STORE_READ = Metrics.globalRegistry.timer(STORE_OPERATION, "op", "read");
+    private static final Timer STORE_WRITE = Metrics.globalRegistry.timer(STORE_OPERATION, "op", "write");
+    private static final DistributionSummary STORE_READ_BYTES = Metrics.globalRegistry.summary(STORE_BYTES, "op", "read");
+    private static final DistributionSummary STORE_WRITE_BYTES = Metrics.globalRegistry.summary(STORE_BYTES, "op", "write");
+
+    private FabricMetrics() {
+    }
+
+    /**
+     * 加入一个导出指标的注册表, 已有的指标一并加入
+     * @param registry 注册表
+     */
+    public static void addRegistry(MeterRegistry registry) {
+        Metrics.addRegistry(registry);
+    }
+
+    /**
+     * @return 所有指标所在的注册表
+     */
+    public static MeterRegistry registry() {
+        return Metrics.globalRegistry;
+    }
+
+    /**
+     * @param org 组织名称
+     * @param ca CA名称
+     * @param profile 用于颁发证书的签名配置文件的名称
+     * @return CA相关指标的标签
+     */
+    public static Tags caTags(String org, String ca, String profile) {
+        return Tags.of("org", orNone(org), "ca", orNone(ca), "profile", orNone(profile));
+    }
+
+    /**
+     * 开始计时
+     * @return 计时器
+     */
+    public static Timer.Sample start() {
+        return Timer.start(Metrics.globalRegistry);
+    }
+
+    /**
+     * 结束计时并记录到指定指标
+     * @param sample {@link #start}返回的计时器
+     * @param name 指标名
+     * @param tags 标签
+     * @param success 是否成功
+     */
+    public static void stop(Timer.Sample sample, String name, Tags tags, boolean success) {
+        sample.stop(Metrics.globalRegistry.timer(name, tags.and("outcome", success ? "success" : "error")));
+    }
+
+    /**
+     * 记录一次本地存储读取
+     * @param startNanos 开始时间, System.nanoTime()
+     * @param bytes 读到的字节数, 不存在时为0
+     */
+    public static void storeRead(long startNanos, long bytes) {
+        STORE_READ.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        STORE_READ_BYTES.record(bytes);
+    }
+
+    /**
+     * 记录一次本地存储写入
+     * @param startNanos 开始时间, System.nanoTime()
+     * @param bytes 写入的字节数
+     */
+    public static void storeWrite(long startNanos, long bytes) {
+        STORE_WRITE.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        STORE_WRITE_BYTES.record(bytes);
+    }
+
+    /**
+     * 记录一次MSP/TLS目录写入的字节数
+     * @param tree msp或tls
+     * @param tags 标签
+     * @param bytes 字节数
+     */
+    public static void artifacts(String tree, Tags tags, long bytes) {
+        Metrics.globalRegistry.summary(ARTIFACTS_BYTES, tags.and("tree", tree)).record(bytes);
+    }
+
+    /**
+     * 记录一次缓存查询
+     * @param cache 缓存名
+     * @param hit 是否命中
+     */
+    public static void cache(String cache, boolean hit) {
+        Metrics.globalRegistry.counter(CACHE_REQUESTS, "cache", cache, "result", hit ? "hit" : "miss").increment();
+    }
+
+    /**
+     * 记录一次CA副本选择事件
+     * @param ca CA名称
+     * @param event failover、ejected或readmitted
+     */
+    public static void routing(String ca, String event) {
+        Metrics.globalRegistry.counter(CA_ROUTING, "ca", orNone(ca), "event", event).increment();
+    }
+
+    /**
+     * 记录一次CA调用容错事件
+     * @param ca CA名称
+     * @param op 操作名
+     * @param event 事件
+     */
+    public static void resilience(String ca, String op, String event) {
+        Metrics.globalRegistry.counter(CA_RESILIENCE, "ca", orNone(ca), "op", op, "event", event).increment();
+    }
+
+    /**
+     * 记录一次合并的请求
+     * @param op 操作名
+     */
+    public static void coalesced(String op) {
+        Metrics.globalRegistry.counter(REQUESTS_COALESCED, "op", op).increment();
+    }
+
+    /**
+     * 记录一次锁等待
+     * @param op 操作名
+     */
+    public static void contended(String op) {
+        Metrics.globalRegistry.counter(LOCKS_CONTENDED, "op", op).increment();
+    }
+
+    private static String orNone(String value) {
+        return value == null || value.isEmpty() ? NONE : value;
+    }
+}
@@ -0,0 +1,170 @@
+package com.blockchain.model;
+
+import com.blockchain.metrics.FabricMetrics;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.hyperledger.fabric.sdk.Enrollment;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of credentials parsed from a private key file and a certificate file.
+ * <p>
+ * An entry is keyed by the two paths and stamped with the size, modification time and file
+ * key (the inode on Unix) of both files; it is reused only while both stamps still match, so
+ * rewriting or replacing either file invalidates it without any notification.
+ *
+ * @author shurenwei
+ */
+public class CredentialCache {
+
+    /**
+     * Identity of a file at one point in time.
+     */
+    private static final class Stamp {
+        private final long size;
+        private final long modified;
+        private final Object fileKey;
+
+        private Stamp(BasicFileAttributes attributes) {
+            this.size = attributes.size();
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.fileKey = attributes.fileKey();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Stamp)) {
+                return false;
+            }
+            Stamp other = (Stamp) o;
+            return size == other.size && modified == other.modified && Objects.equals(fileKey, other.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(size, modified, fileKey);
+        }
+    }
+
+    /**
+     * Parsed credentials of one key and certificate file pair.
+     */
+    public static final class Credentials {
+        private final Stamp keyStamp;
+        private final Stamp certStamp;
+        private final byte[] encodedKey;
+        private final Enrollment enrollment;
+
+        private Credentials(Stamp keyStamp, Stamp certStamp, PrivateKey key, String certificate) {
+            this.keyStamp = keyStamp;
+            this.certStamp = certStamp;
+            this.encodedKey = key.getEncoded();
+            this.enrollment = new Store.SampleStoreEnrollement(key, certificate);
+        }
+
+        /**
+         * @return the parsed enrollment, the same instance for as long as the files do not change
+         */
+        public Enrollment getEnrollment() {
+            return enrollment;
+        }
+
+        /**
+         * @param other an enrollment, for example one restored from the store
+         * @return true if other holds the same key and certificate
+         */
+        public boolean matches(Enrollment other) {
+            if (other == enrollment) {
+                return true;
+            }
+            if (other == null || other.getKey() == null || !Objects.equals(enrollment.getCert(), other.getCert())) {
+                return false;
+            }
+            return Arrays.equals(encodedKey, other.getKey().getEncoded());
+        }
+    }
+
+    private final Cache<String, Credentials> credentials;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CredentialCache(long maxSize) {
+        this.credentials = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+    }
+
+    /**
+     * Get the credentials of a key and certificate pair, parsing the files only if they
+     * changed since they were last read.
+     *
+     * @param privateKeyFile  PEM private key
+     * @param certificateFile PEM certificate
+     * @return parsed credentials
+     */
+    public Credentials get(File privateKeyFile, File certificateFile) throws IOException, NoSuchAlgorithmException,
+            NoSuchProviderException, InvalidKeySpecException {
+        Path keyPath = privateKeyFile.toPath().toAbsolutePath();
+        Path certPath = certificateFile.toPath().toAbsolutePath();
+        String cacheKey = keyPath + "|" + certPath;
+        Stamp keyStamp = stamp(keyPath);
+        Stamp certStamp = stamp(certPath);
+        Credentials cached = credentials.getIfPresent(cacheKey);
+        if (cached != null && cached.keyStamp.equals(keyStamp) && cached.certStamp.equals(certStamp)) {
+            hits.incrementAndGet();
+            FabricMetrics.cache("credentials", true);
+            return cached;
+        }
+        misses.incrementAndGet();
+        FabricMetrics.cache("credentials", false);
+        String certificate = new String(Files.readAllBytes(certPath), StandardCharsets.UTF_8);
+        PrivateKey privateKey = Store.getPrivateKeyFromBytes(Files.readAllBytes(keyPath));
+        Credentials parsed = new Credentials(keyStamp, certStamp, privateKey, certificate);
+        // a file written while it was read is parsed again next time
+        if (keyStamp.equals(stamp(keyPath)) && certStamp.equals(stamp(certPath))) {
+            credentials.put(cacheKey, parsed);
+        } else {
+            credentials.invalidate(cacheKey);
+        }
+        return parsed;
+    }
+
+    public void invalidateAll() {
+        credentials.invalidateAll();
+    }
+
+    public long size() {
+        return credentials.size();
+    }
+
+    /**
+     * @return lookups answered without reading the files
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return lookups which parsed the files, because they were not cached or changed
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static Stamp stamp(Path path) throws IOException {
+        return new Stamp(Files.readAttributes(path, BasicFileAttributes.class));
+    }
+}
@@ -15,11 +15,12 @@
 package com.blockchain.model;
 
 import io.netty.util.internal.StringUtil;
-import org.bouncycastle.util.encoders.Hex;
 import org.hyperledger.fabric.sdk.Enrollment;
 import org.hyperledger.fabric.sdk.User;
 
-import java.io.*;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Objects;
 import java.util.Set;
 
 public class HyperUser implements User, Serializable {
@@ -42,9 +43,8 @@ public class HyperUser implements User, Serializable {
         this.keyValStore = fs;
         this.organization = org;
         this.keyValStoreName = toKeyValStoreName(this.name, this.organization,this.ca);
-        String memberStr = keyValStore.getValue(keyValStoreName);
-        
-        if (null == memberStr) {
+
+        if (!keyValStore.hasValue(keyValStoreName)) {
             saveState();
            
         } else {
@@ -54,6 +54,22 @@ public class HyperUser implements User, Serializable {
 
     }
 
+    /**
+     * Detached state decoded by {@link HyperUserCodec}, not bound to a store.
+     */
+    HyperUser(String name, String org, String ca, String mspId, String account, String affiliation,
+              String enrollmentSecret, Set<String> roles, Enrollment enrollment) {
+        this.name = name;
+        this.organization = org;
+        this.ca = ca;
+        this.mspId = mspId;
+        this.account = account;
+        this.affiliation = affiliation;
+        this.enrollmentSecret = enrollmentSecret;
+        this.roles = roles;
+        this.enrollment = enrollment;
+    }
+
     public String getCa() {
         return ca;
     }
@@ -78,7 +94,9 @@ public class HyperUser implements User, Serializable {
     }
 
     public void setRoles(Set<String> roles) {
-
+        if (Objects.equals(this.roles, roles)) {
+            return;
+        }
         this.roles = roles;
         saveState();
     }
@@ -94,7 +112,9 @@ public class HyperUser implements User, Serializable {
      * @param account The account.
      */
     public void setAccount(String account) {
-
+        if (Objects.equals(this.account, account)) {
+            return;
+        }
         this.account = account;
         saveState();
     }
@@ -110,6 +130,9 @@ public class HyperUser implements User, Serializable {
      * @param affiliation the affiliation.
      */
     public void setAffiliation(String affiliation) {
+        if (Objects.equals(this.affiliation, affiliation)) {
+            return;
+        }
         this.affiliation = affiliation;
         saveState();
     }
@@ -141,38 +164,21 @@ public class HyperUser implements User, Serializable {
      * Save the state of this user to the key value store.
      */
     void saveState() {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try {
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(this);
-           
-            oos.flush();
-            
-        
-            
-            keyValStore.setValue(keyValStoreName, Hex.toHexString(bos.toByteArray()));
-            bos.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        keyValStore.setBytes(keyValStoreName, HyperUserCodec.encode(this));
     }
 
     /**
      * Restore the state of this user from the key value store (if found).  If not found, do nothing.
      */
     HyperUser restoreState() {
-        String memberStr = keyValStore.getValue(keyValStoreName);
-        
-        if (null != memberStr) {
+        byte[] record = keyValStore.getBytes(keyValStoreName);
+
+        if (null != record) {
             // The user was found in the key value store, so restore the
             // state.
-            byte[] serialized = Hex.decode(memberStr);
-            ByteArrayInputStream bis = new ByteArrayInputStream(serialized);
-           
             try {
-                ObjectInputStream ois = new ObjectInputStream(bis);
-                HyperUser state = (HyperUser) ois.readObject();
-                
+                HyperUser state = HyperUserCodec.decode(record);
+
                 if (state != null) {
                     this.name = state.name;
                     this.roles = state.roles;
@@ -183,7 +189,7 @@ public class HyperUser implements User, Serializable {
                     this.enrollment = state.enrollment;
                     this.mspId = state.mspId;
                     this.ca = state.ca;
-                    
+
                     return this;
                 }
             } catch (Exception e) {
@@ -198,12 +204,17 @@ public class HyperUser implements User, Serializable {
     }
 
     public void setEnrollmentSecret(String enrollmentSecret) {
+        if (Objects.equals(this.enrollmentSecret, enrollmentSecret)) {
+            return;
+        }
         this.enrollmentSecret = enrollmentSecret;
         saveState();
     }
 
     public void setEnrollment(Enrollment enrollment) {
-
+        if (Objects.equals(this.enrollment, enrollment)) {
+            return;
+        }
         this.enrollment = enrollment;
         saveState();
 
@@ -221,6 +232,9 @@ public class HyperUser implements User, Serializable {
     String mspId;
 
     public void setMspId(String mspID) {
+        if (Objects.equals(this.mspId, mspID)) {
+            return;
+        }
         this.mspId = mspID;
         saveState();
 
@@ -229,4 +243,144 @@ public class HyperUser implements User, Serializable {
     public String getOrganization() {
         return organization;
     }
+
+    String getKeyValStoreName() {
+        return keyValStoreName;
+    }
+
+    Store getKeyValStore() {
+        return keyValStore;
+    }
+
+    /**
+     * Start a set of changes which is persisted once by {@link Mutation#commit()}, or together
+     * with the changes of other users by {@link Store#commit(Collection)}.
+     *
+     * @return a new mutation scope on this user
+     */
+    public Mutation edit() {
+        return new Mutation(this);
+    }
+
+    /**
+     * Changes to a {@link HyperUser} which only reach the user and its store on commit.
+     * Fields set to the value they already hold are not considered dirty, committing a
+     * mutation without dirty fields does not write anything.
+     */
+    public static final class Mutation {
+
+        private static final int ROLES = 1;
+        private static final int ACCOUNT = 1 << 1;
+        private static final int AFFILIATION = 1 << 2;
+        private static final int ENROLLMENT_SECRET = 1 << 3;
+        private static final int ENROLLMENT = 1 << 4;
+        private static final int MSP_ID = 1 << 5;
+
+        private final HyperUser user;
+        private int dirty;
+        private Set<String> roles;
+        private String account;
+        private String affiliation;
+        private String enrollmentSecret;
+        private Enrollment enrollment;
+        private String mspId;
+
+        private Mutation(HyperUser user) {
+            this.user = user;
+        }
+
+        public Mutation setRoles(Set<String> roles) {
+            this.roles = roles;
+            mark(ROLES, Objects.equals(user.roles, roles));
+            return this;
+        }
+
+        public Mutation setAccount(String account) {
+            this.account = account;
+            mark(ACCOUNT, Objects.equals(user.account, account));
+            return this;
+        }
+
+        public Mutation setAffiliation(String affiliation) {
+            this.affiliation = affiliation;
+            mark(AFFILIATION, Objects.equals(user.affiliation, affiliation));
+            return this;
+        }
+
+        public Mutation setEnrollmentSecret(String enrollmentSecret) {
+            this.enrollmentSecret = enrollmentSecret;
+            mark(ENROLLMENT_SECRET, Objects.equals(user.enrollmentSecret, enrollmentSecret));
+            return this;
+        }
+
+        public Mutation setEnrollment(Enrollment enrollment) {
+            this.enrollment = enrollment;
+            mark(ENROLLMENT, Objects.equals(user.enrollment, enrollment));
+            return this;
+        }
+
+        public Mutation setMspId(String mspId) {
+            this.mspId = mspId;
+            mark(MSP_ID, Objects.equals(user.mspId, mspId));
+            return this;
+        }
+
+        /**
+         * @return true if committing would change the user
+         */
+        public boolean isDirty() {
+            return dirty != 0;
+        }
+
+        public HyperUser getUser() {
+            return user;
+        }
+
+        /**
+         * Apply the dirty fields to the user and save it once.
+         *
+         * @return the user
+         */
+        public HyperUser commit() {
+            if (apply()) {
+                user.saveState();
+            }
+            return user;
+        }
+
+        /**
+         * Apply the dirty fields to the user without saving it.
+         *
+         * @return true if the user changed
+         */
+        boolean apply() {
+            if (dirty == 0) {
+                return false;
+            }
+            if ((dirty & ROLES) != 0) {
+                user.roles = roles;
+            }
+            if ((dirty & ACCOUNT) != 0) {
+                user.account = account;
+            }
+            if ((dirty & AFFILIATION) != 0) {
+                user.affiliation = affiliation;
+            }
+            if ((dirty & ENROLLMENT_SECRET) != 0) {
+                user.enrollmentSecret = enrollmentSecret;
+            }
+            if ((dirty & ENROLLMENT) != 0) {
+                user.enrollment = enrollment;
+            }
+            if ((dirty & MSP_ID) != 0) {
+                user.mspId = mspId;
+            }
+            dirty = 0;
+            return true;
+        }
+
+        private void mark(int field, boolean unchanged) {
+            dirty = unchanged ? dirty & ~field : dirty | field;
+        }
+    }
 }
\ No newline at end of file
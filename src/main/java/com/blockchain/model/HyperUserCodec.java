@@ -0,0 +1,281 @@
+package com.blockchain.model;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemReader;
+import org.bouncycastle.util.io.pem.PemWriter;
+import org.hyperledger.fabric.sdk.Enrollment;
+import org.hyperledger.fabric.sdk.identity.X509Enrollment;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Binary record format for the state of a {@link HyperUser}.
+ * <p>
+ * Layout of version 1:
+ * <pre>
+ * 'H' 'U' version
+ * name organization ca mspId account affiliation enrollmentSecret   (string)
+ * roles                                                              (varint count + 1, 0 for null, then strings)
+ * enrollment                                                         (kind byte, see below)
+ * </pre>
+ * A string is a varint of its UTF-8 length + 1 (0 for null) followed by the bytes.
+ * Enrollment kinds: 0 none; 1 key algorithm, PKCS#8 DER key and X.509 DER certificate;
+ * 2 same as 1 with the certificate kept as text because its PEM form does not round trip;
+ * 3 Java serialized {@link Enrollment} for anything without an exportable key.
+ * <p>
+ * Records written before this format are hex encoded Java serialization, they never start
+ * with the magic bytes and are still read by {@link #decode}.
+ *
+ * @author shurenwei
+ */
+public final class HyperUserCodec {
+
+    private static final byte MAGIC_0 = 'H';
+    private static final byte MAGIC_1 = 'U';
+    private static final byte VERSION_1 = 1;
+
+    private static final byte ENROLLMENT_NONE = 0;
+    private static final byte ENROLLMENT_DER = 1;
+    private static final byte ENROLLMENT_DER_KEY_TEXT_CERT = 2;
+    private static final byte ENROLLMENT_SERIALIZED = 3;
+
+    private static final String PEM_CERTIFICATE = "CERTIFICATE";
+
+    static {
+        Security.addProvider(new BouncyCastleProvider());
+    }
+
+    private HyperUserCodec() {
+    }
+
+    /**
+     * Encode the state of user with the current format version.
+     *
+     * @param user user to encode
+     * @return record bytes
+     */
+    public static byte[] encode(HyperUser user) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            out.writeByte(MAGIC_0);
+            out.writeByte(MAGIC_1);
+            out.writeByte(VERSION_1);
+            writeString(out, user.getName());
+            writeString(out, user.getOrganization());
+            writeString(out, user.getCa());
+            writeString(out, user.getMspId());
+            writeString(out, user.getAccount());
+            writeString(out, user.getAffiliation());
+            writeString(out, user.getEnrollmentSecret());
+            Set<String> roles = user.getRoles();
+            writeVarint(out, roles == null ? 0 : roles.size() + 1);
+            if (roles != null) {
+                for (String role : roles) {
+                    writeString(out, role);
+                }
+            }
+            writeEnrollment(out, user.getEnrollment());
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Could not encode state of member %s", user.getName()), e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Decode a record written by {@link #encode} or a legacy hex encoded Java serialized one.
+     *
+     * @param record record bytes
+     * @return a detached user holding the decoded state
+     */
+    public static HyperUser decode(byte[] record) {
+        if (!isBinary(record)) {
+            return decodeLegacy(record);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 3, record.length - 3))) {
+            switch (record[2]) {
+                case VERSION_1:
+                    return decodeVersion1(in);
+                default:
+                    throw new IllegalStateException(String.format("Unsupported member record version %d", record[2]));
+            }
+        } catch (IOException | GeneralSecurityException | ClassNotFoundException e) {
+            throw new IllegalStateException("Could not decode member record", e);
+        }
+    }
+
+    /**
+     * @param record record bytes
+     * @return true if record is in the binary format, false for a legacy record
+     */
+    public static boolean isBinary(byte[] record) {
+        return record.length >= 3 && record[0] == MAGIC_0 && record[1] == MAGIC_1;
+    }
+
+    private static HyperUser decodeVersion1(DataInputStream in) throws IOException, GeneralSecurityException, ClassNotFoundException {
+        String name = readString(in);
+        String organization = readString(in);
+        String ca = readString(in);
+        String mspId = readString(in);
+        String account = readString(in);
+        String affiliation = readString(in);
+        String enrollmentSecret = readString(in);
+        Set<String> roles = readRoles(in);
+        Enrollment enrollment = readEnrollment(in);
+        return new HyperUser(name, organization, ca, mspId, account, affiliation, enrollmentSecret, roles, enrollment);
+    }
+
+    private static HyperUser decodeLegacy(byte[] record) {
+        byte[] serialized = Hex.decode(new String(record, StandardCharsets.US_ASCII));
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return (HyperUser) ois.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Could not decode legacy member record", e);
+        }
+    }
+
+    private static void writeEnrollment(DataOutputStream out, Enrollment enrollment) throws IOException {
+        if (enrollment == null) {
+            out.writeByte(ENROLLMENT_NONE);
+            return;
+        }
+        PrivateKey key = enrollment.getKey();
+        String cert = enrollment.getCert();
+        if (key == null || key.getEncoded() == null || cert == null) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+                oos.writeObject(enrollment);
+            }
+            out.writeByte(ENROLLMENT_SERIALIZED);
+            writeBytes(out, bos.toByteArray());
+            return;
+        }
+        byte[] der = toDer(cert);
+        out.writeByte(der != null ? ENROLLMENT_DER : ENROLLMENT_DER_KEY_TEXT_CERT);
+        writeString(out, key.getAlgorithm());
+        writeBytes(out, key.getEncoded());
+        if (der != null) {
+            writeBytes(out, der);
+        } else {
+            writeString(out, cert);
+        }
+    }
+
+    private static Enrollment readEnrollment(DataInputStream in) throws IOException, GeneralSecurityException, ClassNotFoundException {
+        byte kind = in.readByte();
+        switch (kind) {
+            case ENROLLMENT_NONE:
+                return null;
+            case ENROLLMENT_DER:
+            case ENROLLMENT_DER_KEY_TEXT_CERT:
+                String algorithm = readString(in);
+                PrivateKey key = KeyFactory.getInstance(algorithm, BouncyCastleProvider.PROVIDER_NAME)
+                        .generatePrivate(new PKCS8EncodedKeySpec(readBytes(in)));
+                String cert = kind == ENROLLMENT_DER ? toPem(readBytes(in)) : readString(in);
+                return new X509Enrollment(key, cert);
+            case ENROLLMENT_SERIALIZED:
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                    return (Enrollment) ois.readObject();
+                }
+            default:
+                throw new IOException(String.format("Unknown enrollment kind %d", kind));
+        }
+    }
+
+    private static Set<String> readRoles(DataInputStream in) throws IOException {
+        int count = readVarint(in) - 1;
+        if (count < 0) {
+            return null;
+        }
+        Set<String> roles = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            roles.add(readString(in));
+        }
+        return roles;
+    }
+
+    /**
+     * @return DER bytes of a single PEM certificate, or null if re-encoding them would not
+     * reproduce cert exactly
+     */
+    private static byte[] toDer(String cert) {
+        try (PemReader reader = new PemReader(new StringReader(cert))) {
+            PemObject pem = reader.readPemObject();
+            if (pem == null || !PEM_CERTIFICATE.equals(pem.getType()) || !pem.getHeaders().isEmpty()
+                    || !cert.equals(toPem(pem.getContent()))) {
+                return null;
+            }
+            return pem.getContent();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String toPem(byte[] der) throws IOException {
+        StringWriter writer = new StringWriter(der.length * 2);
+        try (PemWriter pemWriter = new PemWriter(writer)) {
+            pemWriter.writeObject(new PemObject(PEM_CERTIFICATE, der));
+        }
+        return writer.toString();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarint(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        writeVarint(out, value.length);
+        out.write(value);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarint(in)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -1,6 +1,11 @@
 package com.blockchain.model;
 
-import org.apache.commons.io.IOUtils;
+import com.blockchain.metrics.FabricMetrics;
+import com.blockchain.store.LogStructuredStoreBackend;
+import com.blockchain.store.PropertiesStoreBackend;
+import com.blockchain.store.ShardedStoreBackend;
+import com.blockchain.store.StoreBackend;
+import com.blockchain.store.StoreMigration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
@@ -10,26 +15,79 @@ import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.hyperledger.fabric.sdk.Enrollment;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.Security;
 import java.security.spec.InvalidKeySpecException;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Properties;
+import java.util.Objects;
 
 /**
  * A local file-based key value store.
+ * <p>
+ * Entries are kept by a {@link StoreBackend} chosen with {@code enrollment.store.engine}:
+ * {@code log} (default) for the memory-mapped {@link LogStructuredStoreBackend} or
+ * {@code properties} for the legacy {@link PropertiesStoreBackend}. When the log engine
+ * starts without segments next to an existing properties file, that file is migrated once.
+ * <p>
+ * With {@code enrollment.store.shards} above 1 the entries are hash-partitioned across that
+ * many backends of the chosen engine by {@link ShardedStoreBackend}; an existing unsharded store
+ * is copied into the shards once, and a store with another shard count is resharded on open.
+ * <p>
+ * Every read and write is recorded by {@link FabricMetrics}, with its duration and size.
  */
 public class Store {
 
-    private String file;
-    private Log logger = LogFactory.getLog(Store.class);
+    private static final String ENGINE_PROPERTIES = "properties";
+
+    private final StoreBackend backend;
+    private static final Log logger = LogFactory.getLog(Store.class);
 
     public Store(File file) {
+        this(openBackend(file));
+    }
 
-        this.file = file.getAbsolutePath();
+    public Store(StoreBackend backend) {
+        this.backend = backend;
+        Runtime.getRuntime().addShutdownHook(new Thread(backend::flush));
+    }
+
+    private static StoreBackend openBackend(File file) {
+        int shards = Config.getConfig().getStoreShards();
+        if (shards <= 1 && !ShardedStoreBackend.exists(file)) {
+            return openSingle(file);
+        }
+        try {
+            boolean unsharded = !ShardedStoreBackend.exists(file) && (LogStructuredStoreBackend.exists(file) || file.length() > 0);
+            return ShardedStoreBackend.open(file, Math.max(1, shards), Store::openSingle, unsharded ? openSingle(file) : null);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Could not open keyvalue store \"%s\", reason:%s",
+                    file, e.getMessage()), e);
+        }
+    }
+
+    private static StoreBackend openSingle(File file) {
+        Config config = Config.getConfig();
+        if (ENGINE_PROPERTIES.equalsIgnoreCase(config.getStoreEngine())) {
+            return new PropertiesStoreBackend(file, config.getStoreCompactThreshold());
+        }
+        try {
+            boolean migrate = !LogStructuredStoreBackend.exists(file) && file.length() > 0;
+            StoreBackend backend = new LogStructuredStoreBackend(file, config.getStoreCompactThreshold(),
+                    config.getStoreSyncInterval());
+            if (migrate) {
+                int count = StoreMigration.migrate(file, backend);
+                logger.info(String.format("Migrated %d entries from legacy store \"%s\"", count, file));
+            }
+            return backend;
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Could not open keyvalue store \"%s\", reason:%s",
+                    file, e.getMessage()), e);
+        }
     }
 
     /**
@@ -39,8 +97,8 @@ public class Store {
      * @return value associated with the name
      */
     public String getValue(String name) {
-        Properties properties = loadProperties();
-        return properties.getProperty(name);
+        byte[] value = getBytes(name);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
     }
 
     /**
@@ -50,23 +108,7 @@ public class Store {
      * @return true if it's present.
      */
     public boolean hasValue(String name) {
-        Properties properties = loadProperties();
-        return properties.containsKey(name);
-    }
-
-    private Properties loadProperties() {
-        Properties properties = new Properties();
-        try (InputStream input = new FileInputStream(file)) {
-            properties.load(input);
-            input.close();
-        } catch (FileNotFoundException e) {
-            logger.warn(String.format("Could not find the file \"%s\"", file));
-        } catch (IOException e) {
-            logger.warn(String.format("Could not load keyvalue store from file \"%s\", reason:%s",
-                    file, e.getMessage()));
-        }
-
-        return properties;
+        return backend.contains(name);
     }
 
     /**
@@ -76,20 +118,104 @@ public class Store {
      * @param value Value for the parameter
      */
     public void setValue(String name, String value) {
-        Properties properties = loadProperties();
-        try (
-                OutputStream output = new FileOutputStream(file)
-        ) {
-            properties.setProperty(name, value);
-            properties.store(output, "");
-            output.close();
+        setBytes(name, value.getBytes(StandardCharsets.UTF_8));
+    }
 
-        } catch (IOException e) {
-            logger.warn(String.format("Could not save the keyvalue store, reason:%s", e.getMessage()));
+    /**
+     * Get the raw bytes associated with name.
+     *
+     * @param name
+     * @return bytes associated with the name
+     */
+    public byte[] getBytes(String name) {
+        long start = System.nanoTime();
+        byte[] value = backend.get(name);
+        FabricMetrics.storeRead(start, value == null ? 0 : value.length);
+        return value;
+    }
+
+    /**
+     * Set the raw bytes associated with name.
+     *
+     * @param name  The name of the parameter
+     * @param value Bytes for the parameter
+     */
+    public void setBytes(String name, byte[] value) {
+        long start = System.nanoTime();
+        backend.put(name, value);
+        FabricMetrics.storeWrite(start, value.length);
+    }
+
+    /**
+     * Apply and save the changes of many users with a single store write.
+     *
+     * @param mutations mutations of users belonging to this store
+     * @return number of users which changed
+     */
+    public int commit(Collection<HyperUser.Mutation> mutations) {
+        Map<String, byte[]> records = new LinkedHashMap<>();
+        for (HyperUser.Mutation mutation : mutations) {
+            HyperUser user = mutation.getUser();
+            if (user.getKeyValStore() != this) {
+                throw new IllegalArgumentException(String.format("Member %s does not belong to this store", user.getName()));
+            }
+            if (mutation.apply()) {
+                records.put(user.getKeyValStoreName(), HyperUserCodec.encode(user));
+            }
         }
+        if (!records.isEmpty()) {
+            long start = System.nanoTime();
+            backend.putAll(records);
+            long bytes = 0;
+            for (byte[] record : records.values()) {
+                bytes += record.length;
+            }
+            FabricMetrics.storeWrite(start, bytes);
+        }
+        return records.size();
+    }
+
+    /**
+     * Remove the value associated with name.
+     *
+     * @param name The name of the parameter
+     */
+    public void removeValue(String name) {
+        backend.delete(name);
+    }
+
+    /**
+     * Block until every mutation accepted so far is durable.
+     */
+    public void flush() {
+        backend.flush();
+    }
+
+    /**
+     * @return the engine keeping the entries, a {@link ShardedStoreBackend} when sharded
+     */
+    public StoreBackend getBackend() {
+        return backend;
     }
 
-    private final Map<String, HyperUser> members = new HashMap<>();
+    private final UserCache members = new UserCache(Config.getConfig().getUserCacheMaxSize(),
+            Config.getConfig().getUserCacheTtl());
+
+    /**
+     * @return the cache of users handed out by this store
+     */
+    public UserCache getUserCache() {
+        return members;
+    }
+
+    private final CredentialCache credentials = new CredentialCache(Config.getConfig().getUserCacheMaxSize());
+
+    /**
+     * @return the cache of credentials parsed from key and certificate files
+     */
+    public CredentialCache getCredentialCache() {
+        return credentials;
+    }
 
     /**
      * Get the user with a given name
@@ -101,13 +227,15 @@ public class Store {
     public HyperUser getMember(String name, String org, String ca) {
 
         // Try to get the SampleUser state from the cache
-        HyperUser sampleUser = members.get(HyperUser.toKeyValStoreName(name, org, ca));
+        String key = HyperUser.toKeyValStoreName(name, org, ca);
+        HyperUser sampleUser = members.get(key);
         if (null != sampleUser) {
             return sampleUser;
         }
 
         // Create the SampleUser and try to restore it's state from the key value store (if found).
         sampleUser = new HyperUser(name, org, ca,this);
+        members.put(key, sampleUser);
 
         return sampleUser;
 
@@ -124,7 +252,7 @@ public class Store {
 
         // Try to get the SampleUser state from the cache
 
-        if (members.containsKey(HyperUser.toKeyValStoreName(name, org, ca))) {
+        if (members.get(HyperUser.toKeyValStoreName(name, org, ca)) != null) {
             return true;
         }
         return HyperUser.isStored(name, org, ca,this);
@@ -148,24 +276,36 @@ public class Store {
     public HyperUser getMember(String name, String org, String ca, String mspId, File privateKeyFile,
                                File certificateFile) throws IOException, NoSuchAlgorithmException, NoSuchProviderException, InvalidKeySpecException {
 
+        String key = HyperUser.toKeyValStoreName(name, org, ca);
+        // Watch before reading the files, a change made while they are read still
+        // invalidates the user cached below
+        members.watch(key, privateKeyFile, certificateFile);
+        boolean cached = false;
         try {
-            // Try to get the SampleUser state from the cache
-            HyperUser sampleUser = members.get(HyperUser.toKeyValStoreName(name, org, ca));
-            if (null != sampleUser) {
+            // The files are parsed again only if they changed, otherwise this is a stat of each
+            CredentialCache.Credentials parsed = credentials.get(privateKeyFile, certificateFile);
+
+            // Try to get the SampleUser state from the cache. A cached user may have been
+            // cached before its credential files were written or replaced, it is returned
+            // only while it holds the credentials of the files
+            HyperUser sampleUser = members.get(key);
+            if (null != sampleUser && parsed.matches(sampleUser.getEnrollment())
+                    && Objects.equals(mspId, sampleUser.getMspId())) {
+                cached = true;
                 return sampleUser;
             }
 
             // Create the SampleUser and try to restore it's state from the key value store (if found).
             sampleUser = new HyperUser(name, org, ca,this);
-            sampleUser.setMspId(mspId);
-
-            String certificate = new String(IOUtils.toByteArray(new FileInputStream(certificateFile)), "UTF-8");
 
-            PrivateKey privateKey = getPrivateKeyFromBytes(IOUtils.toByteArray(new FileInputStream(privateKeyFile)));
-
-            sampleUser.setEnrollment(new SampleStoreEnrollement(privateKey, certificate));
-
-            sampleUser.saveState();
+            // The store is written only if the files no longer match the stored enrollment
+            HyperUser.Mutation mutation = sampleUser.edit().setMspId(mspId);
+            if (!parsed.matches(sampleUser.getEnrollment())) {
+                mutation.setEnrollment(parsed.getEnrollment());
+            }
+            mutation.commit();
+            members.put(key, sampleUser);
+            cached = true;
 
             return sampleUser;
         } catch (IOException e) {
@@ -184,6 +324,10 @@ public class Store {
         } catch (ClassCastException e) {
             e.printStackTrace();
             throw e;
+        } finally {
+            if (!cached) {
+                members.unwatchIfAbsent(key);
+            }
         }
 
     }
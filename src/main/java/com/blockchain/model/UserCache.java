@@ -0,0 +1,224 @@
+package com.blockchain.model;
+
+import com.blockchain.metrics.FabricMetrics;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Bounded cache of {@link HyperUser} instances keyed by {@link HyperUser#toKeyValStoreName}.
+ * <p>
+ * Entries are evicted by size ({@code enrollment.cache.maxSize}) and by time since last
+ * access ({@code enrollment.cache.ttlSeconds}). A user built from credential files can be
+ * bound to them with {@link #watch}; any change in their directories invalidates it. A key
+ * stops being watched when it leaves the cache, and a directory no key needs any more is no
+ * longer watched.
+ */
+public class UserCache {
+
+    private static final Log logger = LogFactory.getLog(UserCache.class);
+
+    private final Cache<String, HyperUser> users;
+    /**
+     * watched directory -> its registration and the cache keys to invalidate when it changes
+     */
+    private final ConcurrentHashMap<Path, Watch> watched = new ConcurrentHashMap<>();
+    /**
+     * cache key -> directories watched for it
+     */
+    private final ConcurrentHashMap<String, Set<Path>> directories = new ConcurrentHashMap<>();
+    private volatile WatchService watchService;
+
+    public UserCache(long maxSize, long ttlSeconds) {
+        this.users = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .removalListener(this::removed)
+                .build();
+    }
+
+    public HyperUser get(String key) {
+        HyperUser user = users.getIfPresent(key);
+        FabricMetrics.cache("users", user != null);
+        return user;
+    }
+
+    public void put(String key, HyperUser user) {
+        users.put(key, user);
+    }
+
+    public void invalidate(String key) {
+        users.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        users.invalidateAll();
+    }
+
+    public long size() {
+        return users.size();
+    }
+
+    /**
+     * @return hit, miss and eviction counters since creation
+     */
+    public CacheStats stats() {
+        return users.stats();
+    }
+
+    /**
+     * Invalidate key as soon as anything changes in the directory of one of files. A symbolic
+     * link on the way to a file can be replaced without touching the directory it pointed to,
+     * so the directory holding such a link is watched as well.
+     * <p>
+     * Call it before reading the files, so that a change made while they are read is not
+     * missed, and call {@link #unwatchIfAbsent} if the user is not cached in the end. The key
+     * stops being watched when it leaves the cache.
+     *
+     * @param key   cache key
+     * @param files files the cached user was built from
+     */
+    public void watch(String key, File... files) {
+        for (File file : files) {
+            Path dir = file.getAbsoluteFile().toPath().getParent();
+            if (dir == null) {
+                continue;
+            }
+            watchDirectory(key, dir);
+            for (Path path = dir; path.getParent() != null; path = path.getParent()) {
+                if (Files.isSymbolicLink(path)) {
+                    watchDirectory(key, path.getParent());
+                }
+            }
+        }
+    }
+
+    private void watchDirectory(String key, Path dir) {
+        Watch watch = watched.compute(dir, (d, current) -> {
+            if (current == null) {
+                WatchKey watchKey = register(d);
+                if (watchKey == null) {
+                    return null;
+                }
+                current = new Watch(watchKey);
+            }
+            current.keys.add(key);
+            return current;
+        });
+        if (watch != null) {
+            directories.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(dir);
+        }
+    }
+
+    /**
+     * Stop watching for key unless it is cached, after {@link #watch} for a user that could
+     * not be loaded.
+     *
+     * @param key cache key
+     */
+    public void unwatchIfAbsent(String key) {
+        if (!users.asMap().containsKey(key)) {
+            unwatch(key);
+        }
+    }
+
+    private WatchKey register(Path dir) {
+        try {
+            return dir.register(watchService(), ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        } catch (IOException e) {
+            logger.warn(String.format("Could not watch \"%s\", reason:%s", dir, e.getMessage()));
+            return null;
+        }
+    }
+
+    private void removed(RemovalNotification<String, HyperUser> notification) {
+        // a replaced user is still cached under the same key, and an evicted key may already
+        // have been loaded again by the time the notification is delivered
+        if (notification.getCause() != RemovalCause.REPLACED && !users.asMap().containsKey(notification.getKey())) {
+            unwatch(notification.getKey());
+        }
+    }
+
+    /**
+     * Stop watching directories for key, cancelling the registration of every directory no
+     * other key needs.
+     */
+    private void unwatch(String key) {
+        Set<Path> dirs = directories.remove(key);
+        if (dirs == null) {
+            return;
+        }
+        for (Path dir : dirs) {
+            watched.computeIfPresent(dir, (d, watch) -> {
+                watch.keys.remove(key);
+                if (watch.keys.isEmpty()) {
+                    watch.watchKey.cancel();
+                    return null;
+                }
+                return watch;
+            });
+        }
+    }
+
+    private WatchService watchService() throws IOException {
+        if (watchService == null) {
+            synchronized (this) {
+                if (watchService == null) {
+                    WatchService service = FileSystems.getDefault().newWatchService();
+                    Thread thread = new Thread(() -> dispatch(service), "user-cache-watcher");
+                    thread.setDaemon(true);
+                    thread.start();
+                    watchService = service;
+                }
+            }
+        }
+        return watchService;
+    }
+
+    private void dispatch(WatchService service) {
+        while (true) {
+            WatchKey watchKey;
+            try {
+                watchKey = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            watchKey.pollEvents();
+            Path dir = (Path) watchKey.watchable();
+            Watch watch = watched.get(dir);
+            if (watch == null || watch.watchKey != watchKey) {
+                // cancelled, the directory may have been registered again since
+                watchKey.reset();
+                continue;
+            }
+            if (!watchKey.reset()) {
+                // the directory is gone, the next load registers it again
+                watched.remove(dir, watch);
+            }
+            users.invalidateAll(watch.keys);
+        }
+    }
+
+    private static final class Watch {
+        private final WatchKey watchKey;
+        private final Set<String> keys = ConcurrentHashMap.newKeySet();
+
+        private Watch(WatchKey watchKey) {
+            this.watchKey = watchKey;
+        }
+    }
+}
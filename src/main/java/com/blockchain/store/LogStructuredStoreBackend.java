@@ -0,0 +1,386 @@
+package com.blockchain.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured backend on a memory-mapped segment file.
+ * <p>
+ * Every put or delete appends one record to the active segment, an in-memory index maps
+ * each key to the position of its latest value. Record layout:
+ * <pre>
+ * int crc | int keyLength | int valueLength (-1 for a delete) | key (UTF-8) | value
+ * </pre>
+ * The CRC covers everything after itself. On open the segment is scanned and truncated
+ * at the first record which fails its CRC, so a torn write at the tail is dropped.
+ * <p>
+ * The mapping is forced to disk by a background task every sync interval (group commit)
+ * or on {@link #flush()}. Once overwritten records account for more than half of a
+ * segment larger than the compaction threshold, live records are copied into the next
+ * segment generation which then replaces the active one.
+ *
+ * @author shurenwei
+ */
+public class LogStructuredStoreBackend implements StoreBackend {
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    private final Log logger = LogFactory.getLog(LogStructuredStoreBackend.class);
+
+    private final File base;
+    private final long compactThreshold;
+    /**
+     * key -> (record position << 32 | record length)
+     */
+    private final ConcurrentHashMap<String, Long> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService background;
+
+    private long generation;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int writePosition;
+    private long deadBytes;
+    private volatile boolean dirty;
+
+    public LogStructuredStoreBackend(File base, long compactThreshold, long syncIntervalMs) throws IOException {
+        this.base = base.getAbsoluteFile();
+        this.compactThreshold = compactThreshold;
+        this.generation = latestGeneration();
+        open(segmentFile(generation));
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "store-segment-" + base.getName());
+            t.setDaemon(true);
+            return t;
+        });
+        background.scheduleWithFixedDelay(this::maintain, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param base store path, segments are written next to it
+     * @return true if a segment for base already exists
+     */
+    public static boolean exists(File base) {
+        File dir = base.getAbsoluteFile().getParentFile();
+        String[] names = dir == null ? null : dir.list((d, name) -> generationOf(base.getName(), name) >= 0);
+        return names != null && names.length > 0;
+    }
+
+    @Override
+    public byte[] get(String key) {
+        lock.readLock().lock();
+        try {
+            Long slot = index.get(key);
+            if (slot == null) {
+                return null;
+            }
+            ByteBuffer view = buffer.duplicate();
+            view.position(position(slot) + 4);
+            int keyLength = view.getInt();
+            byte[] value = new byte[view.getInt()];
+            view.position(view.position() + keyLength);
+            view.get(value);
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        append(key, value);
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> entries) {
+        lock.writeLock().lock();
+        try {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                append(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        if (index.containsKey(key)) {
+            append(key, null);
+        }
+    }
+
+    @Override
+    public void scan(String prefix, BiConsumer<String, byte[]> consumer) {
+        for (String key : index.keySet()) {
+            if (key.startsWith(prefix)) {
+                byte[] value = get(key);
+                if (value != null) {
+                    consumer.accept(key, value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            if (dirty) {
+                dirty = false;
+                buffer.force();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        background.shutdown();
+        flush();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn(String.format("Could not close the keyvalue store, reason:%s", e.getMessage()));
+        }
+    }
+
+    private void append(String key, byte[] value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int valueLength = value == null ? TOMBSTONE : value.length;
+        int length = HEADER_SIZE + keyBytes.length + Math.max(valueLength, 0);
+        lock.writeLock().lock();
+        try {
+            ensureCapacity(length);
+            int position = writePosition;
+            writeRecord(buffer, position, keyBytes, value);
+            writePosition += length;
+            Long previous = value == null ? index.remove(key) : index.put(key, slot(position, length));
+            deadBytes += previous == null ? 0 : length(previous);
+            if (value == null) {
+                deadBytes += length;
+            }
+            dirty = true;
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Could not write to the keyvalue store, reason:%s", e.getMessage()), e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void writeRecord(ByteBuffer target, int position, byte[] key, byte[] value) {
+        ByteBuffer view = target.duplicate();
+        view.position(position + 4);
+        view.putInt(key.length);
+        view.putInt(value == null ? TOMBSTONE : value.length);
+        view.put(key);
+        if (value != null) {
+            view.put(value);
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer body = target.duplicate();
+        body.position(position + 4);
+        body.limit(view.position());
+        crc.update(body);
+        target.putInt(position, (int) crc.getValue());
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (writePosition + length <= buffer.capacity()) {
+            return;
+        }
+        long capacity = buffer.capacity();
+        while (capacity < writePosition + (long) length) {
+            capacity *= 2;
+        }
+        if (capacity > Integer.MAX_VALUE) {
+            throw new IOException("segment is full");
+        }
+        buffer.force();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    /**
+     * Map the segment and rebuild the index from it.
+     */
+    private void open(File segment) throws IOException {
+        channel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long capacity = INITIAL_CAPACITY;
+        while (capacity < channel.size()) {
+            capacity *= 2;
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        index.clear();
+        deadBytes = 0;
+        int position = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER_SIZE <= buffer.capacity()) {
+            ByteBuffer view = buffer.duplicate();
+            view.position(position);
+            int checksum = view.getInt();
+            int keyLength = view.getInt();
+            int valueLength = view.getInt();
+            if (keyLength <= 0 || valueLength < TOMBSTONE) {
+                break;
+            }
+            int length = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            if (position + (long) length > buffer.capacity()) {
+                break;
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.position(position + 4);
+            body.limit(position + length);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                logger.warn(String.format("Dropping corrupt record at %d in \"%s\"", position, segment));
+                break;
+            }
+            byte[] keyBytes = new byte[keyLength];
+            view.get(keyBytes);
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+            Long previous = valueLength == TOMBSTONE ? index.remove(key) : index.put(key, slot(position, length));
+            deadBytes += previous == null ? 0 : length(previous);
+            if (valueLength == TOMBSTONE) {
+                deadBytes += length;
+            }
+            position += length;
+        }
+        writePosition = position;
+        // wipe the header of a torn tail so the next scan stops at the same place
+        for (int i = position; i + 4 <= Math.min(position + HEADER_SIZE, buffer.capacity()); i += 4) {
+            buffer.putInt(i, 0);
+        }
+    }
+
+    private void maintain() {
+        try {
+            flush();
+            if (writePosition > compactThreshold && deadBytes * 2 > writePosition) {
+                compact();
+            }
+        } catch (Exception e) {
+            logger.warn(String.format("Keyvalue store maintenance failed, reason:%s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Copy the live records into the next segment generation and switch over to it.
+     */
+    private void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            File next = segmentFile(generation + 1);
+            File tmp = new File(next.getPath() + ".tmp");
+            try (FileChannel target = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (Long slot : index.values()) {
+                    ByteBuffer record = buffer.duplicate();
+                    record.position(position(slot));
+                    record.limit(position(slot) + length(slot));
+                    while (record.hasRemaining()) {
+                        target.write(record);
+                    }
+                }
+                target.force(true);
+            }
+            Files.move(tmp.toPath(), next.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            File previous = segmentFile(generation);
+            buffer.force();
+            channel.close();
+            generation++;
+            open(next);
+            Files.deleteIfExists(previous.toPath());
+            logger.info(String.format("Compacted keyvalue store into \"%s\", %d live bytes", next, writePosition));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private long latestGeneration() {
+        File dir = base.getParentFile();
+        String[] names = dir.list((d, name) -> generationOf(base.getName(), name) >= 0);
+        long latest = 0;
+        if (names != null) {
+            for (String name : names) {
+                latest = Math.max(latest, generationOf(base.getName(), name));
+            }
+            // anything older is left over from an interrupted compaction
+            for (String name : names) {
+                if (generationOf(base.getName(), name) < latest) {
+                    new File(dir, name).delete();
+                }
+            }
+        }
+        return latest;
+    }
+
+    private File segmentFile(long generation) {
+        return new File(base.getPath() + "." + generation + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * @return the generation of a segment named {@code <baseName>.<generation>.seg}, or -1
+     */
+    private static long generationOf(String baseName, String name) {
+        if (!name.startsWith(baseName + ".") || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        String generation = name.substring(baseName.length() + 1, name.length() - SEGMENT_SUFFIX.length());
+        if (generation.isEmpty() || !generation.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Long.parseLong(generation);
+    }
+
+    private static long slot(int position, int length) {
+        return ((long) position << 32) | (length & 0xffffffffL);
+    }
+
+    private static int position(long slot) {
+        return (int) (slot >>> 32);
+    }
+
+    private static int length(long slot) {
+        return (int) slot;
+    }
+
+    @Override
+    public String toString() {
+        lock.readLock().lock();
+        try {
+            return String.format("LogStructuredStoreBackend{segment=%s, keys=%d, bytes=%d, dead=%d}",
+                    segmentFile(generation), index.size(), writePosition, deadBytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.blockchain.store;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Legacy {@link java.util.Properties} file backend.
+ * <p>
+ * The whole store is loaded once into an in-memory index, reads never touch the disk.
+ * Mutations are appended to a journal file next to the store file by a background
+ * writer which commits every pending record in one write (group commit); once the
+ * journal grows past the compaction threshold it is folded back into the properties
+ * file and truncated. A batch which cannot be appended stays pending and is retried;
+ * {@link #flush()} reports the failure instead of returning as if it were durable.
+ * <p>
+ * Printable ASCII values are stored as they are, which leaves the hex values written by
+ * older versions unchanged; any other value is stored Base64 encoded behind a prefix.
+ *
+ * @author shurenwei
+ */
+public class PropertiesStoreBackend implements StoreBackend {
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+    /**
+     * journal key prefix marking a deleted entry, never a valid user key
+     */
+    private static final String TOMBSTONE = "\u0000deleted.";
+    /**
+     * value prefix of a Base64 encoded binary value, never produced by a printable one
+     */
+    private static final String BINARY = "base64:";
+    private static final long MIN_RETRY_MS = 100;
+    private static final long MAX_RETRY_MS = 5000;
+
+    private final Log logger = LogFactory.getLog(PropertiesStoreBackend.class);
+
+    private final File file;
+    private final File journalFile;
+    private final long compactThreshold;
+    private final ConcurrentHashMap<String, String> index = new ConcurrentHashMap<>();
+    private final BlockingQueue<String> pending = new LinkedBlockingQueue<>();
+    private final AtomicLong appended = new AtomicLong();
+    private long committed = 0;
+    private final Object commitLock = new Object();
+    /**
+     * reason the pending batch could not be appended, null once it was
+     */
+    private volatile IOException failure;
+    private final Thread writer;
+
+    public PropertiesStoreBackend(File file, long compactThreshold) {
+        this.file = file.getAbsoluteFile();
+        this.journalFile = new File(this.file.getPath() + JOURNAL_SUFFIX);
+        this.compactThreshold = compactThreshold;
+        replay(this.file);
+        // replay the journal over the last snapshot, later records win
+        replay(journalFile);
+        writer = new Thread(this::writeBehind, "store-journal-" + file.getName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        String value = index.get(key);
+        return value == null ? null : toBytes(value);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        String str = toText(value);
+        // the record is queued while the mapping is locked, so concurrent puts of one key
+        // reach the journal in the order they reached the index; the index must be updated
+        // before the record is queued, see compact()
+        index.compute(key, (k, previous) -> {
+            append(escape(key, true) + "=" + escape(str, false) + "\n");
+            return str;
+        });
+    }
+
+    @Override
+    public void putAll(Map<String, byte[]> entries) {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void delete(String key) {
+        index.computeIfPresent(key, (k, previous) -> {
+            append(escape(TOMBSTONE + key, true) + "=\n");
+            return null;
+        });
+    }
+
+    @Override
+    public void scan(String prefix, BiConsumer<String, byte[]> consumer) {
+        for (Map.Entry<String, String> entry : index.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                consumer.accept(entry.getKey(), toBytes(entry.getValue()));
+            }
+        }
+    }
+
+    /**
+     * Block until every record queued so far has been written to the journal.
+     *
+     * @throws IllegalStateException if the journal could not be written, the records stay
+     *                               pending and the writer keeps retrying them
+     */
+    @Override
+    public void flush() {
+        long target = appended.get();
+        synchronized (commitLock) {
+            while (committed < target) {
+                IOException reason = failure;
+                if (reason != null) {
+                    throw new IllegalStateException(String.format("Could not write to the keyvalue store journal, reason:%s", reason.getMessage()), reason);
+                }
+                if (!writer.isAlive()) {
+                    throw new IllegalStateException("Could not write to the keyvalue store journal, the writer has stopped");
+                }
+                try {
+                    commitLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            flush();
+        } finally {
+            writer.interrupt();
+        }
+    }
+
+    private void append(String record) {
+        pending.add(record);
+        appended.incrementAndGet();
+    }
+
+    private static String toText(byte[] value) {
+        for (byte b : value) {
+            if (b < 0x20 || b > 0x7e) {
+                return BINARY + Base64.getEncoder().encodeToString(value);
+            }
+        }
+        String text = new String(value, StandardCharsets.US_ASCII);
+        return text.startsWith(BINARY) ? BINARY + Base64.getEncoder().encodeToString(value) : text;
+    }
+
+    private static byte[] toBytes(String text) {
+        if (text.startsWith(BINARY)) {
+            return Base64.getDecoder().decode(text.substring(BINARY.length()));
+        }
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Apply a properties file to the index in file order so a tombstone only removes
+     * the records written before it.
+     */
+    private void replay(File source) {
+        if (!source.exists()) {
+            return;
+        }
+        Properties replay = new Properties() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public synchronized Object put(Object key, Object value) {
+                String name = (String) key;
+                if (name.startsWith(TOMBSTONE)) {
+                    index.remove(name.substring(TOMBSTONE.length()));
+                } else {
+                    index.put(name, (String) value);
+                }
+                return null;
+            }
+        };
+        try (InputStream input = new FileInputStream(source)) {
+            replay.load(input);
+        } catch (FileNotFoundException e) {
+            logger.warn(String.format("Could not find the file \"%s\"", source));
+        } catch (IOException e) {
+            logger.warn(String.format("Could not load keyvalue store from file \"%s\", reason:%s",
+                    source, e.getMessage()));
+        }
+    }
+
+    private void writeBehind() {
+        List<String> batch = new ArrayList<>();
+        long backoff = MIN_RETRY_MS;
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    batch.add(pending.take());
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch);
+            StringBuilder records = new StringBuilder();
+            for (String record : batch) {
+                records.append(record);
+            }
+            long length = journalFile.length();
+            try (OutputStream output = new FileOutputStream(journalFile, true)) {
+                output.write(records.toString().getBytes(StandardCharsets.ISO_8859_1));
+            } catch (IOException e) {
+                // keep the batch, later records are appended behind it on the next attempt
+                logger.warn(String.format("Could not append to the keyvalue store journal, retrying in %d ms, reason:%s", backoff, e.getMessage()));
+                truncate(length);
+                synchronized (commitLock) {
+                    failure = e;
+                    commitLock.notifyAll();
+                }
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_RETRY_MS);
+                continue;
+            }
+            backoff = MIN_RETRY_MS;
+            if (journalFile.length() > compactThreshold) {
+                compact();
+            }
+            synchronized (commitLock) {
+                failure = null;
+                committed += batch.size();
+                commitLock.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Cut a partially appended batch off the journal so its retry does not continue a torn line.
+     */
+    private void truncate(long length) {
+        try (RandomAccessFile journal = new RandomAccessFile(journalFile, "rw")) {
+            if (journal.length() > length) {
+                journal.setLength(length);
+            }
+        } catch (IOException e) {
+            logger.warn(String.format("Could not truncate the keyvalue store journal, reason:%s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Fold the journal into a fresh snapshot of the store file.
+     * Only called from the writer thread. A record missed by the snapshot iteration
+     * is still queued and lands in the new journal, so nothing is lost.
+     */
+    private void compact() {
+        Properties properties = new Properties();
+        properties.putAll(index);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream output = new FileOutputStream(tmp)) {
+            properties.store(output, "");
+        } catch (IOException e) {
+            logger.warn(String.format("Could not compact the keyvalue store, reason:%s", e.getMessage()));
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            new FileOutputStream(journalFile).close();
+        } catch (IOException e) {
+            logger.warn(String.format("Could not compact the keyvalue store, reason:%s", e.getMessage()));
+        }
+    }
+
+    /**
+     * Escape a key or value the same way {@link Properties#store} does so the journal
+     * can be replayed with {@link Properties#load}.
+     */
+    private static String escape(String s, boolean isKey) {
+        StringBuilder out = new StringBuilder(s.length() + 16);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case ' ':
+                    out.append(i == 0 || isKey ? "\\ " : " ");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                case '\\':
+                case '=':
+                case ':':
+                case '#':
+                case '!':
+                    out.append('\\').append(c);
+                    break;
+                default:
+                    if (c < 0x0020 || c > 0x007e) {
+                        out.append(String.format("\\u%04X", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,482 @@
+package com.blockchain.store;
+
+import com.google.common.hash.Hashing;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Backend which hash-partitions keys across N independent shard backends.
+ * <p>
+ * Each shard is a complete backend of the configured engine with its own files, lock and
+ * write path, so writes for users in different shards never wait for each other. Shard
+ * {@code i} of {@code n} lives at {@code <base>.shard-<n>-<i>}; the shard count is part of
+ * the name so a new layout never collides with the old one while resharding, nor with the
+ * segments of an unsharded store at {@code <base>}. The current count is recorded in
+ * {@code <base>.shards}, which is replaced atomically once a layout is complete.
+ * <p>
+ * {@link #reshard(int)} runs online. Writes go to both layouts while every old shard is
+ * copied in turn under its exclusive lock, which only holds back writes to that shard for
+ * the duration of its copy. Reads and scans are served from the old layout until the switch.
+ * A layout left behind by an interrupted reshard is deleted on the next open.
+ *
+ * @author shurenwei
+ */
+public class ShardedStoreBackend implements StoreBackend {
+
+    private static final Log logger = LogFactory.getLog(ShardedStoreBackend.class);
+
+    private static final String MARKER_SUFFIX = ".shards";
+    private static final String SHARD_INFIX = ".shard-";
+
+    /**
+     * Opens the backend of one shard.
+     */
+    public interface ShardFactory {
+        StoreBackend open(File shardBase) throws IOException;
+    }
+
+    private static final class Shard {
+        private final StoreBackend backend;
+        /**
+         * Shared by readers and writers, exclusive while the shard is copied or the layout switches.
+         */
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private Shard(StoreBackend backend) {
+            this.backend = backend;
+        }
+    }
+
+    private static final class Layout {
+        private final Shard[] shards;
+
+        private Layout(Shard[] shards) {
+            this.shards = shards;
+        }
+
+        private int indexOf(String key) {
+            return Math.floorMod(Hashing.murmur3_32().hashString(key, StandardCharsets.UTF_8).asInt(), shards.length);
+        }
+
+        private Shard shard(String key) {
+            return shards[indexOf(key)];
+        }
+    }
+
+    private final File base;
+    private final ShardFactory factory;
+    private volatile Layout layout;
+    /**
+     * Layout being filled by {@link #reshard(int)}, receives every write as well.
+     */
+    private volatile Layout next;
+
+    private ShardedStoreBackend(File base, ShardFactory factory, Layout layout) {
+        this.base = base;
+        this.factory = factory;
+        this.layout = layout;
+    }
+
+    /**
+     * Open the sharded store at base, creating it if needed.
+     *
+     * @param base        store path, shard files are created next to it
+     * @param shards      wanted shard count, the store is resharded if it has another count
+     * @param factory     opens one shard
+     * @param unsharded   existing unsharded backend at base whose entries are copied into a new
+     *                    sharded store, or {@code null}; it is closed afterwards and its files are left untouched
+     * @return the open store
+     * @throws IOException if a shard can not be opened
+     */
+    public static ShardedStoreBackend open(File base, int shards, ShardFactory factory, StoreBackend unsharded) throws IOException {
+        base = base.getAbsoluteFile();
+        int current = shardCount(base);
+        boolean created = current <= 0;
+        if (created) {
+            current = shards;
+        }
+        deleteOtherLayouts(base, current);
+        ShardedStoreBackend store = new ShardedStoreBackend(base, factory, openLayout(base, current, factory));
+        if (created) {
+            if (unsharded != null) {
+                int[] count = {0};
+                unsharded.scan("", (key, value) -> {
+                    store.put(key, value);
+                    count[0]++;
+                });
+                unsharded.close();
+                logger.info(String.format("Copied %d entries of the unsharded store \"%s\" into %d shards", count[0], base, current));
+            }
+            store.flush();
+            writeShardCount(base, current);
+        } else if (unsharded != null) {
+            unsharded.close();
+        }
+        if (current != shards) {
+            store.reshard(shards);
+        }
+        return store;
+    }
+
+    /**
+     * @param base store path
+     * @return true if a sharded store exists at base
+     */
+    public static boolean exists(File base) {
+        return new File(base.getAbsoluteFile().getPath() + MARKER_SUFFIX).isFile();
+    }
+
+    /**
+     * Move every entry into a layout of another shard count while the store stays in use.
+     * Only one reshard may run at a time.
+     *
+     * @param shards new shard count
+     * @throws IOException if the new layout can not be written, the current one stays in use
+     */
+    public synchronized void reshard(int shards) throws IOException {
+        Layout from = layout;
+        if (shards < 1 || shards == from.shards.length) {
+            return;
+        }
+        long start = System.nanoTime();
+        Layout to = openLayout(base, shards, factory);
+        next = to;
+        try {
+            for (Shard shard : from.shards) {
+                Lock lock = shard.lock.writeLock();
+                lock.lock();
+                try {
+                    Map<Integer, Map<String, byte[]>> batches = new HashMap<>();
+                    shard.backend.scan("", (key, value) ->
+                            batches.computeIfAbsent(to.indexOf(key), i -> new LinkedHashMap<>()).put(key, value));
+                    for (Map.Entry<Integer, Map<String, byte[]>> batch : batches.entrySet()) {
+                        to.shards[batch.getKey()].backend.putAll(batch.getValue());
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            for (Shard shard : to.shards) {
+                shard.backend.flush();
+            }
+            writeShardCount(base, shards);
+        } catch (IOException | RuntimeException e) {
+            switchLayout(from, from);
+            closeLayout(to);
+            deleteLayout(base, shards);
+            throw e;
+        }
+        switchLayout(from, to);
+        closeLayout(from);
+        deleteLayout(base, from.shards.length);
+        logger.info(String.format("Resharded keyvalue store \"%s\" from %d to %d shards in %d ms", base,
+                from.shards.length, shards, (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Make target the current layout and stop writing to the pending one. Every lock of the
+     * current layout is held, so once this returns no reader or writer uses a layout other than target.
+     */
+    private void switchLayout(Layout current, Layout target) {
+        for (Shard shard : current.shards) {
+            shard.lock.writeLock().lock();
+        }
+        try {
+            layout = target;
+            next = null;
+        } finally {
+            for (Shard shard : current.shards) {
+                shard.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public byte[] get(String key) {
+        while (true) {
+            Layout current = layout;
+            Shard shard = current.shard(key);
+            Lock lock = shard.lock.readLock();
+            lock.lock();
+            try {
+                if (current == layout) {
+                    return shard.backend.get(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        while (true) {
+            Layout current = layout;
+            Shard shard = current.shard(key);
+            Lock lock = shard.lock.readLock();
+            lock.lock();
+            try {
+                if (current == layout) {
+                    return shard.backend.contains(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void put(String key, byte[] value) {
+        write(key, value);
+    }
+
+    @Override
+    public void delete(String key) {
+        write(key, null);
+    }
+
+    private void write(String key, byte[] value) {
+        while (true) {
+            Layout current = layout;
+            Shard shard = current.shard(key);
+            Lock lock = shard.lock.readLock();
+            lock.lock();
+            try {
+                if (current != layout) {
+                    continue;
+                }
+                apply(shard.backend, key, value);
+                Layout pending = next;
+                if (pending != null) {
+                    apply(pending.shard(key).backend, key, value);
+                }
+                return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static void apply(StoreBackend backend, String key, byte[] value) {
+        if (value == null) {
+            backend.delete(key);
+        } else {
+            backend.put(key, value);
+        }
+    }
+
+    /**
+     * Entries are grouped by shard, each group is written with one {@link StoreBackend#putAll}.
+     */
+    @Override
+    public void putAll(Map<String, byte[]> entries) {
+        while (true) {
+            Layout current = layout;
+            Map<Integer, Map<String, byte[]>> batches = new HashMap<>();
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                batches.computeIfAbsent(current.indexOf(entry.getKey()), i -> new LinkedHashMap<>()).put(entry.getKey(), entry.getValue());
+            }
+            // all locks of the batch are held so a reshard can not switch layouts half way
+            Lock[] locks = new Lock[current.shards.length];
+            for (int i = 0; i < locks.length; i++) {
+                if (batches.containsKey(i)) {
+                    locks[i] = current.shards[i].lock.readLock();
+                    locks[i].lock();
+                }
+            }
+            try {
+                if (current != layout) {
+                    continue;
+                }
+                for (Map.Entry<Integer, Map<String, byte[]>> batch : batches.entrySet()) {
+                    current.shards[batch.getKey()].backend.putAll(batch.getValue());
+                }
+                Layout pending = next;
+                if (pending != null) {
+                    for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                        pending.shard(entry.getKey()).backend.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                return;
+            } finally {
+                for (Lock lock : locks) {
+                    if (lock != null) {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Visits the shards one after another. Every key lives in exactly one shard, so the merged
+     * result holds no duplicates. A reshard waits until the scan is done.
+     */
+    @Override
+    public void scan(String prefix, BiConsumer<String, byte[]> consumer) {
+        forEachShard(backend -> backend.scan(prefix, consumer));
+    }
+
+    @Override
+    public void flush() {
+        forEachShard(StoreBackend::flush);
+    }
+
+    /**
+     * Run action on every shard of the current layout while holding all of their shared locks.
+     */
+    private void forEachShard(Consumer<StoreBackend> action) {
+        while (true) {
+            Layout current = layout;
+            for (Shard shard : current.shards) {
+                shard.lock.readLock().lock();
+            }
+            try {
+                if (current != layout) {
+                    continue;
+                }
+                for (Shard shard : current.shards) {
+                    action.accept(shard.backend);
+                }
+                return;
+            } finally {
+                for (Shard shard : current.shards) {
+                    shard.lock.readLock().unlock();
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeLayout(layout);
+    }
+
+    /**
+     * @return the current shard count
+     */
+    public int getShardCount() {
+        return layout.shards.length;
+    }
+
+    private static Layout openLayout(File base, int count, ShardFactory factory) throws IOException {
+        Shard[] shards = new Shard[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                shards[i] = new Shard(factory.open(shardBase(base, count, i)));
+            }
+        } catch (IOException | RuntimeException e) {
+            closeLayout(new Layout(shards));
+            throw e;
+        }
+        return new Layout(shards);
+    }
+
+    private static void closeLayout(Layout layout) {
+        for (Shard shard : layout.shards) {
+            if (shard != null) {
+                shard.backend.close();
+            }
+        }
+    }
+
+    private static File shardBase(File base, int count, int index) {
+        return new File(base.getPath() + SHARD_INFIX + count + "-" + index);
+    }
+
+    /**
+     * @return the recorded shard count, or 0 if there is no sharded store at base
+     */
+    private static int shardCount(File base) throws IOException {
+        File marker = new File(base.getPath() + MARKER_SUFFIX);
+        if (!marker.isFile()) {
+            return 0;
+        }
+        String count = new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim();
+        try {
+            return Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("Invalid shard count \"%s\" in \"%s\"", count, marker));
+        }
+    }
+
+    private static void writeShardCount(File base, int count) throws IOException {
+        File marker = new File(base.getPath() + MARKER_SUFFIX);
+        File tmp = new File(marker.getPath() + ".tmp");
+        Files.write(tmp.toPath(), Integer.toString(count).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp.toPath(), marker.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * @return the shard count of a file belonging to a layout of base, or -1
+     */
+    private static int layoutOf(String baseName, String name) {
+        String prefix = baseName + SHARD_INFIX;
+        if (!name.startsWith(prefix)) {
+            return -1;
+        }
+        String rest = name.substring(prefix.length());
+        int dash = rest.indexOf('-');
+        if (dash <= 0 || !rest.substring(0, dash).chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        // the shard index is followed by the end of the name or by the suffix of the shard engine
+        int end = dash + 1;
+        while (end < rest.length() && Character.isDigit(rest.charAt(end))) {
+            end++;
+        }
+        if (end == dash + 1 || (end < rest.length() && rest.charAt(end) != '.')) {
+            return -1;
+        }
+        return Integer.parseInt(rest.substring(0, dash));
+    }
+
+    private static void deleteOtherLayouts(File base, int keep) {
+        File dir = base.getParentFile();
+        String[] names = dir.list((d, name) -> {
+            int count = layoutOf(base.getName(), name);
+            return count >= 0 && count != keep;
+        });
+        if (names != null && names.length > 0) {
+            logger.warn(String.format("Deleting %d files of an interrupted reshard of \"%s\"", names.length, base));
+            for (String name : names) {
+                new File(dir, name).delete();
+            }
+        }
+    }
+
+    private static void deleteLayout(File base, int count) {
+        File dir = base.getParentFile();
+        String[] names = dir.list((d, name) -> layoutOf(base.getName(), name) == count);
+        if (names != null) {
+            for (String name : names) {
+                new File(dir, name).delete();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        Layout current = layout;
+        StringBuilder shards = new StringBuilder();
+        for (Shard shard : current.shards) {
+            shards.append(shards.length() == 0 ? "" : ", ").append(shard.backend);
+        }
+        return String.format("ShardedStoreBackend{base=%s, shards=%d, resharding=%s, [%s]}", base,
+                current.shards.length, next != null, shards);
+    }
+}
@@ -0,0 +1,76 @@
+package com.blockchain.store;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * 登记用户存储引擎
+ * <p>
+ * Keys are the names produced by {@link com.blockchain.model.HyperUser#toKeyValStoreName},
+ * values are opaque bytes. Implementations must be safe for concurrent use.
+ *
+ * @author shurenwei
+ */
+public interface StoreBackend extends Closeable {
+
+    /**
+     * Get the value associated with key.
+     *
+     * @param key
+     * @return the value or {@code null} if absent
+     */
+    byte[] get(String key);
+
+    /**
+     * Associate value with key, replacing any previous value.
+     *
+     * @param key
+     * @param value
+     */
+    void put(String key, byte[] value);
+
+    /**
+     * Associate every value with its key in one write where the engine supports it.
+     *
+     * @param entries key to value
+     */
+    default void putAll(Map<String, byte[]> entries) {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param key
+     * @return true if a value is present for key
+     */
+    boolean contains(String key);
+
+    /**
+     * Remove the value associated with key, if any.
+     *
+     * @param key
+     */
+    void delete(String key);
+
+    /**
+     * Visit every entry whose key starts with prefix. The iteration is weakly consistent,
+     * entries written while scanning may or may not be visited.
+     *
+     * @param prefix   key prefix, empty for all entries
+     * @param consumer receives key and value
+     */
+    void scan(String prefix, BiConsumer<String, byte[]> consumer);
+
+    /**
+     * Block until every mutation accepted so far is durable.
+     */
+    void flush();
+
+    /**
+     * Flush and release resources.
+     */
+    @Override
+    void close();
+}
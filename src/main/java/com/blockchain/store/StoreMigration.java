@@ -0,0 +1,71 @@
+package com.blockchain.store;
+
+import com.blockchain.model.Config;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One-shot migration of a legacy properties store into another backend.
+ * <p>
+ * Usage: {@code StoreMigration <properties file> [target base path]}, the target defaults
+ * to the properties file itself so the log segments are created next to it. The legacy
+ * file is left untouched.
+ *
+ * @author shurenwei
+ */
+public class StoreMigration {
+
+    private static final Log logger = LogFactory.getLog(StoreMigration.class);
+
+    private StoreMigration() {
+    }
+
+    /**
+     * Copy every entry of a legacy properties store into target and flush it.
+     *
+     * @param legacy properties file written by {@link PropertiesStoreBackend} or older versions
+     * @param target backend to fill
+     * @return number of migrated entries
+     * @throws IOException if the legacy file can not be read
+     */
+    public static int migrate(File legacy, StoreBackend target) throws IOException {
+        if (!legacy.isFile()) {
+            throw new IOException(String.format("Could not find the file \"%s\"", legacy));
+        }
+        // the legacy backend also replays a journal left next to the file
+        PropertiesStoreBackend source = new PropertiesStoreBackend(legacy, Long.MAX_VALUE);
+        int[] count = {0};
+        try {
+            source.scan("", (key, value) -> {
+                target.put(key, value);
+                count[0]++;
+            });
+        } finally {
+            source.close();
+        }
+        target.flush();
+        return count[0];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: StoreMigration <properties file> [target base path]");
+            System.exit(1);
+        }
+        File legacy = new File(args[0]);
+        File base = new File(args.length > 1 ? args[1] : args[0]);
+        if (LogStructuredStoreBackend.exists(base)) {
+            System.err.println("Target store already exists: " + base);
+            System.exit(1);
+        }
+        Config config = Config.getConfig();
+        try (StoreBackend target = new LogStructuredStoreBackend(base, config.getStoreCompactThreshold(),
+                config.getStoreSyncInterval())) {
+            int count = migrate(legacy, target);
+            logger.info(String.format("Migrated %d entries from \"%s\" into %s", count, legacy, target));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.blockchain.utils;
+
+import com.blockchain.exception.MyException;
+import com.blockchain.metrics.FabricMetrics;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.hyperledger.fabric_ca.sdk.HFCACertificateResponse;
+import org.hyperledger.fabric_ca.sdk.HFCACredential;
+import org.hyperledger.fabric_ca.sdk.HFCAX509Certificate;
+import org.hyperledger.fabric_ca.sdk.exception.HFCACertificateException;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Admin证书缓存
+ * <p>
+ * 按(网络配置版本, CA, Registrar)缓存MSP中admincerts/cert.pem的内容, 所有证书预先拼接为一个数组,
+ * 写入时一次写出. Registrar的证书很少变化, 过期前不再请求CA; 网络配置重新加载后使用新的缓存项.
+ * 同一缓存项并发未命中时只请求CA一次, 其余请求等待其结果. CA按请求者的身份和隶属关系过滤返回的证书,
+ * 空列表只对该请求者有效, 不缓存, 等待它的其他请求各自再请求CA
+ *
+ * @author shurenwei
+ */
+public class AdminCertsCache {
+
+    /**
+     * 向CA获取Admin证书
+     */
+    public interface Loader {
+        HFCACertificateResponse load() throws MyException, HFCACertificateException;
+    }
+
+    private static final class Key {
+        private final long version;
+        private final String ca;
+        private final String registrar;
+
+        private Key(long version, String ca, String registrar) {
+            this.version = version;
+            this.ca = ca;
+            this.registrar = registrar;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return version == key.version && ca.equals(key.ca) && registrar.equals(key.registrar);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(version, ca, registrar);
+        }
+    }
+
+    /**
+     * 不缓存的结果, 只交给请求CA的调用方
+     */
+    private static final class Uncached extends Exception {
+        private final byte[] bundle;
+
+        private Uncached(byte[] bundle) {
+            super(null, null, false, false);
+            this.bundle = bundle;
+        }
+    }
+
+    private final Cache<Key, byte[]> bundles;
+
+    /**
+     * @param ttlSeconds 缓存时间(秒)
+     */
+    public AdminCertsCache(long ttlSeconds) {
+        this.bundles = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 获取Admin证书, 缓存不存在或过期时请求CA
+     * @param network 请求所用的网络配置快照
+     * @param ca CA名称
+     * @param registrar Registrar名称
+     * @param loader 向CA获取Admin证书
+     * @return 拼接后的证书, 不要修改
+     * @throws MyException
+     * @throws HFCACertificateException 获取Admin证书失败
+     */
+    public byte[] get(NetworkSnapshot network, String ca, String registrar, Loader loader) throws MyException, HFCACertificateException {
+        Key key = new Key(network.getVersion(), ca, registrar);
+        AtomicBoolean loaded = new AtomicBoolean();
+        try {
+            byte[] bundle = bundles.get(key, () -> {
+                loaded.set(true);
+                byte[] fetched = bundle(loader.load());
+                if (fetched == null || fetched.length == 0) {
+                    throw new Uncached(fetched);
+                }
+                return fetched;
+            });
+            FabricMetrics.cache("admincerts", !loaded.get());
+            return bundle;
+        } catch (ExecutionException e) {
+            FabricMetrics.cache("admincerts", false);
+            Throwable cause = e.getCause();
+            if (cause instanceof Uncached) {
+                // 其他请求者得到的空列表不适用于本请求
+                return loaded.get() ? ((Uncached) cause).bundle : bundle(loader.load());
+            }
+            if (cause instanceof MyException) {
+                throw (MyException) cause;
+            }
+            if (cause instanceof HFCACertificateException) {
+                throw (HFCACertificateException) cause;
+            }
+            throw new HFCACertificateException("获取Admin证书异常", (Exception) cause);
+        } catch (UncheckedExecutionException e) {
+            FabricMetrics.cache("admincerts", false);
+            Throwables.throwIfUnchecked(e.getCause());
+            throw e;
+        }
+    }
+
+    /**
+     * Registrar重新登记等导致证书变化时使缓存失效
+     * @param ca CA名称
+     * @param registrar Registrar名称
+     */
+    public void invalidate(String ca, String registrar) {
+        bundles.asMap().keySet().removeIf(key -> key.ca.equals(ca) && key.registrar.equals(registrar));
+    }
+
+    public void invalidateAll() {
+        bundles.invalidateAll();
+    }
+
+    /**
+     * 把CA返回的证书拼接为admincerts/cert.pem的内容
+     * @param response CA返回的证书, 可以为null
+     * @return 拼接后的证书, response为null时为null
+     */
+    public static byte[] bundle(HFCACertificateResponse response) {
+        if (response == null) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (HFCACredential c : response.getCerts()) {
+            byte[] pem = ((HFCAX509Certificate) c).getPEM().getBytes();
+            out.write(pem, 0, pem.length);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return "AdminCertsCache{" + bundles.stats() + "}";
+    }
+}
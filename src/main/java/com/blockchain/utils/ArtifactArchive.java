@@ -0,0 +1,114 @@
+package com.blockchain.utils;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 把内存中的证书目录直接写为zip或tar流, 不经过磁盘
+ * <p>
+ * 每次{@link #add}写完一个目录的全部条目, 调用方可以逐个构造、逐个写入, 内存中只保留当前目录;
+ * {@link #close}只结束归档, 不关闭调用方的输出流. 只在全部内容写完后调用close, 中途失败时调用{@link #abort},
+ * 接收方能看出内容不完整, 而不是得到一个缺少部分条目却格式完好的归档
+ *
+ * @author shurenwei
+ */
+public class ArtifactArchive implements Closeable {
+
+    /**
+     * 归档格式
+     */
+    public enum Format {
+        ZIP, TAR
+    }
+
+    private static final int FILE_MODE = 0100644;
+    private static final int KEY_MODE = 0100600;
+    /** 中途失败时写入的tar条目名 */
+    private static final String ABORTED = "EXPORT-ABORTED";
+
+    private final Format format;
+    private final ZipOutputStream zip;
+    private final TarArchiveOutputStream tar;
+
+    /**
+     * @param out 调用方的输出流
+     * @param format 归档格式
+     */
+    public ArtifactArchive(OutputStream out, Format format) {
+        this.format = format;
+        if (format == Format.ZIP) {
+            zip = new ZipOutputStream(out);
+            tar = null;
+        } else {
+            zip = null;
+            tar = new TarArchiveOutputStream(out);
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        }
+    }
+
+    /**
+     * 写入一个证书目录, 条目名为 prefix/目录名/相对路径
+     * @param prefix 条目前缀, 如用户名
+     * @param tree 证书目录
+     * @throws IOException
+     */
+    public void add(String prefix, ArtifactTree tree) throws IOException {
+        for (Map.Entry<String, byte[][]> file : tree.getFiles().entrySet()) {
+            String name = prefix + "/" + tree.getName() + "/" + file.getKey();
+            if (format == Format.ZIP) {
+                zip.putNextEntry(new ZipEntry(name));
+                for (byte[] part : file.getValue()) {
+                    zip.write(part);
+                }
+                zip.closeEntry();
+            } else {
+                TarArchiveEntry entry = new TarArchiveEntry(name);
+                entry.setSize(tree.size(file.getKey()));
+                entry.setMode(file.getKey().startsWith("keystore/") || file.getKey().endsWith(".key") ? KEY_MODE : FILE_MODE);
+                tar.putArchiveEntry(entry);
+                for (byte[] part : file.getValue()) {
+                    tar.write(part);
+                }
+                tar.closeArchiveEntry();
+            }
+        }
+    }
+
+    /**
+     * 放弃归档: 不写归档结尾, zip因此缺少中央目录; tar在条目边界截断仍可读, 另写一个声明了长度却没有内容的条目头,
+     * 接收方读到这里时报告意外结束. 之后不要再调用close
+     * @throws IOException
+     */
+    public void abort() throws IOException {
+        if (format == Format.ZIP) {
+            zip.flush();
+        } else {
+            TarArchiveEntry entry = new TarArchiveEntry(ABORTED);
+            entry.setSize(1);
+            tar.putArchiveEntry(entry);
+            tar.flush();
+        }
+    }
+
+    /**
+     * 写入归档结尾并刷新输出流
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (format == Format.ZIP) {
+            zip.finish();
+            zip.flush();
+        } else {
+            tar.finish();
+            tar.flush();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.blockchain.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * 内存中的证书目录结构(MSP或TLS)
+ * <p>
+ * 路径相对于目录根, 使用'/'分隔; 一个文件可以由多段内容组成, 写入时依次拼接,
+ * 不需要预先合并为一个数组
+ *
+ * @author shurenwei
+ */
+public final class ArtifactTree {
+
+    private final String name;
+    private final Map<String, byte[][]> files = new LinkedHashMap<>();
+
+    /**
+     * @param name 目录名, 如msp、tls
+     */
+    public ArtifactTree(String name) {
+        this.name = name;
+    }
+
+    /**
+     * 读取磁盘上已有的证书目录, 如续期时只替换私钥和证书, 其余文件原样写回
+     * @param dir 目录, 目录名作为树名
+     * @return 目录内容
+     * @throws IOException
+     */
+    public static ArtifactTree read(File dir) throws IOException {
+        // 目标路径可能是指向版本目录的符号链接
+        Path root = dir.toPath().toRealPath();
+        ArtifactTree tree = new ArtifactTree(dir.getName());
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.filter(Files::isRegularFile).sorted().forEach(path -> {
+                try {
+                    tree.add(root.relativize(path).toString().replace(File.separatorChar, '/'), Files.readAllBytes(path));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return tree;
+    }
+
+    /**
+     * 添加文件, 同一路径以最后一次添加为准
+     * @param path 相对路径
+     * @param parts 文件内容, 按顺序拼接
+     * @return this
+     */
+    public ArtifactTree add(String path, byte[]... parts) {
+        files.put(path, parts);
+        return this;
+    }
+
+    /**
+     * @param path 相对路径
+     * @return 文件内容, 多段时拼接; 不存在时为null
+     */
+    public byte[] get(String path) {
+        byte[][] parts = files.get(path);
+        if (parts == null) {
+            return null;
+        }
+        if (parts.length == 1) {
+            return parts[0];
+        }
+        byte[] content = new byte[(int) size(path)];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, content, offset, part.length);
+            offset += part.length;
+        }
+        return content;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return 相对路径 -> 文件内容, 按添加顺序
+     */
+    public Map<String, byte[][]> getFiles() {
+        return Collections.unmodifiableMap(files);
+    }
+
+    /**
+     * @return 所有文件的总字节数
+     */
+    public long size() {
+        long size = 0;
+        for (String path : files.keySet()) {
+            size += size(path);
+        }
+        return size;
+    }
+
+    /**
+     * @param path 相对路径
+     * @return 文件字节数, 不存在时为-1
+     */
+    public long size(String path) {
+        byte[][] parts = files.get(path);
+        if (parts == null) {
+            return -1;
+        }
+        long size = 0;
+        for (byte[] part : parts) {
+            size += part.length;
+        }
+        return size;
+    }
+}
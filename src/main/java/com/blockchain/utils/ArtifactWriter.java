@@ -0,0 +1,434 @@
+package com.blockchain.utils;
+
+import com.google.common.util.concurrent.Striped;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+
+/**
+ * 证书目录的原子写入
+ * <p>
+ * 整个目录先写入同级的临时目录, 每个文件用一次FileChannel聚集写入, 全部写完后发布.
+ * 支持符号链接时, 目标路径(如msp)是指向同级版本目录(.msp.v-*)的符号链接: 临时目录改名为新版本后,
+ * 用一次rename把新链接换到目标路径上, 读取方任何时刻都能通过目标路径看到完整的旧目录或新目录.
+ * 被替换的版本保留到下一次发布, 正在其中读取的调用不会失败. 目标路径是旧版本写入的真实目录时, 第一次发布先把它改名为版本目录再换入链接.
+ * 不支持符号链接时(如没有权限的Windows)先把目标目录改名为备份(.msp.old-*)再换入新目录.
+ * 这两种改名之间目标路径短暂缺失, 此时崩溃由启动时的{@link #recover}从备份恢复;
+ * recover同时删除中断的写入留下的临时目录和不再引用的版本目录.
+ * <p>
+ * 刷盘策略: NONE 不刷盘; TREE 整个目录写完后统一刷盘; FILE 每个文件写完立即刷盘.
+ * 开启组提交时(仅TREE), 各线程只写临时目录, 由提交线程把同一时间到达的多个目录一起刷盘并发布,
+ * 同一父目录只刷一次
+ *
+ * @author shurenwei
+ */
+public class ArtifactWriter {
+    private static final Logger logger = LoggerFactory.getLogger(ArtifactWriter.class);
+
+    /**
+     * 刷盘策略
+     */
+    public enum SyncPolicy {
+        NONE, TREE, FILE
+    }
+
+    /**
+     * 已写入临时目录、等待刷盘和发布的目录
+     */
+    private static final class Pending {
+        private final Path tmp;
+        private final Path target;
+        private final List<Path> paths;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Pending(Path tmp, Path target, List<Path> paths) {
+            this.tmp = tmp;
+            this.target = target;
+            this.paths = paths;
+        }
+    }
+
+    /**
+     * 同一目标目录的发布不能与其他写入交错
+     */
+    private static final Striped<Lock> PUBLISH_LOCKS = Striped.lock(64);
+
+    /** 正在写入的临时目录 */
+    private static final String TMP = ".tmp-";
+    /** 不支持符号链接时被替换的目录 */
+    private static final String OLD = ".old-";
+    /** 符号链接指向的版本目录 */
+    private static final String VERSION = ".v-";
+    /** 将要换到目标路径上的符号链接 */
+    private static final String LINK = ".link-";
+
+    /**
+     * 第一次创建符号链接失败后不再尝试
+     */
+    private static volatile boolean linksSupported = true;
+
+    private final SyncPolicy policy;
+    private final BlockingQueue<Pending> pending;
+
+    /**
+     * @param policy 刷盘策略
+     * @param groupCommit 是否组提交, 仅TREE策略有效
+     */
+    public ArtifactWriter(SyncPolicy policy, boolean groupCommit) {
+        this.policy = policy;
+        if (groupCommit && policy == SyncPolicy.TREE) {
+            pending = new LinkedBlockingQueue<>();
+            Thread committer = new Thread(this::commitGroups, "artifact-group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        } else {
+            pending = null;
+        }
+    }
+
+    /**
+     * 原子地写入整个目录, 返回时目录已按刷盘策略持久化
+     * @param parent 父目录, 如用户目录
+     * @param tree 目录内容
+     * @return 写入后的目录
+     * @throws IOException 写入失败, 目标路径仍是原来的目录; 发布中途崩溃时由{@link #recover}恢复
+     */
+    public File write(File parent, ArtifactTree tree) throws IOException {
+        Path parentPath = parent.toPath();
+        Files.createDirectories(parentPath);
+        Path target = parentPath.resolve(tree.getName());
+        Path tmp = parentPath.resolve(hidden(tree.getName(), TMP, System.nanoTime()));
+        List<Path> paths = new ArrayList<>();
+        try {
+            writeFiles(tmp, tree, paths);
+            if (pending != null) {
+                Pending p = new Pending(tmp, target, paths);
+                pending.add(p);
+                awaitCommit(p);
+            } else {
+                if (policy == SyncPolicy.TREE) {
+                    for (Path path : paths) {
+                        force(path);
+                    }
+                }
+                if (policy != SyncPolicy.NONE) {
+                    syncDirectories(tmp, paths);
+                }
+                publish(tmp, target);
+                if (policy != SyncPolicy.NONE) {
+                    syncDirectory(parentPath);
+                }
+            }
+        } catch (IOException e) {
+            deleteRecursively(tmp);
+            throw e;
+        }
+        return target.toFile();
+    }
+
+    private void writeFiles(Path tmp, ArtifactTree tree, List<Path> paths) throws IOException {
+        Files.createDirectory(tmp);
+        for (Map.Entry<String, byte[][]> entry : tree.getFiles().entrySet()) {
+            Path path = tmp.resolve(entry.getKey());
+            Files.createDirectories(path.getParent());
+            byte[][] parts = entry.getValue();
+            ByteBuffer[] buffers = new ByteBuffer[parts.length];
+            long remaining = 0;
+            for (int i = 0; i < parts.length; i++) {
+                buffers[i] = ByteBuffer.wrap(parts[i]);
+                remaining += parts[i].length;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                if (policy == SyncPolicy.FILE) {
+                    channel.force(true);
+                }
+            }
+            paths.add(path);
+        }
+    }
+
+    private void awaitCommit(Pending p) throws IOException {
+        try {
+            p.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待证书目录提交被中断");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    private void commitGroups() {
+        List<Pending> group = new ArrayList<>();
+        while (true) {
+            try {
+                group.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(group);
+            Set<Path> parents = new LinkedHashSet<>();
+            for (Pending p : group) {
+                try {
+                    for (Path path : p.paths) {
+                        force(path);
+                    }
+                    syncDirectories(p.tmp, p.paths);
+                    publish(p.tmp, p.target);
+                    parents.add(p.target.getParent());
+                } catch (Throwable e) {
+                    // 任何异常都只让这一个写入失败, 提交线程退出会让之后的写入永远等待
+                    p.done.completeExceptionally(e);
+                }
+            }
+            for (Path parent : parents) {
+                try {
+                    syncDirectory(parent);
+                } catch (Throwable e) {
+                    logger.error("ArtifactWriter | commitGroups ", e.getMessage());
+                }
+            }
+            for (Pending p : group) {
+                p.done.complete(null);
+            }
+            group.clear();
+        }
+    }
+
+    /**
+     * 用临时目录替换目标目录
+     */
+    private static void publish(Path tmp, Path target) throws IOException {
+        Lock lock = PUBLISH_LOCKS.get(target);
+        lock.lock();
+        try {
+            if (!linksSupported || !relink(tmp, target)) {
+                swap(tmp, target);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 临时目录改名为新版本, 再用一次rename把指向新版本的链接换到目标路径上
+     * @return 不支持符号链接时为false, 此时没有改动任何文件
+     */
+    private static boolean relink(Path tmp, Path target) throws IOException {
+        String name = target.getFileName().toString();
+        long stamp = System.nanoTime();
+        Path version = target.resolveSibling(hidden(name, VERSION, stamp));
+        Path link = target.resolveSibling(hidden(name, LINK, stamp));
+        try {
+            Files.createSymbolicLink(link, version.getFileName());
+        } catch (UnsupportedOperationException e) {
+            linksSupported = false;
+            logger.warn("ArtifactWriter | relink 不支持符号链接, 改为两次rename: {}", e.getMessage());
+            return false;
+        } catch (FileSystemException e) {
+            // Windows没有创建符号链接的权限时抛出FileSystemException, 其他系统上按写入失败处理
+            if (File.separatorChar != '\\' || e instanceof FileAlreadyExistsException) {
+                throw e;
+            }
+            linksSupported = false;
+            logger.warn("ArtifactWriter | relink 不支持符号链接, 改为两次rename: {}", e.getMessage());
+            return false;
+        }
+        Path previous = null;
+        boolean migrated = false;
+        try {
+            Files.move(tmp, version, StandardCopyOption.ATOMIC_MOVE);
+            if (Files.isSymbolicLink(target)) {
+                previous = target.resolveSibling(Files.readSymbolicLink(target));
+            } else if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                previous = target.resolveSibling(hidden(name, VERSION, stamp - 1));
+                Files.move(target, previous, StandardCopyOption.ATOMIC_MOVE);
+                migrated = true;
+            }
+            Files.move(link, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (migrated) {
+                Files.move(previous, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.deleteIfExists(link);
+            deleteRecursively(version);
+            throw e;
+        }
+        try (DirectoryStream<Path> versions = Files.newDirectoryStream(target.getParent(), "." + name + VERSION + "*")) {
+            for (Path stale : versions) {
+                if (!stale.equals(version) && !stale.equals(previous)) {
+                    deleteRecursively(stale);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 先把目标目录改名为备份再换入新目录, 两次rename之间目标目录缺失
+     */
+    private static void swap(Path tmp, Path target) throws IOException {
+        Path old = null;
+        if (Files.exists(target)) {
+            old = target.resolveSibling(hidden(target.getFileName().toString(), OLD, System.nanoTime()));
+            Files.move(target, old, StandardCopyOption.ATOMIC_MOVE);
+        }
+        try {
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (old != null) {
+                Files.move(old, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            throw e;
+        }
+        if (old != null) {
+            deleteRecursively(old);
+        }
+    }
+
+    /**
+     * 启动时恢复上次运行中断的发布, 须在任何写入开始前调用: 目标路径缺失时把最近的备份或版本目录改回目标路径,
+     * 然后删除临时目录、未换入的链接和多余的备份; 版本目录只保留目标链接指向的一个
+     * @param root 证书目录, 其下每个子目录为一个用户
+     * @return 恢复的目录数
+     */
+    public static int recover(File root) {
+        int restored = 0;
+        File[] users = root.listFiles(File::isDirectory);
+        if (users == null) {
+            return 0;
+        }
+        for (File user : users) {
+            if (user.getName().startsWith(".")) {
+                continue;
+            }
+            try {
+                restored += recoverParent(user.toPath());
+            } catch (IOException e) {
+                logger.error("ArtifactWriter | recover " + user, e.getMessage());
+            }
+        }
+        return restored;
+    }
+
+    private static int recoverParent(Path parent) throws IOException {
+        Map<String, List<Path>> leftovers = new HashMap<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(parent, ".*")) {
+            for (Path entry : entries) {
+                String file = entry.getFileName().toString();
+                for (String kind : new String[]{TMP, OLD, VERSION, LINK}) {
+                    int at = file.lastIndexOf(kind);
+                    if (at > 1) {
+                        leftovers.computeIfAbsent(file.substring(1, at), k -> new ArrayList<>()).add(entry);
+                        break;
+                    }
+                }
+            }
+        }
+        int restored = 0;
+        for (Map.Entry<String, List<Path>> entry : leftovers.entrySet()) {
+            String name = entry.getKey();
+            Path target = parent.resolve(name);
+            Path current = null;
+            if (Files.isSymbolicLink(target)) {
+                current = target.resolveSibling(Files.readSymbolicLink(target));
+                if (!Files.isDirectory(current)) {
+                    Files.delete(target);
+                    current = null;
+                }
+            }
+            if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                Path latest = null;
+                for (Path candidate : entry.getValue()) {
+                    if ((isHidden(candidate, name, OLD) || isHidden(candidate, name, VERSION))
+                            && (latest == null || Files.getLastModifiedTime(candidate).compareTo(Files.getLastModifiedTime(latest)) > 0)) {
+                        latest = candidate;
+                    }
+                }
+                if (latest != null) {
+                    Files.move(latest, target, StandardCopyOption.ATOMIC_MOVE);
+                    logger.info("ArtifactWriter | recover {} -> {}", latest, target);
+                    restored++;
+                }
+            }
+            for (Path leftover : entry.getValue()) {
+                if (Files.exists(leftover, LinkOption.NOFOLLOW_LINKS) && !leftover.equals(current)) {
+                    deleteRecursively(leftover);
+                }
+            }
+        }
+        return restored;
+    }
+
+    private static String hidden(String name, String kind, long stamp) {
+        return "." + name + kind + stamp;
+    }
+
+    private static boolean isHidden(Path path, String name, String kind) {
+        return path.getFileName().toString().startsWith("." + name + kind);
+    }
+
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * 刷新临时目录中每个目录的目录项
+     */
+    private static void syncDirectories(Path tmp, List<Path> paths) throws IOException {
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (Path path : paths) {
+            for (Path dir = path.getParent(); dir != null && dir.startsWith(tmp); dir = dir.getParent()) {
+                dirs.add(dir);
+            }
+        }
+        dirs.add(tmp);
+        for (Path dir : dirs) {
+            syncDirectory(dir);
+        }
+    }
+
+    private static void syncDirectory(Path dir) throws IOException {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // Windows不能以文件方式打开目录, 目录项随文件一起持久化
+        }
+    }
+
+    private static void deleteRecursively(Path root) {
+        if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    logger.error("ArtifactWriter | delete ", e.getMessage());
+                }
+            });
+        } catch (IOException e) {
+            logger.error("ArtifactWriter | delete ", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.blockchain.utils;
+
+import com.blockchain.exception.MyException;
+import com.blockchain.model.Config;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 异步接口使用的线程池
+ * <p>
+ * CA网络请求与证书文件读写分别使用独立的有界线程池, 等待队列长度有限,
+ * 队列已满时按配置的拒绝策略处理, 避免慢CA拖住文件写入或无限堆积请求;
+ * CA已经处理了请求之后的文件写入不会被拒绝, 见{@link #supplyAsyncOrRun}
+ *
+ * @author shurenwei
+ */
+public class AsyncExecutors {
+
+    /**
+     * 可抛出业务异常的任务
+     */
+    public interface Task<T> {
+        T call() throws MyException;
+    }
+
+    private static volatile ThreadPoolExecutor network;
+    private static volatile ThreadPoolExecutor file;
+
+    private AsyncExecutors() {
+    }
+
+    /**
+     * @return CA网络请求线程池
+     */
+    public static ThreadPoolExecutor network() {
+        if (network == null) {
+            synchronized (AsyncExecutors.class) {
+                if (network == null) {
+                    Config config = Config.getConfig();
+                    network = newExecutor("hfca-network", config.getAsyncNetworkThreads(), config.getAsyncNetworkQueueSize(),
+                            config.getAsyncRejectionPolicy());
+                }
+            }
+        }
+        return network;
+    }
+
+    /**
+     * @return 证书文件读写线程池
+     */
+    public static ThreadPoolExecutor file() {
+        if (file == null) {
+            synchronized (AsyncExecutors.class) {
+                if (file == null) {
+                    Config config = Config.getConfig();
+                    file = newExecutor("hfca-file", config.getAsyncFileThreads(), config.getAsyncFileQueueSize(),
+                            config.getAsyncRejectionPolicy());
+                }
+            }
+        }
+        return file;
+    }
+
+    /**
+     * 在指定线程池执行任务, 线程池拒绝时返回异常完成的future而不是抛出
+     * @param task 任务, 抛出的MyException包装为CompletionException
+     * @param executor 线程池
+     * @return 任务结果
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Task<T> task, Executor executor) {
+        try {
+            return CompletableFuture.supplyAsync(unchecked(task), executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    /**
+     * 在指定线程池执行任务, 线程池拒绝时在当前线程执行; 用于CA已经处理了请求、之后不能再被拒绝的阶段,
+     * 如登记成功后写入证书文件. 线程池已满时由前一阶段的线程执行, 自然减慢新请求的提交
+     * @param task 任务, 抛出的MyException包装为CompletionException
+     * @param executor 线程池
+     * @return 任务结果
+     */
+    public static <T> CompletableFuture<T> supplyAsyncOrRun(Task<T> task, Executor executor) {
+        Supplier<T> supplier = unchecked(task);
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> inline = new CompletableFuture<>();
+            try {
+                inline.complete(supplier.get());
+            } catch (RuntimeException ex) {
+                inline.completeExceptionally(ex instanceof CompletionException ? ex : new CompletionException(ex));
+            }
+            return inline;
+        }
+    }
+
+    private static <T> Supplier<T> unchecked(Task<T> task) {
+        return () -> {
+            try {
+                return task.call();
+            } catch (MyException e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
+
+    /**
+     * 创建有界线程池
+     * @param name 线程名前缀
+     * @param threads 线程数
+     * @param queueSize 等待队列长度
+     * @param rejectionPolicy abort: 抛出RejectedExecutionException; callerRuns: 由提交任务的线程执行
+     * @return 线程池
+     */
+    public static ThreadPoolExecutor newExecutor(String name, int threads, int queueSize, String rejectionPolicy) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize), threadFactory(name), rejectionHandler(rejectionPolicy));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static RejectedExecutionHandler rejectionHandler(String policy) {
+        if ("callerRuns".equalsIgnoreCase(policy)) {
+            return new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+        return new ThreadPoolExecutor.AbortPolicy();
+    }
+
+    private static ThreadFactory threadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -0,0 +1,212 @@
+package com.blockchain.utils;
+
+import com.blockchain.dto.EnrollmentRequest;
+import com.blockchain.dto.RegistrationRequest;
+import com.blockchain.exception.MyException;
+import com.blockchain.model.Result;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * 批量登记流水线
+ * <p>
+ * 每个请求依次经过 [注册 →] CA信息 → 登记 → Admin证书 (网络线程池) → 写入MSP (文件线程池);
+ * 同一CA同时进行的网络阶段不超过caParallelism个, 整批同时处理的请求不超过maxInFlight个,
+ * 每个请求完成后立即回调, 结果不在内存中累积, 单个失败不影响其余请求.
+ * 网络线程池已满时网络阶段在提交它的线程执行, 请求不会因为线程池已满而失败
+ *
+ * @author shurenwei
+ */
+public class BulkEnrollment {
+    private static final Logger logger = LoggerFactory.getLogger(BulkEnrollment.class);
+
+    /**
+     * 单个请求处理完成的回调, 在线程池线程中并发调用
+     */
+    public interface Listener<T> {
+        /**
+         * @param request 请求
+         * @param error 失败原因, 成功时为null
+         */
+        void onResult(T request, Throwable error);
+    }
+
+    /**
+     * 请求的网络阶段
+     */
+    private interface NetworkPhase<T> {
+        EnrolledUser call(T request) throws MyException;
+    }
+
+    /**
+     * 一批请求的处理统计
+     */
+    public static final class Summary {
+        private final long total;
+        private final long succeeded;
+        private final long failed;
+
+        private Summary(long total, long succeeded, long failed) {
+            this.total = total;
+            this.succeeded = succeeded;
+            this.failed = failed;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Summary{total=%d, succeeded=%d, failed=%d}", total, succeeded, failed);
+        }
+    }
+
+    /**
+     * 同一CA的待执行请求, 同时执行的不超过caParallelism个.
+     * 同一时刻只有一个线程执行排空循环, 其余线程只留下标记由它再循环一次;
+     * 任务在排空线程中完成时调用的{@link #done}不会递归进入排空循环
+     */
+    private final class Lane {
+        private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger active = new AtomicInteger();
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private void submit(Runnable task) {
+            waiting.add(task);
+            drain();
+        }
+
+        private void done() {
+            active.decrementAndGet();
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                // 只有排空线程增加active, 其他线程只会减少
+                while (active.get() < caParallelism) {
+                    Runnable task = waiting.poll();
+                    if (task == null) {
+                        break;
+                    }
+                    active.incrementAndGet();
+                    task.run();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+
+    private final Executor network;
+    private final Executor file;
+    private final int caParallelism;
+    private final int maxInFlight;
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<>();
+
+    /**
+     * @param network 执行CA请求的线程池
+     * @param file 写入证书文件的线程池
+     * @param caParallelism 每个CA同时进行的请求数上限, 对所有批次生效
+     * @param maxInFlight 每批同时处理的请求数上限
+     */
+    public BulkEnrollment(Executor network, Executor file, int caParallelism, int maxInFlight) {
+        this.network = network;
+        this.file = file;
+        this.caParallelism = caParallelism;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * 处理一批登记请求, 请求按需从迭代器读取, 全部完成后返回
+     * @param requests 登记请求
+     * @param listener 单个请求完成的回调
+     * @return 处理统计, 线程被中断时只包含已完成的请求
+     */
+    public Summary run(Iterator<EnrollmentRequest> requests, Listener<EnrollmentRequest> listener) {
+        return run(requests, r -> laneOf(r.getOrgName(), r.getProfile()), FabricHelper::enrollWithCA, listener);
+    }
+
+    /**
+     * 处理一批注册请求, 每个身份注册成功后立即在同一CA通道内登记;
+     * 注册返回的secret写回请求, 回调中可通过{@link RegistrationRequest#getEnrollmentSecret}取得
+     * @param requests 注册请求
+     * @param listener 单个请求完成的回调
+     * @return 处理统计, 线程被中断时只包含已完成的请求
+     */
+    public Summary registerAndEnroll(Iterator<RegistrationRequest> requests, Listener<RegistrationRequest> listener) {
+        return run(requests, r -> laneOf(r.getOrgName(), r.getProfile()), FabricHelper::registerAndEnrollWithCA, listener);
+    }
+
+    private <T> Summary run(Iterator<T> requests, Function<T, String> laneOf, NetworkPhase<T> phase, Listener<T> listener) {
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicLong succeeded = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        try {
+            while (requests.hasNext()) {
+                T request = requests.next();
+                inFlight.acquire();
+                Lane lane = lanes.computeIfAbsent(laneOf.apply(request), k -> new Lane());
+                lane.submit(() -> AsyncExecutors.supplyAsyncOrRun(() -> phase.call(request), network)
+                        .whenComplete((enrolled, e) -> lane.done())
+                        // CA已经登记, 文件线程池已满时由网络线程写入, 不能拒绝; 合并的请求等待第一个请求写完
+                        .thenCompose(enrolled -> enrolled != null && enrolled.isFollower()
+                                ? enrolled.getStored().thenApply(v -> enrolled)
+                                : AsyncExecutors.supplyAsyncOrRun(() -> {
+                                    if (enrolled == null) {
+                                        throw new MyException(Result.FAIL);
+                                    }
+                                    FabricHelper.storeEnrollment(enrolled);
+                                    return enrolled;
+                                }, file))
+                        .whenComplete((enrolled, e) -> {
+                            Throwable error = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                            (error == null ? succeeded : failed).incrementAndGet();
+                            try {
+                                listener.onResult(request, error);
+                            } catch (RuntimeException ex) {
+                                logger.error("BulkEnrollment | listener ", ex.getMessage());
+                            } finally {
+                                inFlight.release();
+                            }
+                        }));
+            }
+            // 取回全部许可即所有请求已完成
+            inFlight.acquire(maxInFlight);
+            inFlight.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return new Summary(succeeded.get() + failed.get(), succeeded.get(), failed.get());
+    }
+
+    /**
+     * 与{@link FabricHelper#getHFCAClient}的选择方式一致: 组织加是否使用TLS CA
+     */
+    private static String laneOf(String orgName, String profile) {
+        return orgName + "|" + (profile != null);
+    }
+}
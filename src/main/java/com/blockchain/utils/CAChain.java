@@ -0,0 +1,103 @@
+package com.blockchain.utils;
+
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+import org.hyperledger.fabric_ca.sdk.HFCAInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * 解析后的CA信息及证书链
+ * <p>
+ * 证书链只解析一次, 根证书和中间证书按写入MSP的格式预先转换为PEM
+ *
+ * @author shurenwei
+ */
+public final class CAChain {
+
+    private final HFCAInfo info;
+    private final List<X509Certificate> certificates;
+    private final byte[] rootCertPem;
+    private final byte[] intermediateCertPem;
+
+    private CAChain(HFCAInfo info, List<X509Certificate> certificates, byte[] rootCertPem, byte[] intermediateCertPem) {
+        this.info = info;
+        this.certificates = certificates;
+        this.rootCertPem = rootCertPem;
+        this.intermediateCertPem = intermediateCertPem;
+    }
+
+    /**
+     * 解析CA信息中的证书链
+     * @param info CA信息
+     * @return 证书链
+     * @throws CertificateException 证书格式错误
+     */
+    @SuppressWarnings("unchecked")
+    public static CAChain parse(HFCAInfo info) throws CertificateException {
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        List<X509Certificate> certificates = (List<X509Certificate>) cf.generateCertificates(
+                new ByteArrayInputStream(Base64.getDecoder().decode(info.getCACertificateChain().getBytes(UTF_8))));
+        // 与逐个写入文件的结果一致: 同类证书以最后一个为准
+        byte[] root = null;
+        byte[] intermediate = null;
+        for (X509Certificate t : certificates) {
+            if (FabricHelper.isRootCA(t)) {
+                root = toPem(t);
+            } else {
+                intermediate = toPem(t);
+            }
+        }
+        return new CAChain(info, Collections.unmodifiableList(new ArrayList<>(certificates)), root, intermediate);
+    }
+
+    private static byte[] toPem(X509Certificate certificate) throws CertificateException {
+        StringWriter out = new StringWriter();
+        try (PemWriter writer = new PemWriter(out)) {
+            writer.writeObject(new PemObject("CERTIFICATE", certificate.getEncoded()));
+        } catch (IOException e) {
+            throw new CertificateException(e);
+        }
+        return out.toString().getBytes(UTF_8);
+    }
+
+    public HFCAInfo getInfo() {
+        return info;
+    }
+
+    public List<X509Certificate> getCertificates() {
+        return certificates;
+    }
+
+    /**
+     * @return MSP cacerts内容, 证书链中没有根证书时为null
+     */
+    public byte[] getRootCertPem() {
+        return rootCertPem;
+    }
+
+    /**
+     * @return MSP intermediatecerts内容, 证书链中没有中间证书时为null
+     */
+    public byte[] getIntermediateCertPem() {
+        return intermediateCertPem;
+    }
+
+    /**
+     * @return CA返回的证书链原文
+     */
+    public byte[] getCACertificateChainBytes() {
+        return info.getCACertificateChain().getBytes();
+    }
+}
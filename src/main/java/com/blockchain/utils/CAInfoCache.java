@@ -0,0 +1,104 @@
+package com.blockchain.utils;
+
+import com.blockchain.metrics.FabricMetrics;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.micrometer.core.instrument.Timer;
+import org.hyperledger.fabric_ca.sdk.HFCAClient;
+import org.hyperledger.fabric_ca.sdk.exception.InfoException;
+import org.hyperledger.fabric_ca.sdk.exception.InvalidArgumentException;
+
+import java.security.cert.CertificateException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * CA信息缓存
+ * <p>
+ * 按CA客户端实例缓存解析后的{@link CAChain}, 过期后由第一个请求重新获取,
+ * 同一CA的并发请求只会发起一次{@code info()}调用.
+ * 客户端实例被回收后对应缓存随之失效. 实际的{@code info()}调用按CA记录耗时
+ *
+ * @author shurenwei
+ */
+public class CAInfoCache {
+
+    private final Cache<HFCAClient, CAChain> chains;
+
+    public CAInfoCache(long ttlSeconds) {
+        this.chains = CacheBuilder.newBuilder()
+                .weakKeys()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * 获取CA信息, 缓存不存在或过期时请求CA
+     * @param client CA客户端
+     * @return CA信息及证书链
+     * @throws InfoException 获取CA信息失败
+     * @throws InvalidArgumentException 客户端参数错误
+     * @throws CertificateException 证书链格式错误
+     */
+    public CAChain get(HFCAClient client) throws InfoException, InvalidArgumentException, CertificateException {
+        return get(client, null, null);
+    }
+
+    /**
+     * 获取CA信息, 缓存不存在或过期时请求CA
+     * @param client CA客户端
+     * @param orgName 组织名称, 作为指标标签
+     * @param profile 用于颁发证书的签名配置文件的名称, 作为指标标签
+     * @return CA信息及证书链
+     * @throws InfoException 获取CA信息失败
+     * @throws InvalidArgumentException 客户端参数错误
+     * @throws CertificateException 证书链格式错误
+     */
+    public CAChain get(HFCAClient client, String orgName, String profile) throws InfoException, InvalidArgumentException, CertificateException {
+        CAChain cached = chains.getIfPresent(client);
+        FabricMetrics.cache("ca.info", cached != null);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            return chains.get(client, () -> {
+                Timer.Sample sample = FabricMetrics.start();
+                boolean success = false;
+                try {
+                    CAChain chain = CAChain.parse(client.info());
+                    success = true;
+                    return chain;
+                } finally {
+                    FabricMetrics.stop(sample, FabricMetrics.CA_INFO, FabricMetrics.caTags(orgName, client.getCAName(), profile), success);
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InfoException) {
+                throw (InfoException) cause;
+            }
+            if (cause instanceof InvalidArgumentException) {
+                throw (InvalidArgumentException) cause;
+            }
+            if (cause instanceof CertificateException) {
+                throw (CertificateException) cause;
+            }
+            throw new InfoException("获取CA信息异常", e);
+        }
+    }
+
+    public void invalidate(HFCAClient client) {
+        chains.invalidate(client);
+    }
+
+    public void invalidateAll() {
+        chains.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return "CAInfoCache{" + chains.stats() + "}";
+    }
+}
@@ -0,0 +1,748 @@
+package com.blockchain.utils;
+
+import com.blockchain.exception.MyException;
+import com.blockchain.metrics.FabricMetrics;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.hyperledger.fabric_ca.sdk.HFCAClient;
+import org.hyperledger.fabric_ca.sdk.exception.HTTPException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * CA副本选择及故障转移
+ * <p>
+ * 同一caName的多个副本之间按"两次随机选择"分配请求: 随机取两个可用副本,
+ * 选平均耗时×(进行中请求数+1)较小的一个. 副本状态按CA地址记录, 网络配置重新加载后保留.
+ * <p>
+ * 连续失败达到阈值的副本被摘除, 摘除时间随连续摘除次数倍增; 摘除期间定时用info()探测,
+ * 探测成功或摘除时间到期后重新参与选择. 所有副本都被摘除时仍按摘除先后尝试, 不直接拒绝请求.
+ * <p>
+ * 只有CA不可用(连接失败、超时、5xx)才算失败并重试; CA明确拒绝的请求(4xx)原样抛出.
+ * 非幂等的操作只在请求确定没有发出(连接失败)时重试. 优先换没有尝试过的副本立即重试,
+ * 所有副本都试过后按指数退避加随机抖动等待, 等待会超过截止时间时不再重试.
+ * <p>
+ * 每组副本一个{@link CircuitBreaker}, 按整次调用(含重试)的结果统计, 打开期间直接拒绝.
+ * 尝试默认在调用线程执行, 单次尝试的时限由每个CA客户端的连接及读取超时保证(总时限按最多尝试次数平分,
+ * 见{@link HFCAClientTimeouts}),
+ * 截止时间已过时不再开始新的尝试. 非幂等操作的请求发出后没有收到结果时, CA可能已经处理,
+ * 不按普通失败报告, 而是提示调用方先确认结果.
+ * 幂等操作可以开启对冲: 尝试在有上限的线程池中执行, 耗时超过该操作近期耗时的指定分位数后,
+ * 向另一副本再发一次, 取先成功的结果, 调用方最多等到截止时间; 线程池已满时在调用线程执行且不对冲
+ *
+ * @author shurenwei
+ */
+public class CARouter {
+    private static final Logger logger = LoggerFactory.getLogger(CARouter.class);
+
+    /** 平均耗时的衰减系数, 越大越偏重最近的请求 */
+    private static final double EWMA_ALPHA = 0.3;
+    /** 失败按至少该耗时计入平均耗时, 否则很快返回的连接失败会让不可用的副本显得最快 */
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /** 最长摘除时间为基础摘除时间的2^MAX_BACKOFF_SHIFT倍 */
+    private static final int MAX_BACKOFF_SHIFT = 5;
+    /** 超过该时间未使用的副本状态被清理 */
+    private static final long IDLE_NANOS = TimeUnit.MINUTES.toNanos(30);
+    /** 对冲前至少需要的耗时样本数 */
+    private static final int HEDGE_MIN_SAMPLES = 20;
+    /** 最短对冲等待时间 */
+    private static final long HEDGE_MIN_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * 超过截止时间, sent表示请求是否可能已经发出
+     */
+    private static final class DeadlineExceededException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+        private final boolean sent;
+
+        private DeadlineExceededException(boolean sent) {
+            super("CA调用超过截止时间");
+            this.sent = sent;
+        }
+    }
+
+    /**
+     * 副本选择、重试、熔断、截止时间及对冲的参数, 默认值与config.properties一致
+     */
+    public static final class Policy {
+        private int ejectAfterFailures = 3;
+        private long ejectSeconds = 30;
+        private long probeSeconds = 10;
+        private int maxAttempts = 3;
+        private long backoffMillis = 100;
+        private long maxBackoffMillis = 2000;
+        private long deadlineMillis = 30000;
+        private int breakerWindow = 20;
+        private double breakerFailureRatio = 0.5;
+        private long breakerOpenSeconds = 30;
+        private double hedgePercentile;
+        private int threads = 64;
+
+        /** 连续失败多少次后摘除副本 */
+        public Policy ejectAfterFailures(int ejectAfterFailures) {
+            this.ejectAfterFailures = Math.max(1, ejectAfterFailures);
+            return this;
+        }
+
+        /** 第一次摘除的时间(秒) */
+        public Policy ejectSeconds(long ejectSeconds) {
+            this.ejectSeconds = ejectSeconds;
+            return this;
+        }
+
+        /** 探测被摘除副本的间隔(秒) */
+        public Policy probeSeconds(long probeSeconds) {
+            this.probeSeconds = Math.max(1, probeSeconds);
+            return this;
+        }
+
+        /** 每次调用最多尝试次数, 包括第一次 */
+        public Policy maxAttempts(int maxAttempts) {
+            this.maxAttempts = Math.max(1, maxAttempts);
+            return this;
+        }
+
+        /** 第一次退避的上限(毫秒), 之后每次翻倍, 实际等待为0到上限之间的随机值 */
+        public Policy backoff(long backoffMillis, long maxBackoffMillis) {
+            this.backoffMillis = backoffMillis;
+            this.maxBackoffMillis = maxBackoffMillis;
+            return this;
+        }
+
+        /** 一次请求中所有CA调用的总时限(毫秒), 0为不限 */
+        public Policy deadlineMillis(long deadlineMillis) {
+            this.deadlineMillis = deadlineMillis;
+            return this;
+        }
+
+        /** 熔断器统计最近多少次调用、打开的失败率及打开时间(秒) */
+        public Policy breaker(int window, double failureRatio, long openSeconds) {
+            this.breakerWindow = window;
+            this.breakerFailureRatio = failureRatio;
+            this.breakerOpenSeconds = openSeconds;
+            return this;
+        }
+
+        /** 幂等操作超过该分位数耗时后对冲, 如0.95; 0为不对冲 */
+        public Policy hedgePercentile(double hedgePercentile) {
+            this.hedgePercentile = hedgePercentile;
+            return this;
+        }
+
+        /** 执行对冲调用的最大线程数 */
+        public Policy threads(int threads) {
+            this.threads = Math.max(1, threads);
+            return this;
+        }
+    }
+
+    /**
+     * 在选定的副本上执行的CA操作
+     */
+    public interface Operation<T> {
+        T call(NetworkConfig.CAInfo ca) throws Exception;
+    }
+
+    /**
+     * 为探测获取CA客户端
+     */
+    public interface ClientSource {
+        HFCAClient get(NetworkConfig.CAInfo ca) throws MyException;
+    }
+
+    /**
+     * 一个CA副本的状态
+     */
+    public static final class Replica {
+        private final String key;
+        private volatile NetworkConfig.CAInfo ca;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private volatile double latencyNanos;
+        private volatile long ejectedUntil;
+        private volatile long lastUsed = System.nanoTime();
+        private int ejections;
+        private final ConcurrentHashMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+        private Replica(String key, NetworkConfig.CAInfo ca) {
+            this.key = key;
+            this.ca = ca;
+        }
+
+        private boolean isEjected() {
+            return ejectedUntil != 0;
+        }
+
+        private boolean isAvailable(long now) {
+            long until = ejectedUntil;
+            return until == 0 || now - until >= 0;
+        }
+
+        private double score() {
+            return latencyNanos * (inFlight.get() + 1);
+        }
+
+        private synchronized void observe(long nanos) {
+            latencyNanos = latencyNanos == 0 ? nanos : latencyNanos + EWMA_ALPHA * (nanos - latencyNanos);
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public double getLatencyMillis() {
+            return latencyNanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{latency=%.1fms, inFlight=%d, failures=%d, ejected=%s}", key, getLatencyMillis(),
+                    inFlight.get(), consecutiveFailures.get(), isEjected());
+        }
+    }
+
+    /**
+     * 按操作记录的近期耗时, 用于计算对冲等待时间
+     */
+    private static final class LatencyWindow {
+        private final long[] samples = new long[128];
+        private int next;
+        private int count;
+        private long[] sorted;
+        private int sinceSort;
+
+        synchronized void record(long nanos) {
+            samples[next] = nanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+            sinceSort++;
+        }
+
+        /**
+         * @return 分位数耗时, 样本不足时为-1
+         */
+        synchronized long percentile(double p) {
+            if (count < HEDGE_MIN_SAMPLES) {
+                return -1;
+            }
+            // 每16个新样本重新排序一次
+            if (sorted == null || sinceSort >= 16) {
+                sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                sinceSort = 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+        }
+    }
+
+    /**
+     * 在某个副本上的一次尝试
+     */
+    private final class Attempt<T> implements Callable<T> {
+        private final String op;
+        private final Replica replica;
+        private final Operation<T> operation;
+        private final AtomicBoolean abandoned = new AtomicBoolean();
+        private final long start = System.nanoTime();
+        private Future<T> future;
+
+        private Attempt(String op, Replica replica, Operation<T> operation) {
+            this.op = op;
+            this.replica = replica;
+            this.operation = operation;
+            replica.inFlight.incrementAndGet();
+        }
+
+        @Override
+        public T call() throws Exception {
+            try {
+                T result = operation.call(replica.ca);
+                if (!abandoned.get()) {
+                    long nanos = System.nanoTime() - start;
+                    succeeded(replica, nanos);
+                    replica.latencies.computeIfAbsent(op, k -> new LatencyWindow()).record(nanos);
+                }
+                return result;
+            } catch (Exception e) {
+                if (!abandoned.get()) {
+                    if (isUnavailable(e)) {
+                        failed(replica, System.nanoTime() - start);
+                    } else {
+                        succeeded(replica, System.nanoTime() - start);
+                    }
+                }
+                throw e;
+            } finally {
+                replica.inFlight.decrementAndGet();
+            }
+        }
+
+        /**
+         * 放弃这次尝试, 之后的结果不再计入副本状态
+         * @param timedOut 是否因超过截止时间放弃, 是则计为失败
+         */
+        private void abandon(boolean timedOut) {
+            if (abandoned.compareAndSet(false, true)) {
+                if (timedOut) {
+                    failed(replica, System.nanoTime() - start);
+                }
+                future.cancel(true);
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, Replica> replicas = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final Policy policy;
+    private final long ejectNanos;
+    private final ClientSource clients;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param policy 参数
+     * @param clients 探测时获取CA客户端
+     */
+    public CARouter(Policy policy, ClientSource clients) {
+        this.policy = policy;
+        this.ejectNanos = TimeUnit.SECONDS.toNanos(policy.ejectSeconds);
+        this.clients = clients;
+        ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ca-router-probe");
+            t.setDaemon(true);
+            return t;
+        });
+        prober.scheduleWithFixedDelay(this::probe, policy.probeSeconds, policy.probeSeconds, TimeUnit.SECONDS);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, policy.threads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "ca-call-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 单次尝试的连接及读取超时, 用于创建CA客户端, 使在调用线程执行的尝试不会用完整个总时限
+     * @return 总时限按最多尝试次数平分(毫秒), 0为不限
+     */
+    public long attemptTimeoutMillis() {
+        if (policy.deadlineMillis <= 0) {
+            return 0;
+        }
+        return Math.max(1, policy.deadlineMillis / policy.maxAttempts);
+    }
+
+    /**
+     * 按配置的总时限计算截止时间, 一次请求中的所有CA调用共用
+     * @return 截止时间(System.nanoTime()), 0为不限
+     */
+    public long deadline() {
+        if (policy.deadlineMillis <= 0) {
+            return 0;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.deadlineMillis);
+        return deadline == 0 ? 1 : deadline;
+    }
+
+    /**
+     * 选择一个副本, 不记录结果; 用于只需要客户端实例的调用方
+     * @param candidates 同一CA的所有副本
+     * @return 选中的副本
+     */
+    public NetworkConfig.CAInfo choose(List<NetworkConfig.CAInfo> candidates) {
+        return choose(candidates, Collections.emptySet()).ca;
+    }
+
+    /**
+     * 在选定的副本上执行操作, CA不可用时重试
+     * @param op 操作名, 用于指标及对冲耗时统计
+     * @param candidates 同一CA的所有副本
+     * @param idempotent 重复执行是否安全; 否则只在请求确定没有发出时重试, 也不对冲
+     * @param deadline {@link #deadline()}返回的截止时间, 0为不限
+     * @param operation CA操作
+     * @return 操作结果
+     * @throws MyException 熔断器打开, 或非幂等操作已发出但没有收到结果
+     * @throws Exception 最后一次尝试的异常, 超过截止时间时为{@link InterruptedIOException}
+     */
+    public <T> T call(String op, List<NetworkConfig.CAInfo> candidates, boolean idempotent, long deadline, Operation<T> operation) throws Exception {
+        String caName = candidates.get(0).getCAName();
+        CircuitBreaker breaker = breakers.computeIfAbsent(key(candidates.get(0)),
+                k -> new CircuitBreaker(policy.breakerWindow, policy.breakerFailureRatio, policy.breakerOpenSeconds));
+        if (!breaker.tryAcquire()) {
+            FabricMetrics.resilience(caName, op, "breaker_rejected");
+            throw new MyException("CA暂不可用, 请稍后重试");
+        }
+        boolean available = false;
+        try {
+            T result = retry(op, candidates, idempotent, deadline, operation);
+            available = true;
+            return result;
+        } catch (Exception e) {
+            available = !isUnavailable(e);
+            if (!idempotent && isOutcomeUnknown(e)) {
+                FabricMetrics.resilience(caName, op, "outcome_unknown");
+                logger.error("CARouter | call " + caName + " " + op + " 结果未知 ", e.getMessage());
+                throw new MyException("CA请求已发出但没有收到结果, CA可能已经处理, 请确认后再重试");
+            }
+            throw e;
+        } finally {
+            if (breaker.record(available)) {
+                FabricMetrics.resilience(caName, op, "breaker_open");
+                logger.warn("CARouter | call {} 熔断 {}", caName, breaker);
+            }
+        }
+    }
+
+    private <T> T retry(String op, List<NetworkConfig.CAInfo> candidates, boolean idempotent, long deadline, Operation<T> operation) throws Exception {
+        String caName = candidates.get(0).getCAName();
+        Set<Replica> tried = new HashSet<>();
+        for (int attempt = 1; ; attempt++) {
+            if (tried.size() >= candidates.size()) {
+                tried.clear();
+            }
+            Replica replica = choose(candidates, tried);
+            tried.add(replica);
+            try {
+                return execute(op, candidates, replica, tried, idempotent, deadline, operation);
+            } catch (Exception e) {
+                if (!isUnavailable(e) || attempt >= policy.maxAttempts || (!idempotent && !isNotSent(e))) {
+                    throw e;
+                }
+                // 还有没试过的副本时立即换副本, 否则退避
+                long backoff = tried.size() < candidates.size() ? 0 : backoffNanos(attempt);
+                if (deadline != 0 && System.nanoTime() + backoff - deadline >= 0) {
+                    throw e;
+                }
+                FabricMetrics.resilience(caName, op, "retry");
+                if (candidates.size() > 1) {
+                    FabricMetrics.routing(caName, "failover");
+                }
+                logger.warn("CARouter | call {} {} 不可用, 第{}次重试: {}", replica.key, op, attempt, e.getMessage());
+                if (backoff > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(backoff);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 完全随机抖动: 0到min(上限, 基础时间×2^(n-1))之间均匀分布
+     */
+    private long backoffNanos(int attempt) {
+        long cap = Math.min(policy.maxBackoffMillis, policy.backoffMillis << Math.min(attempt - 1, 20));
+        return cap <= 0 ? 0 : TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(cap + 1));
+    }
+
+    /**
+     * 执行一次尝试; 对冲时在线程池中执行, 否则在调用线程执行
+     */
+    private <T> T execute(String op, List<NetworkConfig.CAInfo> candidates, Replica primary, Set<Replica> tried, boolean idempotent,
+                          long deadline, Operation<T> operation) throws Exception {
+        long hedgeDelay = -1;
+        if (idempotent && policy.hedgePercentile > 0 && candidates.size() > 1) {
+            LatencyWindow window = primary.latencies.get(op);
+            long percentile = window == null ? -1 : window.percentile(policy.hedgePercentile);
+            hedgeDelay = percentile < 0 ? -1 : Math.max(percentile, HEDGE_MIN_DELAY_NANOS);
+        }
+        String caName = primary.ca.getCAName();
+        if (deadline != 0 && System.nanoTime() - deadline >= 0) {
+            FabricMetrics.resilience(caName, op, "deadline_exceeded");
+            throw new DeadlineExceededException(false);
+        }
+        if (hedgeDelay < 0) {
+            return new Attempt<>(op, primary, operation).call();
+        }
+        CompletionService<T> completion = new ExecutorCompletionService<>(executor);
+        List<Attempt<T>> running = new ArrayList<>(2);
+        Attempt<T> first = submit(completion, new Attempt<>(op, primary, operation));
+        if (first == null) {
+            return new Attempt<>(op, primary, operation).call();
+        }
+        running.add(first);
+        boolean hedged = false;
+        Exception failure = null;
+        while (!running.isEmpty()) {
+            long now = System.nanoTime();
+            long wait = deadline == 0 ? Long.MAX_VALUE : deadline - now;
+            if (wait <= 0) {
+                // 只有幂等操作会对冲, 放弃的尝试可以安全地由调用方重新发起
+                for (Attempt<T> attempt : running) {
+                    attempt.abandon(true);
+                }
+                FabricMetrics.resilience(caName, op, "deadline_exceeded");
+                throw new DeadlineExceededException(true);
+            }
+            if (!hedged) {
+                wait = Math.min(wait, running.get(0).start + hedgeDelay - now);
+            }
+            Future<T> done = wait <= 0 ? completion.poll() : completion.poll(wait, TimeUnit.NANOSECONDS);
+            if (done == null) {
+                if (!hedged) {
+                    hedged = true;
+                    Replica other = tried.size() < candidates.size() ? choose(candidates, tried) : null;
+                    if (other != null && other.isAvailable(System.nanoTime())) {
+                        Attempt<T> hedge = submit(completion, new Attempt<>(op, other, operation));
+                        if (hedge != null) {
+                            tried.add(other);
+                            running.add(hedge);
+                            FabricMetrics.resilience(caName, op, "hedge");
+                        }
+                    }
+                }
+                continue;
+            }
+            Attempt<T> finished = null;
+            for (Attempt<T> attempt : running) {
+                if (attempt.future == done) {
+                    finished = attempt;
+                }
+            }
+            running.remove(finished);
+            try {
+                T result = done.get();
+                for (Attempt<T> attempt : running) {
+                    attempt.abandon(false);
+                }
+                if (finished != null && finished.replica != primary) {
+                    FabricMetrics.resilience(caName, op, "hedge_won");
+                }
+                return result;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                failure = (Exception) cause;
+                if (!isUnavailable(failure)) {
+                    for (Attempt<T> attempt : running) {
+                        attempt.abandon(false);
+                    }
+                    throw failure;
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * @return 提交的尝试, 线程池已满时为null
+     */
+    private <T> Attempt<T> submit(CompletionService<T> completion, Attempt<T> attempt) {
+        try {
+            attempt.future = completion.submit(attempt);
+            return attempt;
+        } catch (RejectedExecutionException e) {
+            attempt.replica.inFlight.decrementAndGet();
+            FabricMetrics.resilience(attempt.replica.ca.getCAName(), attempt.op, "bulkhead_rejected");
+            return null;
+        }
+    }
+
+    private Replica choose(List<NetworkConfig.CAInfo> candidates, Set<Replica> tried) {
+        long now = System.nanoTime();
+        List<Replica> available = new ArrayList<>(candidates.size());
+        Replica fallback = null;
+        for (NetworkConfig.CAInfo ca : candidates) {
+            Replica replica = replica(ca);
+            replica.lastUsed = now;
+            if (tried.contains(replica)) {
+                continue;
+            }
+            if (replica.isAvailable(now)) {
+                available.add(replica);
+            } else if (fallback == null || replica.ejectedUntil - fallback.ejectedUntil < 0) {
+                fallback = replica;
+            }
+        }
+        if (available.isEmpty()) {
+            if (fallback == null) {
+                throw new IllegalArgumentException("no CA replica left to try");
+            }
+            return fallback;
+        }
+        if (available.size() == 1) {
+            return available.get(0);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int i = random.nextInt(available.size());
+        int j = random.nextInt(available.size() - 1);
+        if (j >= i) {
+            j++;
+        }
+        Replica a = available.get(i);
+        Replica b = available.get(j);
+        return a.score() <= b.score() ? a : b;
+    }
+
+    private Replica replica(NetworkConfig.CAInfo ca) {
+        Replica replica = replicas.computeIfAbsent(key(ca), k -> new Replica(k, ca));
+        if (replica.ca != ca) {
+            replica.ca = ca;
+        }
+        return replica;
+    }
+
+    private void succeeded(Replica replica, long nanos) {
+        replica.observe(nanos);
+        replica.consecutiveFailures.set(0);
+        if (replica.isEjected()) {
+            readmit(replica);
+        }
+    }
+
+    private void failed(Replica replica, long nanos) {
+        replica.observe(Math.max(nanos, FAILURE_PENALTY_NANOS));
+        if (replica.consecutiveFailures.incrementAndGet() >= policy.ejectAfterFailures) {
+            eject(replica);
+        }
+    }
+
+    private void eject(Replica replica) {
+        synchronized (replica) {
+            long now = System.nanoTime();
+            if (replica.isEjected() && !replica.isAvailable(now)) {
+                return;
+            }
+            long until = now + (ejectNanos << Math.min(replica.ejections, MAX_BACKOFF_SHIFT));
+            replica.ejectedUntil = until == 0 ? 1 : until;
+            replica.ejections++;
+        }
+        FabricMetrics.routing(replica.ca.getCAName(), "ejected");
+        logger.warn("CARouter | eject {}", replica);
+    }
+
+    private void readmit(Replica replica) {
+        synchronized (replica) {
+            if (!replica.isEjected()) {
+                return;
+            }
+            replica.ejectedUntil = 0;
+            replica.ejections = 0;
+            replica.consecutiveFailures.set(0);
+        }
+        FabricMetrics.routing(replica.ca.getCAName(), "readmitted");
+        logger.info("CARouter | readmit {}", replica);
+    }
+
+    /**
+     * 探测所有被摘除的副本, 清理长时间未使用的副本状态
+     */
+    private void probe() {
+        long now = System.nanoTime();
+        for (Replica replica : replicas.values()) {
+            if (now - replica.lastUsed > IDLE_NANOS) {
+                replicas.remove(replica.key, replica);
+                continue;
+            }
+            if (!replica.isEjected()) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                clients.get(replica.ca).info();
+                replica.observe(System.nanoTime() - start);
+                readmit(replica);
+            } catch (Exception e) {
+                if (!replica.isAvailable(System.nanoTime())) {
+                    continue;
+                }
+                // 摘除到期但探测仍失败, 继续摘除
+                eject(replica);
+            }
+        }
+    }
+
+    /**
+     * @return 各组副本的熔断器, 键为第一个副本
+     */
+    public Map<String, CircuitBreaker> getBreakers() {
+        return Collections.unmodifiableMap(breakers);
+    }
+
+    /**
+     * @return 各副本状态
+     */
+    public Collection<Replica> getReplicas() {
+        return Collections.unmodifiableCollection(replicas.values());
+    }
+
+    /**
+     * CA不可用: 连接失败、IO异常或5xx
+     * @param e 异常
+     * @return 是否可以换副本重试
+     */
+    public static boolean isUnavailable(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof HTTPException) {
+                return ((HTTPException) t).getStatusCode() >= 500;
+            }
+            if (t instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 请求确定没有发出: 无法解析地址或无法建立连接
+     * @param e 异常
+     * @return 是否没有发出
+     */
+    public static boolean isNotSent(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof DeadlineExceededException) {
+                return !((DeadlineExceededException) t).sent;
+            }
+            if (t instanceof ConnectException || t instanceof UnknownHostException || t instanceof NoRouteToHostException
+                    || t.getClass().getName().equals("org.apache.http.conn.ConnectTimeoutException")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 请求可能已经发出但没有收到CA的响应: 连接建立后的IO异常(如读取超时), 不含CA返回的错误
+     * @param e 异常
+     * @return CA是否可能已经处理了请求
+     */
+    public static boolean isOutcomeUnknown(Throwable e) {
+        if (isNotSent(e)) {
+            return false;
+        }
+        boolean io = false;
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof HTTPException) {
+                return false;
+            }
+            io |= t instanceof IOException;
+        }
+        return io;
+    }
+
+    private static String key(NetworkConfig.CAInfo ca) {
+        return ca.getUrl() + "|" + ca.getCAName();
+    }
+
+    @Override
+    public String toString() {
+        return "CARouter{replicas=" + replicas.values() + ", breakers=" + breakers + "}";
+    }
+}
@@ -0,0 +1,222 @@
+package com.blockchain.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.*;
+
+/**
+ * 证书到期索引
+ * <p>
+ * 扫描证书目录下每个用户的msp/signcerts/cert.pem和tls/server.crt, 按证书的notAfter放入优先队列,
+ * tls目录中记录的登记时签名配置文件随记录一起保存, 续期时使用;
+ * 最早到期的在队首. 用户证书重写后调用{@link #update}替换原记录, 被替换的旧记录留在队列中,
+ * 出队时按当前记录判断并丢弃
+ *
+ * @author shurenwei
+ */
+public class CertificateExpiryIndex {
+    private static final Logger logger = LoggerFactory.getLogger(CertificateExpiryIndex.class);
+
+    /** msp目录中的用户证书 */
+    public static final String MSP_CERT = "signcerts/cert.pem";
+    /** tls目录中的用户证书 */
+    public static final String TLS_CERT = "server.crt";
+    /** tls目录中登记时使用的签名配置文件名称 */
+    public static final String TLS_PROFILE = "profile";
+
+    /**
+     * 一个用户的一张证书
+     */
+    public static final class Entry {
+        private final String username;
+        private final String tree;
+        private final long notAfter;
+        private final String profile;
+        private long retryAt;
+
+        private Entry(String username, String tree, long notAfter, String profile) {
+            this.username = username;
+            this.tree = tree;
+            this.notAfter = notAfter;
+            this.profile = profile;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        /**
+         * @return msp或tls
+         */
+        public String getTree() {
+            return tree;
+        }
+
+        /**
+         * @return 到期时间(毫秒)
+         */
+        public long getNotAfter() {
+            return notAfter;
+        }
+
+        /**
+         * @return tls证书登记时使用的签名配置文件, msp证书或没有记录时为null
+         */
+        public String getProfile() {
+            return profile;
+        }
+
+        private String key() {
+            return username + "/" + tree;
+        }
+
+        @Override
+        public String toString() {
+            return key() + " notAfter=" + new Date(notAfter);
+        }
+    }
+
+    private final File root;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(Comparator.comparingLong(Entry::getNotAfter));
+    private final Map<String, Entry> current = new HashMap<>();
+
+    /**
+     * @param root 证书目录, 即artifacts.store.path
+     */
+    public CertificateExpiryIndex(File root) {
+        this.root = root;
+    }
+
+    /**
+     * 重新扫描整个证书目录, 替换原有索引
+     * @return 索引的证书数
+     */
+    public int scan() {
+        List<Entry> entries = new ArrayList<>();
+        File[] users = root.listFiles(File::isDirectory);
+        if (users != null) {
+            for (File user : users) {
+                // 跳过ArtifactWriter的临时目录
+                if (user.getName().startsWith(".")) {
+                    continue;
+                }
+                addIfPresent(entries, user, "msp", MSP_CERT);
+                addIfPresent(entries, user, "tls", TLS_CERT);
+            }
+        }
+        synchronized (this) {
+            queue.clear();
+            current.clear();
+            for (Entry entry : entries) {
+                current.put(entry.key(), entry);
+            }
+            queue.addAll(entries);
+        }
+        return entries.size();
+    }
+
+    private static void addIfPresent(List<Entry> entries, File user, String tree, String cert) {
+        File file = new File(new File(user, tree), cert);
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            File profile = new File(new File(user, tree), TLS_PROFILE);
+            entries.add(new Entry(user.getName(), tree, notAfter(Files.readAllBytes(file.toPath())),
+                    "tls".equals(tree) && profile.isFile() ? new String(Files.readAllBytes(profile.toPath()), StandardCharsets.UTF_8).trim() : null));
+        } catch (IOException | CertificateException e) {
+            logger.error("CertificateExpiryIndex | scan " + file, e.getMessage());
+        }
+    }
+
+    /**
+     * 用户证书重写后更新索引
+     * @param username 用户名
+     * @param tree msp或tls
+     * @param certPem 新证书
+     * @param profile tls证书登记时使用的签名配置文件, 没有时为null
+     */
+    public void update(String username, String tree, byte[] certPem, String profile) {
+        Entry entry;
+        try {
+            entry = new Entry(username, tree, notAfter(certPem), profile);
+        } catch (CertificateException e) {
+            logger.error("CertificateExpiryIndex | update ", e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            current.put(entry.key(), entry);
+            queue.add(entry);
+            // 旧记录过多时重建队列, 避免频繁重新登记时队列无限增长
+            if (queue.size() > 2 * current.size() + 64) {
+                queue.clear();
+                queue.addAll(current.values());
+            }
+        }
+    }
+
+    /**
+     * 取出在指定时间之前到期的证书, 按到期时间排序; 推迟重试且未到重试时间的留在队列中
+     * @param threshold 到期时间上限(毫秒)
+     * @param now 当前时间(毫秒)
+     * @return 待续期的证书
+     */
+    public synchronized List<Entry> pollDue(long threshold, long now) {
+        List<Entry> due = new ArrayList<>();
+        List<Entry> deferred = new ArrayList<>();
+        while (!queue.isEmpty() && queue.peek().notAfter <= threshold) {
+            Entry entry = queue.poll();
+            if (current.get(entry.key()) != entry) {
+                continue;
+            }
+            (entry.retryAt > now ? deferred : due).add(entry);
+        }
+        queue.addAll(deferred);
+        return due;
+    }
+
+    /**
+     * 续期失败的证书放回队列, 到指定时间后再取出
+     * @param entry {@link #pollDue}取出的证书
+     * @param retryAt 重试时间(毫秒)
+     */
+    public synchronized void retryLater(Entry entry, long retryAt) {
+        if (current.get(entry.key()) != entry) {
+            return;
+        }
+        entry.retryAt = retryAt;
+        queue.add(entry);
+    }
+
+    /**
+     * @return 最早到期的证书, 索引为空时为null
+     */
+    public synchronized Entry peek() {
+        while (!queue.isEmpty() && current.get(queue.peek().key()) != queue.peek()) {
+            queue.poll();
+        }
+        return queue.peek();
+    }
+
+    /**
+     * @return 索引的证书数
+     */
+    public synchronized int size() {
+        return current.size();
+    }
+
+    private static long notAfter(byte[] certPem) throws CertificateException {
+        X509Certificate certificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(certPem));
+        return certificate.getNotAfter().getTime();
+    }
+}
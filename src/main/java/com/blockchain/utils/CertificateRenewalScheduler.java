@@ -0,0 +1,109 @@
+package com.blockchain.utils;
+
+import com.blockchain.exception.MyException;
+import com.google.common.util.concurrent.RateLimiter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 证书自动续期
+ * <p>
+ * 启动时扫描证书目录建立{@link CertificateExpiryIndex}, 之后定期取出进入续期窗口(距到期不足windowMillis)的证书,
+ * 按到期先后依次续期. 续期在单个后台线程中串行进行, 并由RateLimiter限制每秒续期数,
+ * 大量证书同时到期时不会一起涌向CA; 续期失败的证书推迟retryMillis后再试
+ *
+ * @author shurenwei
+ */
+public class CertificateRenewalScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(CertificateRenewalScheduler.class);
+
+    /**
+     * 续期一张证书, 成功后证书目录已重写且索引已更新
+     */
+    public interface Renewer {
+        void renew(CertificateExpiryIndex.Entry entry) throws MyException;
+    }
+
+    private final CertificateExpiryIndex index;
+    private final long windowMillis;
+    private final long checkSeconds;
+    private final long retryMillis;
+    private final RateLimiter rateLimiter;
+    private final Renewer renewer;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param index 证书到期索引
+     * @param windowMillis 距到期不足该时长时续期(毫秒)
+     * @param checkSeconds 检查间隔(秒)
+     * @param ratePerSecond 每秒最多续期数
+     * @param retryMillis 续期失败后多久重试(毫秒)
+     * @param renewer 续期操作
+     */
+    public CertificateRenewalScheduler(CertificateExpiryIndex index, long windowMillis, long checkSeconds,
+                                       double ratePerSecond, long retryMillis, Renewer renewer) {
+        this.index = index;
+        this.windowMillis = windowMillis;
+        this.checkSeconds = checkSeconds;
+        this.retryMillis = retryMillis;
+        this.rateLimiter = RateLimiter.create(ratePerSecond);
+        this.renewer = renewer;
+    }
+
+    /**
+     * 扫描证书目录并开始定期检查, 重复调用无效
+     */
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cert-renewal");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.execute(() -> logger.info("CertificateRenewalScheduler | start indexed {} certificates", index.scan()));
+        executor.scheduleWithFixedDelay(this::renewDue, 0, checkSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 停止定期检查, 正在进行的续期完成后退出
+     */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    /**
+     * 续期当前进入续期窗口的所有证书
+     * @return 续期成功数
+     */
+    public synchronized int renewDue() {
+        long now = System.currentTimeMillis();
+        List<CertificateExpiryIndex.Entry> due = index.pollDue(now + windowMillis, now);
+        int renewed = 0;
+        for (CertificateExpiryIndex.Entry entry : due) {
+            rateLimiter.acquire();
+            try {
+                renewer.renew(entry);
+                renewed++;
+                logger.info("CertificateRenewalScheduler | renewDue 已续期 {}", entry);
+            } catch (MyException | RuntimeException e) {
+                logger.error("CertificateRenewalScheduler | renewDue " + entry + " ", e.getMessage());
+                index.retryLater(entry, System.currentTimeMillis() + retryMillis);
+            }
+        }
+        return renewed;
+    }
+
+    public CertificateExpiryIndex getIndex() {
+        return index;
+    }
+}
@@ -0,0 +1,120 @@
+package com.blockchain.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 熔断器
+ * <p>
+ * 按最近若干次调用的结果统计失败率, 次数足够且失败率达到阈值时打开, 打开期间直接拒绝调用;
+ * 打开时间到后进入半开状态, 只放行一次试探调用, 成功则关闭, 失败则重新打开
+ *
+ * @author shurenwei
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final boolean[] outcomes;
+    private final int minCalls;
+    private final double failureRatio;
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+    private int next;
+    private int recorded;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    /**
+     * @param window 统计最近多少次调用
+     * @param failureRatio 打开的失败率阈值, 0到1
+     * @param openSeconds 打开后多久进入半开状态(秒)
+     */
+    public CircuitBreaker(int window, double failureRatio, long openSeconds) {
+        this.outcomes = new boolean[Math.max(1, window)];
+        this.minCalls = Math.max(1, outcomes.length / 2);
+        this.failureRatio = failureRatio;
+        this.openNanos = TimeUnit.SECONDS.toNanos(openSeconds);
+    }
+
+    /**
+     * 调用前检查是否放行; 放行后必须调用{@link #record}
+     * @return 是否放行
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                trialInFlight = false;
+                // fall through
+            default:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+        }
+    }
+
+    /**
+     * 记录一次放行调用的结果
+     * @param success CA是否可用
+     * @return 是否因此打开
+     */
+    public synchronized boolean record(boolean success) {
+        if (state == State.HALF_OPEN) {
+            trialInFlight = false;
+            if (success) {
+                reset();
+                return false;
+            }
+            open();
+            return true;
+        }
+        if (state == State.OPEN) {
+            return false;
+        }
+        if (recorded == outcomes.length) {
+            failures -= outcomes[next] ? 0 : 1;
+        } else {
+            recorded++;
+        }
+        outcomes[next] = success;
+        failures += success ? 0 : 1;
+        next = (next + 1) % outcomes.length;
+        if (recorded >= minCalls && failures >= failureRatio * recorded) {
+            open();
+            return true;
+        }
+        return false;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+    }
+
+    private void reset() {
+        state = State.CLOSED;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" + state + ", failures=" + failures + "/" + recorded + "}";
+    }
+}
@@ -0,0 +1,111 @@
+package com.blockchain.utils;
+
+import com.blockchain.exception.MyException;
+import com.blockchain.model.HyperUser;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 已从CA取得、尚未写入磁盘的登记结果
+ * <p>
+ * 由{@link FabricHelper#enrollWithCA}在网络阶段生成, 交给{@link FabricHelper#storeEnrollment}写入证书文件.
+ * 合并的登记请求得到同一结果的跟随者副本, 证书文件只由第一个请求写入一次, 跟随者等待其写入结果
+ *
+ * @author shurenwei
+ */
+public final class EnrolledUser {
+
+    private final HyperUser user;
+    private final CAChain caChain;
+    private final byte[] adminCerts;
+    private final String profile;
+    private final CompletableFuture<Void> stored;
+    private final boolean follower;
+
+    EnrolledUser(HyperUser user, CAChain caChain, byte[] adminCerts, String profile) {
+        this(user, caChain, adminCerts, profile, new CompletableFuture<>(), false);
+    }
+
+    private EnrolledUser(HyperUser user, CAChain caChain, byte[] adminCerts, String profile, CompletableFuture<Void> stored, boolean follower) {
+        this.user = user;
+        this.caChain = caChain;
+        this.adminCerts = adminCerts;
+        this.profile = profile;
+        this.stored = stored;
+        this.follower = follower;
+    }
+
+    /**
+     * @return 合并请求得到的副本, 与本结果共用写入结果
+     */
+    EnrolledUser follower() {
+        return new EnrolledUser(user, caChain, adminCerts, profile, stored, true);
+    }
+
+    public HyperUser getUser() {
+        return user;
+    }
+
+    public CAChain getCaChain() {
+        return caChain;
+    }
+
+    /**
+     * @return 拼接后的Admin证书, TLS证书或导出时为null
+     */
+    public byte[] getAdminCerts() {
+        return adminCerts;
+    }
+
+    /**
+     * @return true写入TLS证书, false写入MSP目录
+     */
+    public boolean isTls() {
+        return profile != null;
+    }
+
+    /**
+     * @return 登记TLS证书使用的签名配置文件, 写入MSP目录时为null
+     */
+    public String getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return true时证书文件由合并的第一个请求写入, 不要再次写入
+     */
+    public boolean isFollower() {
+        return follower;
+    }
+
+    /**
+     * @return 第一个请求写完证书文件时完成, 写入失败时异常完成
+     */
+    public CompletableFuture<Void> getStored() {
+        return stored;
+    }
+
+    void stored(Throwable error) {
+        if (error == null) {
+            stored.complete(null);
+        } else {
+            stored.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * 等待第一个请求写完证书文件
+     * @throws MyException 写入失败
+     */
+    void awaitStored() throws MyException {
+        try {
+            stored.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof MyException) {
+                throw (MyException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -1,35 +1,39 @@
 package com.blockchain.utils;
 
 import com.blockchain.exception.MyException;
+import com.blockchain.metrics.FabricMetrics;
 import com.blockchain.model.Config;
 import com.blockchain.model.HyperUser;
 import com.blockchain.model.Store;
-import com.google.common.primitives.Bytes;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
 import org.bouncycastle.asn1.x509.*;
 import org.bouncycastle.util.io.pem.PemObject;
 import org.bouncycastle.util.io.pem.PemWriter;
 import org.hyperledger.fabric.sdk.Enrollment;
 import org.hyperledger.fabric.sdk.NetworkConfig;
-import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
-import org.hyperledger.fabric.sdk.exception.NetworkConfigurationException;
-import org.hyperledger.fabric.sdk.security.CryptoSuite;
 import org.hyperledger.fabric_ca.sdk.*;
 import org.hyperledger.fabric_ca.sdk.exception.EnrollmentException;
 import org.hyperledger.fabric_ca.sdk.exception.HFCACertificateException;
 import org.hyperledger.fabric_ca.sdk.exception.InfoException;
+import org.hyperledger.fabric_ca.sdk.exception.RegistrationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
-
-import static java.nio.charset.StandardCharsets.UTF_8;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 /**
  * @author shurenwei
@@ -43,7 +47,52 @@ public class FabricHelper {
 
     private static Store SAMPLE_STORE ;
 
-    private static NetworkConfig NETWORK_CONFIG;
+    private static final NetworkConfigHolder NETWORK = new NetworkConfigHolder(Config.getConfig().getNetworkConfigPath(),
+            Config.getConfig().isNetworkConfigWatch());
+
+    private static final HFCAClientPool CLIENT_POOL = new HFCAClientPool(Config.getConfig().getClientIdleTimeout());
+
+    private static final CARouter CA_ROUTER = new CARouter(new CARouter.Policy()
+            .ejectAfterFailures(Config.getConfig().getCAEjectAfterFailures())
+            .ejectSeconds(Config.getConfig().getCAEjectSeconds())
+            .probeSeconds(Config.getConfig().getCAProbeSeconds())
+            .maxAttempts(Config.getConfig().getCARetryMaxAttempts())
+            .backoff(Config.getConfig().getCARetryBackoff(), Config.getConfig().getCARetryMaxBackoff())
+            .deadlineMillis(Config.getConfig().getCADeadline())
+            .breaker(Config.getConfig().getCABreakerWindow(), Config.getConfig().getCABreakerFailureRatio(),
+                    Config.getConfig().getCABreakerOpenSeconds())
+            .hedgePercentile(Config.getConfig().getCAHedgePercentile())
+            .threads(Config.getConfig().getCACallThreads()),
+            ca -> getHFCAClient(NETWORK.get(), ca, null, null, true));
+
+    private static final CAInfoCache CA_INFO_CACHE = new CAInfoCache(Config.getConfig().getCAInfoTtl());
+
+    private static final AdminCertsCache ADMIN_CERTS_CACHE = new AdminCertsCache(Config.getConfig().getAdminCertsTtl());
+
+    /**
+     * 完全相同的并发登记请求只向CA发送一次
+     */
+    private static final SingleFlight<String, EnrolledUser> ENROLL_FLIGHTS = new SingleFlight<>("enroll");
+
+    /**
+     * 同一身份的不同登记请求依次执行, 不同身份按哈希分散到各自的锁
+     */
+    private static final Striped<Lock> ENROLL_LOCKS = Striped.lazyWeakLock(Config.getConfig().getEnrollLockStripes());
+
+    private static final BulkEnrollment BULK_ENROLLMENT = new BulkEnrollment(AsyncExecutors.network(), AsyncExecutors.file(),
+            Config.getConfig().getBulkCAParallelism(), Config.getConfig().getBulkMaxInFlight());
+
+    private static volatile KeyPairPool KEY_PAIR_POOL;
+
+    private static final ArtifactWriter ARTIFACT_WRITER = new ArtifactWriter(
+            ArtifactWriter.SyncPolicy.valueOf(Config.getConfig().getArtifactSyncPolicy().toUpperCase()),
+            Config.getConfig().isArtifactGroupCommit());
+    private static volatile CertificateRenewalScheduler CERT_RENEWAL;
+
+    /**
+     * tls目录中没有记录登记时的签名配置文件时, 续期TLS证书使用的签名配置文件
+     */
+    private static final String TLS_PROFILE = "tls";
     /**
      * 证书存放路径
      */
@@ -62,6 +111,10 @@ public class FabricHelper {
             }else{
                 ARTIFACTS_STORE_PATH = new File(path);
             }
+            ArtifactWriter.recover(ARTIFACTS_STORE_PATH);
+            if (Config.getConfig().isRenewalEnabled()) {
+                getCertificateRenewal().start();
+            }
         } catch (Exception e) {
             // if not there no worries just use defaults
             logger.error("Failed to load any configuration",e.getMessage());
@@ -74,79 +127,37 @@ public class FabricHelper {
      * @param certificate certificate info
      * @return is rootCA or not
      */
-    private static boolean isRootCA(X509Certificate certificate){
+    static boolean isRootCA(X509Certificate certificate){
         byte [] authorityKeyIdentifier = certificate.getExtensionValue(Extension.authorityKeyIdentifier.getId());
         byte [] subjectKeyIdentifier = certificate.getExtensionValue(Extension.subjectKeyIdentifier.getId());
         return authorityKeyIdentifier == null || Arrays.equals(authorityKeyIdentifier,subjectKeyIdentifier);
     }
 
     /**
-     * Store the CAChain in the CACerts folder of MSP (Membership Service Provider)
+     * Add the CAChain to the CACerts folder of MSP (Membership Service Provider)
      * The root cert in the chain goes into MSP 'cacerts' directory.
      * The others (if any) go into the MSP 'intermediatecerts' directory.
-     * @param mspDirStr cert store directoryy
-     * @param hfcaInfo caInfo
-     * @throws MyException
+     * @param msp msp tree
+     * @param caChain parsed caInfo
      */
-    private static void storeCaChain(String mspDirStr, HFCAInfo hfcaInfo) throws MyException {
-        Base64.Decoder b64dec = Base64.getDecoder();
-        File mspDir;
-        File caCertFile;
-        File intermediateCaCertFile;
-        CertificateFactory cf;
-        List<X509Certificate> certificates;
-        try {
-            mspDir = createFile(mspDirStr);
-            caCertFile = createFile(mspDir+"/cacerts/cert.pem");
-            intermediateCaCertFile = createFile(mspDir+"/intermediatecerts/cert.pem");
-            cf = CertificateFactory.getInstance("X.509");
-            certificates = (List<X509Certificate>) cf.generateCertificates(new ByteArrayInputStream(b64dec.decode(hfcaInfo.getCACertificateChain().getBytes(UTF_8))));
-            for (X509Certificate t : certificates) {
-                File tmp;
-                if (isRootCA(t)){
-                    tmp = caCertFile;
-                }else{
-                    tmp = intermediateCaCertFile;
-                }
-                try (PemWriter writer = new PemWriter(new FileWriter(tmp))){
-                    writer.writeObject(new PemObject("CERTIFICATE", t.getEncoded()));
-                }
-            }
-        } catch (IOException e) {
-            logger.error("FabricHelper | storeCaChain ",e.getMessage());
-            throw new MyException("创建文件异常");
-        } catch (CertificateException e) {
-            logger.error("FabricHelper | storeCaChain ",e.getMessage());
-            throw new MyException("生成证书异常");
-        } catch (Exception e) {
-            logger.error("FabricHelper | storeCaChain ",e.getMessage());
-            throw new MyException("写入文件异常");
+    private static void storeCaChain(ArtifactTree msp, CAChain caChain) {
+        if (caChain.getRootCertPem() != null) {
+            msp.add("cacerts/cert.pem", caChain.getRootCertPem());
+        }
+        if (caChain.getIntermediateCertPem() != null) {
+            msp.add("intermediatecerts/cert.pem", caChain.getIntermediateCertPem());
         }
-
     }
 
     /**
-     * Store the admincerts in the admincerts folder of MSP (Membership Service Provider)
+     * Add the admincerts to the admincerts folder of MSP (Membership Service Provider)
      * The admincerts goes into MSP 'admincerts' directory.
-     * @param mspDirStr cert store directory
-     * @param certificateResponse rr
-     * @throws MyException
+     * @param msp msp tree
+     * @param adminCerts admin certs concatenated by {@link AdminCertsCache#bundle}
      */
-    private static void storeAdminCerts(String mspDirStr,HFCACertificateResponse certificateResponse) throws MyException {
-        File mspDir;
-        try {
-            mspDir = createFile(mspDirStr);
-            if(certificateResponse != null){
-                File adminCertsFile = createFile(mspDir+"/admincerts/cert.pem");
-                byte[] adminCertsByte = new byte[0];
-                for (HFCACredential c : certificateResponse.getCerts()) {
-                    adminCertsByte = Bytes.concat(adminCertsByte,((HFCAX509Certificate)c).getPEM().getBytes());
-                }
-                writeFile(adminCertsFile,adminCertsByte);
-            }
-        } catch (IOException e) {
-            logger.error("FabricHelper | storeAdminCerts ",e.getMessage());
-            throw new MyException("创建文件异常");
+    private static void storeAdminCerts(ArtifactTree msp, byte[] adminCerts) {
+        if(adminCerts != null){
+            msp.add("admincerts/cert.pem", adminCerts);
         }
     }
 
@@ -158,26 +169,49 @@ public class FabricHelper {
      * @throws MyException
      */
     public static void constructMSP(HyperUser user, HFCAInfo hfcaInfo, HFCACertificateResponse certificateResponse) throws MyException {
-        File mspDir  ;
-        File keyFile  ;
-        File signCertsFile ;
         try {
-            mspDir = createFile(ARTIFACTS_STORE_PATH + "/" + user.getName()+"/msp");
-            keyFile = createFile(mspDir + "/keystore/user_ls");
-            signCertsFile = createFile(mspDir + "/signcerts/cert.pem");
-        } catch (IOException e) {
+            constructMSP(user, CAChain.parse(hfcaInfo), certificateResponse);
+        } catch (CertificateException e) {
             logger.error("FabricHelper | constructMSP ",e.getMessage());
-            throw new MyException("创建文件异常");
+            throw new MyException("生成证书异常");
         }
+    }
 
-        try (PemWriter writer = new PemWriter(new FileWriter(keyFile))) {
-            writer.writeObject(new PemObject("PRIVATE KEY", user.getEnrollment().getKey().getEncoded()));
+    /**
+     * 根据用户证书和已解析的CA链信息构造MSP结构, 整个目录原子替换
+     * @param user 用户信息
+     * @param caChain 证书颁发机构信息及证书链
+     * @param certificateResponse 证书信息(管理员)
+     * @throws MyException
+     */
+    public static void constructMSP(HyperUser user, CAChain caChain, HFCACertificateResponse certificateResponse) throws MyException {
+        try {
+            writeArtifacts(user, mspTree(user, caChain, certificateResponse));
         } catch (IOException e) {
+            logger.error("FabricHelper | constructMSP ",e.getMessage());
             throw new MyException("写入文件异常");
         }
-        writeFile(signCertsFile, user.getEnrollment().getCert().getBytes());
-        storeCaChain(mspDir.getAbsolutePath(),hfcaInfo);
-        storeAdminCerts(mspDir.getAbsolutePath(),certificateResponse);
+    }
+
+    /**
+     * 在内存中构造符合MSP规范的目录
+     * @param user 用户信息
+     * @param caChain 证书颁发机构信息及证书链
+     * @param certificateResponse 证书信息(管理员), 可以为null
+     * @return msp目录
+     * @throws IOException
+     */
+    public static ArtifactTree mspTree(HyperUser user, CAChain caChain, HFCACertificateResponse certificateResponse) throws IOException {
+        return mspTree(user, caChain, AdminCertsCache.bundle(certificateResponse));
+    }
+
+    private static ArtifactTree mspTree(HyperUser user, CAChain caChain, byte[] adminCerts) throws IOException {
+        ArtifactTree msp = new ArtifactTree("msp");
+        msp.add("keystore/user_ls", privateKeyPem(user));
+        msp.add("signcerts/cert.pem", user.getEnrollment().getCert().getBytes());
+        storeCaChain(msp, caChain);
+        storeAdminCerts(msp, adminCerts);
+        return msp;
     }
 
     /**
@@ -187,69 +221,98 @@ public class FabricHelper {
      * @throws IOException
      */
     public static void constructTLS(HyperUser user,HFCAInfo hfcaInfo) throws IOException {
-        File tlsDir = createFile(ARTIFACTS_STORE_PATH + "/" + user.getName()+"/tls");
-        File keyFile = createFile(tlsDir + "/server.key");
-        File signCertsFile = createFile(tlsDir + "/server.crt");
-        File caFile = createFile(tlsDir + "/ca.crt");
-
-        try (PemWriter writer = new PemWriter(new FileWriter(keyFile))) {
-            writer.writeObject(new PemObject("PRIVATE KEY", user.getEnrollment().getKey().getEncoded()));
-        }
+        writeArtifacts(user, tlsKeyPair(user).add("ca.crt", hfcaInfo.getCACertificateChain().getBytes()));
+    }
 
-        writeFile(signCertsFile,user.getEnrollment().getCert().getBytes());
-        writeFile(caFile,hfcaInfo.getCACertificateChain().getBytes());
+    /**
+     * 根据用户证书和已解析的CA链信息构造TLS结构, 整个目录原子替换
+     * @param user 用户信息
+     * @param caChain 证书颁发机构信息及证书链
+     * @throws IOException
+     */
+    public static void constructTLS(HyperUser user,CAChain caChain) throws IOException {
+        writeArtifacts(user, tlsTree(user, caChain));
+    }
 
+    /**
+     * 根据用户证书和已解析的CA链信息构造TLS结构, 并记录登记时的签名配置文件, 自动续期时按它重新登记
+     * @param user 用户信息
+     * @param caChain 证书颁发机构信息及证书链
+     * @param profile 用于颁发证书的签名配置文件的名称
+     * @throws IOException
+     */
+    public static void constructTLS(HyperUser user,CAChain caChain,String profile) throws IOException {
+        writeArtifacts(user, tlsTree(user, caChain).add(CertificateExpiryIndex.TLS_PROFILE, profile.getBytes(StandardCharsets.UTF_8)));
     }
 
     /**
-     * 写入数据到指定文件
-     * @param file 文件名
-     * @param bytes 字节数组
+     * 把证书目录原子写入用户目录, 记录耗时和字节数
+     * @param user 用户信息
+     * @param tree msp或tls目录
+     * @throws IOException
      */
-    private static void writeFile(File file,byte[] bytes) {
+    private static void writeArtifacts(HyperUser user, ArtifactTree tree) throws IOException {
+        Tags tags = FabricMetrics.caTags(user.getOrganization(), user.getCa(), null).and("tree", tree.getName());
+        Timer.Sample sample = FabricMetrics.start();
+        boolean written = false;
         try {
-            OutputStream out = new FileOutputStream(file);
-            out.write(bytes);
-            out.flush();
-            out.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            ARTIFACT_WRITER.write(new File(ARTIFACTS_STORE_PATH, user.getName()), tree);
+            written = true;
+        } finally {
+            FabricMetrics.stop(sample, FabricMetrics.ARTIFACTS_WRITE, tags, written);
+        }
+        FabricMetrics.artifacts(tree.getName(), FabricMetrics.caTags(user.getOrganization(), user.getCa(), null), tree.size());
+        CertificateRenewalScheduler renewal = CERT_RENEWAL;
+        byte[] cert = tree.get("tls".equals(tree.getName()) ? CertificateExpiryIndex.TLS_CERT : CertificateExpiryIndex.MSP_CERT);
+        if (renewal != null && cert != null) {
+            byte[] profile = tree.get(CertificateExpiryIndex.TLS_PROFILE);
+            renewal.getIndex().update(user.getName(), tree.getName(), cert,
+                    "tls".equals(tree.getName()) && profile != null ? new String(profile, StandardCharsets.UTF_8) : null);
         }
     }
 
     /**
-     * 创建文件
-     * @param fpath 文件路径
-     * @return
+     * 在内存中构造TLS目录
+     * @param user 用户信息
+     * @param caChain 证书颁发机构信息及证书链
+     * @return tls目录
      * @throws IOException
      */
-    private static File createFile(String fpath) throws IOException {
-        File f = new File(fpath);
-        if(!f.getParentFile().exists()){
-            f.getParentFile().mkdirs();
-        }
-        if(f.isFile() && !f.exists()){
-            f.createNewFile();
-        }
-        return f;
+    public static ArtifactTree tlsTree(HyperUser user,CAChain caChain) throws IOException {
+        return tlsKeyPair(user).add("ca.crt", caChain.getCACertificateChainBytes());
     }
-    private static NetworkConfig getNetworkConfig() throws MyException{
-        try {
-            if(NETWORK_CONFIG != null){
-                return NETWORK_CONFIG;
-            }else{
-//                NETWORK_CONFIG = NetworkConfig.fromYamlFile(new File("src/main/resources/network-config.yaml"));
-//                InputStream input = getClass().getResourceAsStream()
-                InputStream inputStream = NetworkConfig.class.getResourceAsStream("/network-config.yaml");
-                NETWORK_CONFIG =  NetworkConfig.fromYamlStream(inputStream);
-            }
-        } catch (InvalidArgumentException e) {
-            throw new MyException("加载yaml文件参数错误");
-        } catch (NetworkConfigurationException e) {
-            e.printStackTrace();
-            throw new MyException("网络配置错误");
+
+    private static ArtifactTree tlsKeyPair(HyperUser user) throws IOException {
+        return new ArtifactTree("tls")
+                .add("server.key", privateKeyPem(user))
+                .add("server.crt", user.getEnrollment().getCert().getBytes());
+    }
+
+    private static byte[] privateKeyPem(HyperUser user) throws IOException {
+        StringWriter out = new StringWriter();
+        try (PemWriter writer = new PemWriter(out)) {
+            writer.writeObject(new PemObject("PRIVATE KEY", user.getEnrollment().getKey().getEncoded()));
         }
-        return NETWORK_CONFIG;
+        return out.toString().getBytes();
+    }
+
+    /**
+     * 获取当前网络配置快照, 一个请求内应只取一次, 以免中途重新加载导致前后不一致
+     * @return 网络配置快照
+     * @throws MyException
+     */
+    public static NetworkSnapshot getNetwork() throws MyException {
+        return NETWORK.get();
+    }
+
+    /**
+     * 重新加载网络配置, 之后的请求使用新配置, 进行中的请求不受影响;
+     * CA客户端和Registrar的登记结果随之重新创建
+     * @return 新的网络配置快照
+     * @throws MyException 加载失败, 继续使用原配置
+     */
+    public static NetworkSnapshot reloadNetworkConfig() throws MyException {
+        return NETWORK.reload();
     }
 
     /**
@@ -261,32 +324,128 @@ public class FabricHelper {
      * @throws MyException
      */
     public static HFCAClient getHFCAClient(String orgName,String profile,boolean skipCA) throws MyException{
-        NetworkConfig networkConfig = getNetworkConfig();
+        return getHFCAClient(NETWORK.get(), orgName, profile, skipCA);
+    }
+
+    private static HFCAClient getHFCAClient(NetworkSnapshot network,String orgName,String profile,boolean skipCA) throws MyException{
+        NetworkConfig.CAInfo caInfo = CA_ROUTER.choose(network.route(orgName, profile).getReplicas());
+        return getHFCAClient(network, caInfo, orgName, profile, skipCA);
+    }
+
+    /**
+     * 获取指定CA副本的客户端实例
+     * @param network 请求所用的网络配置快照
+     * @param caInfo CA副本
+     * @param orgName 组织名称, 作为指标标签
+     * @param profile 用于颁发证书的签名配置文件的名称, 作为指标标签
+     * @param skipCA 是否跳过CA名称
+     * @return 客户端实例
+     * @throws MyException
+     */
+    private static HFCAClient getHFCAClient(NetworkSnapshot network,NetworkConfig.CAInfo caInfo,String orgName,String profile,boolean skipCA) throws MyException{
+        return CLIENT_POOL.get(network, caInfo, skipCA, cryptoSuite -> {
+            HFCAClient hfcaClient = null;
+            Timer.Sample sample = FabricMetrics.start();
+            try {
+                //单次尝试的超时只设置在这个客户端上
+                Properties properties = HFCAClientTimeouts.withDefaults(caInfo.getProperties(), CA_ROUTER.attemptTimeoutMillis());
+                if(skipCA || caInfo.getCAName() == null || caInfo.getCAName().isEmpty()) {
+                    hfcaClient = HFCAClient.createNewInstance(caInfo.getUrl(), properties);
+                }else{
+                    hfcaClient = HFCAClient.createNewInstance(caInfo.getCAName(), caInfo.getUrl(), properties);
+                }
+                hfcaClient.setCryptoSuite(cryptoSuite);
+                HFCAClientTimeouts.apply(hfcaClient, properties);
+            } catch (Exception e) {
+                hfcaClient = null;
+                e.printStackTrace();
+                logger.error("FabricHelper | getHFCAClient ",e.getMessage());
+                throw new MyException("获取CA客户端异常");
+            } finally {
+                FabricMetrics.stop(sample, FabricMetrics.CLIENT_CREATE, FabricMetrics.caTags(orgName, caInfo.getCAName(), profile),
+                        hfcaClient != null);
+            }
+            return hfcaClient;
+        });
+    }
 
-        NetworkConfig.OrgInfo orgInfo = networkConfig.getOrganizationInfo(orgName);
-        if(orgInfo == null){
-            throw new MyException("Organization Info not found!");
+    /**
+     * 获取CA客户端实例池, 用于查看复用统计
+     * @return 客户端实例池
+     */
+    public static HFCAClientPool getClientPool() {
+        return CLIENT_POOL;
+    }
+
+    /**
+     * 获取CA副本选择器, 用于查看各副本状态
+     * @return CA副本选择器
+     */
+    public static CARouter getCARouter() {
+        return CA_ROUTER;
+    }
+
+    /**
+     * 获取CA信息缓存, 用于证书链更新后主动失效
+     * @return CA信息缓存
+     */
+    public static CAInfoCache getCAInfoCache() {
+        return CA_INFO_CACHE;
+    }
+
+    /**
+     * 获取Admin证书缓存, Registrar证书在CA上发生变化时可调用其invalidate
+     * @return Admin证书缓存
+     */
+    public static AdminCertsCache getAdminCertsCache() {
+        return ADMIN_CERTS_CACHE;
+    }
+
+    /**
+     * 获取预生成密钥对池, 首次调用时创建; enrollment.keyPool.size为0时不使用
+     * @return 密钥对池, 未启用时为null
+     * @throws MyException
+     */
+    public static KeyPairPool getKeyPairPool() throws MyException {
+        int size = Config.getConfig().getKeyPoolSize();
+        if (size <= 0) {
+            return null;
         }
-        NetworkConfig.CAInfo caInfo;
-        if(profile != null){
-            caInfo = orgInfo.getCertificateAuthorities().get(1);
-        }else{
-            caInfo = orgInfo.getCertificateAuthorities().get(0);
+        if (KEY_PAIR_POOL == null) {
+            synchronized (FabricHelper.class) {
+                if (KEY_PAIR_POOL == null) {
+                    KEY_PAIR_POOL = new KeyPairPool(CLIENT_POOL.getCryptoSuite(), size, Config.getConfig().getKeyPoolThreads());
+                }
+            }
         }
-        HFCAClient hfcaClient ;
-        try {
-            if(skipCA) {
-                hfcaClient = HFCAClient.createNewInstance(caInfo.getUrl(), caInfo.getProperties());
-            }else{
-                hfcaClient = HFCAClient.createNewInstance(caInfo);
+        return KEY_PAIR_POOL;
+    }
+
+    /**
+     * 获取证书自动续期, 首次调用时创建; renewal.enabled为true时随本类加载启动
+     * @return 证书自动续期
+     */
+    public static CertificateRenewalScheduler getCertificateRenewal() {
+        if (CERT_RENEWAL == null) {
+            synchronized (FabricHelper.class) {
+                if (CERT_RENEWAL == null) {
+                    Config config = Config.getConfig();
+                    CERT_RENEWAL = new CertificateRenewalScheduler(new CertificateExpiryIndex(ARTIFACTS_STORE_PATH),
+                            TimeUnit.HOURS.toMillis(config.getRenewalWindowHours()), config.getRenewalCheckSeconds(),
+                            config.getRenewalRatePerSecond(), TimeUnit.MINUTES.toMillis(config.getRenewalRetryMinutes()),
+                            FabricHelper::renewCertificate);
+                }
             }
-            hfcaClient.setCryptoSuite(CryptoSuite.Factory.getCryptoSuite());
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.error("FabricHelper | getHFCAClient ",e.getMessage());
-            throw new MyException("获取CA客户端异常");
         }
-        return hfcaClient;
+        return CERT_RENEWAL;
+    }
+
+    /**
+     * 获取批量登记流水线, 所有批次共用每个CA的并发上限
+     * @return 批量登记流水线
+     */
+    public static BulkEnrollment getBulkEnrollment() {
+        return BULK_ENROLLMENT;
     }
 
     /**
@@ -297,17 +456,7 @@ public class FabricHelper {
      * @throws MyException
      */
     public static Collection<NetworkConfig.UserInfo> getRegistrar(String orgName, String profile) throws MyException{
-        NetworkConfig.OrgInfo orgInfo = getOrgInfo(orgName);
-        if(orgInfo == null){
-            throw new MyException("Organization Info not found!");
-        }
-        NetworkConfig.CAInfo caInfo;
-        if(profile != null){
-            caInfo = orgInfo.getCertificateAuthorities().get(1);
-        }else{
-            caInfo = orgInfo.getCertificateAuthorities().get(0);
-        }
-        return caInfo.getRegistrars();
+        return NETWORK.get().route(orgName, profile).getRegistrars();
     }
 
     /**
@@ -317,13 +466,7 @@ public class FabricHelper {
      * @throws MyException
      */
     public static NetworkConfig.OrgInfo getOrgInfo(String orgName) throws MyException{
-        NetworkConfig networkConfig = getNetworkConfig();
-
-        NetworkConfig.OrgInfo orgInfo = networkConfig.getOrganizationInfo(orgName);
-        if(orgInfo == null){
-            throw new MyException("Organization Info not found!");
-        }
-        return orgInfo;
+        return NETWORK.get().org(orgName);
     }
 
     /**
@@ -334,12 +477,16 @@ public class FabricHelper {
      * @return 用户
      */
     public static HyperUser getMember(String username,String orgName, String profile) throws MyException {
-        HFCAClient hfcaClient = getHFCAClient(orgName,profile,false);
+        return getMember(NETWORK.get(), username, orgName, profile);
+    }
+
+    private static HyperUser getMember(NetworkSnapshot network,String username,String orgName, String profile) throws MyException {
+        NetworkSnapshot.Route route = network.route(orgName, profile);
         HyperUser user;
         try{
-            user = getMemberFromMSP(username,orgName,profile);
+            user = getMemberFromMSP(route,username,orgName);
         }catch (MyException e){
-            user = SAMPLE_STORE.getMember(username,orgName,hfcaClient.getCAName());
+            user = SAMPLE_STORE.getMember(username,orgName,route.getCa().getCAName());
         }
         return user;
     }
@@ -353,15 +500,18 @@ public class FabricHelper {
      * @throws MyException
      */
     public static HyperUser getMemberFromMSP(String username,String orgName,String profile) throws MyException {
+        return getMemberFromMSP(NETWORK.get().route(orgName, profile), username, orgName);
+    }
+
+    private static HyperUser getMemberFromMSP(NetworkSnapshot.Route route,String username,String orgName) throws MyException {
         File fpath = new File(ARTIFACTS_STORE_PATH + "/"+username);
         if(!fpath.exists()){
             throw new MyException("用户"+username+"不存在");
         }
         String signcerts = ARTIFACTS_STORE_PATH+"/"+username+"/msp/signcerts/cert.pem";
         String keystore = ARTIFACTS_STORE_PATH+"/"+username+"/msp/keystore/user_ls";
-        HFCAClient hfcaClient = getHFCAClient(orgName,profile,false);
         try {
-            return SAMPLE_STORE.getMember(username,orgName,hfcaClient.getCAName(),getOrgInfo(orgName).getMspId(),new File(keystore),new File(signcerts));
+            return SAMPLE_STORE.getMember(username,orgName,route.getCa().getCAName(),route.getOrg().getMspId(),new File(keystore),new File(signcerts));
         } catch (Exception e) {
             logger.error("FabricHelper | getMemberFromMSP ",e.getMessage());
             throw new MyException("获取用户异常");
@@ -370,23 +520,108 @@ public class FabricHelper {
 
     /**
      * 导出用户证书
-     * @param username 用户名
-     * @param orgName 组织名称
-     * @param profile 用于颁发证书的签名配置文件的名称
+     * @param username
+     * @param orgName
+     * @param profile
      * @throws MyException
      */
     public static void exportUser(String username,String orgName,String profile) throws MyException {
-        HyperUser user = FabricHelper.getMember(username, orgName,profile);
-        HFCAClient hfcaClient = getHFCAClient(orgName,profile,false);
+        storeEnrollment(prepareExport(username, orgName, profile));
+    }
+
+    /**
+     * 导出用户证书到输出流, 不写磁盘
+     * @param username
+     * @param orgName
+     * @param profile
+     * @param out 输出流, 写完后不关闭
+     * @param format 归档格式
+     * @throws MyException
+     */
+    public static void exportUser(String username,String orgName,String profile,OutputStream out,ArtifactArchive.Format format) throws MyException {
+        com.blockchain.dto.ExportRequest request = new com.blockchain.dto.ExportRequest();
+        request.setEnrollmentID(username);
+        request.setOrgName(orgName);
+        request.setProfile(profile);
+        exportUsers(Collections.singletonList(request).iterator(), out, format);
+    }
+
+    /**
+     * 把多个用户的证书导出到同一个归档, 逐个构造逐个写入, 内存中只保留当前用户的证书.
+     * 全部用户写完才写入归档结尾; 中途失败时放弃归档, 已写出的内容是截断的, 接收方解压时会报错
+     * @param requests 导出请求, 按需读取
+     * @param out 输出流, 写完后不关闭
+     * @param format 归档格式
+     * @return 导出的用户数
+     * @throws MyException
+     */
+    public static int exportUsers(Iterator<com.blockchain.dto.ExportRequest> requests,OutputStream out,ArtifactArchive.Format format) throws MyException {
+        int count = 0;
+        ArtifactArchive archive = new ArtifactArchive(out, format);
+        boolean finished = false;
+        try {
+            while (requests.hasNext()) {
+                com.blockchain.dto.ExportRequest request = requests.next();
+                NetworkSnapshot network = NETWORK.get();
+                long deadline = CA_ROUTER.deadline();
+                EnrolledUser enrolled = prepareExport(network, request.getEnrollmentID(), request.getOrgName(), request.getProfile(), deadline);
+                HyperUser user = enrolled.getUser();
+                if (!user.isEnrolled()) {
+                    throw new MyException("用户" + request.getEnrollmentID() + "未登记");
+                }
+                byte[] adminCerts;
+                try {
+                    adminCerts = getAdminCerts(network, user, request.getOrgName(), request.getProfile(), deadline);
+                } catch (HFCACertificateException e) {
+                    logger.error("FabricHelper | exportUsers ",e.getMessage());
+                    throw new MyException("获取Admin证书异常");
+                }
+                archive.add(user.getName(), mspTree(user, enrolled.getCaChain(), adminCerts));
+                count++;
+            }
+            archive.close();
+            finished = true;
+        } catch (IOException e) {
+            logger.error("FabricHelper | exportUsers ",e.getMessage());
+            throw new MyException("导出证书异常");
+        } finally {
+            if (!finished) {
+                try {
+                    archive.abort();
+                } catch (IOException e) {
+                    logger.error("FabricHelper | exportUsers ",e.getMessage());
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 导出用户证书的网络阶段: 读取用户并获取CA证书链
+     * @param username
+     * @param orgName
+     * @param profile
+     * @return 待写入的用户证书
+     * @throws MyException
+     */
+    public static EnrolledUser prepareExport(String username,String orgName,String profile) throws MyException {
+        return prepareExport(NETWORK.get(), username, orgName, profile, CA_ROUTER.deadline());
+    }
+
+    private static EnrolledUser prepareExport(NetworkSnapshot network,String username,String orgName,String profile,long deadline) throws MyException {
+        HyperUser user = getMember(network, username, orgName,profile);
 
-        HFCAInfo hfcaInfo;
+        CAChain caChain;
         try {
-            hfcaInfo = hfcaClient.info();
+            caChain = CA_ROUTER.call("info", network.route(orgName, profile).getReplicas(), true, deadline,
+                    caInfo -> CA_INFO_CACHE.get(getHFCAClient(network, caInfo, orgName, profile, false), orgName, profile));
+        } catch (MyException e) {
+            throw e;
         } catch (Exception e) {
             logger.error("FabricHelper | exportUser",e.getMessage());
             throw new MyException("获取CA信息失败");
         }
-        constructMSP(user,hfcaInfo,null);
+        return new EnrolledUser(user, caChain, null, null);
     }
 
     /**
@@ -396,6 +631,22 @@ public class FabricHelper {
      * @throws MyException
      */
     public static boolean enroll(com.blockchain.dto.EnrollmentRequest enrollmentRequest) throws MyException {
+        EnrolledUser enrolled = enrollWithCA(enrollmentRequest);
+        if (enrolled == null) {
+            return false;
+        }
+        storeEnrollment(enrolled);
+        return true;
+    }
+
+    /**
+     * 登记用户的网络阶段: 向CA登记并获取CA证书链和Admin证书, 不写证书文件.
+     * 合并的相同请求得到跟随者结果, 调用方仍须对每个结果调用{@link #storeEnrollment}
+     * @param enrollmentRequest
+     * @return 登记结果, CA未返回证书时为null
+     * @throws MyException
+     */
+    public static EnrolledUser enrollWithCA(com.blockchain.dto.EnrollmentRequest enrollmentRequest) throws MyException {
         if(enrollmentRequest.getOrgName() == null || enrollmentRequest.getOrgName().isEmpty()){
             throw new MyException("orgName can not be null");
         }
@@ -405,39 +656,84 @@ public class FabricHelper {
         if(enrollmentRequest.getEnrollmentSecret() == null || enrollmentRequest.getEnrollmentSecret().isEmpty()){
             throw new MyException("enrollmentSecret can not be null");
         }
-        HyperUser user = getMember(enrollmentRequest.getEnrollmentID(), enrollmentRequest.getOrgName(), enrollmentRequest.getProfile());
+        //与Store中的用户一致: 同一组织下ecert和TLS CA的登记是两个身份
+        String identity = enrollmentRequest.getOrgName() + "|" + (enrollmentRequest.getProfile() != null) + "|" + enrollmentRequest.getEnrollmentID();
+        //只保存secret的哈希, 进行中的请求表中没有明文
+        String flight = identity + "|" + enrollmentRequest.getProfile() + "|"
+                + Hashing.sha256().hashString(enrollmentRequest.getEnrollmentSecret(), StandardCharsets.UTF_8);
+        return ENROLL_FLIGHTS.execute(flight, () -> {
+            Lock lock = ENROLL_LOCKS.get(identity);
+            if (!lock.tryLock()) {
+                FabricMetrics.contended("enroll");
+                lock.lock();
+            }
+            try {
+                return enrollIdentity(enrollmentRequest);
+            } finally {
+                lock.unlock();
+            }
+        }, EnrolledUser::follower);
+    }
+
+    /**
+     * 登记用户的网络阶段, 调用方持有该身份的锁: 之前的请求已登记时直接返回已登记, 不再请求CA
+     * @param enrollmentRequest 已校验的登记请求
+     * @return 登记结果, CA未返回证书时为null
+     * @throws MyException
+     */
+    private static EnrolledUser enrollIdentity(com.blockchain.dto.EnrollmentRequest enrollmentRequest) throws MyException {
+        NetworkSnapshot network = NETWORK.get();
+        HyperUser user = getMember(network, enrollmentRequest.getEnrollmentID(), enrollmentRequest.getOrgName(), enrollmentRequest.getProfile());
         if (user.isEnrolled()) {
             throw new MyException("用户" + enrollmentRequest.getEnrollmentID() + "已经登记");
         }
-        //创建caClient实例
-        HFCAClient ca = FabricHelper.getHFCAClient(enrollmentRequest.getOrgName(), enrollmentRequest.getProfile(), true);
-        HFCAInfo info;
+        String orgName = enrollmentRequest.getOrgName();
+        String profile = enrollmentRequest.getProfile();
+        List<NetworkConfig.CAInfo> replicas = network.route(orgName, profile).getReplicas();
+        long deadline = CA_ROUTER.deadline();
+        CAChain info;
         try {
             //获取CA信息
-            info = ca.info();
+            info = CA_ROUTER.call("info", replicas, true, deadline,
+                    caInfo -> CA_INFO_CACHE.get(getHFCAClient(network, caInfo, orgName, profile, true), orgName, profile));
             //登记新用户
             org.hyperledger.fabric_ca.sdk.EnrollmentRequest er = new org.hyperledger.fabric_ca.sdk.EnrollmentRequest();
             er.setProfile(enrollmentRequest.getProfile());
-            Enrollment enrollment = ca.enroll(enrollmentRequest.getEnrollmentID(), enrollmentRequest.getEnrollmentSecret(), er);
-            user.setEnrollment(enrollment);
-            if (enrollment != null) {
-                //创建符合MSP规范的证书或TLS证书
-                if (enrollmentRequest.getProfile() != null) {
-                    FabricHelper.constructTLS(user, info);
-                } else {
-                    //获取Admin证书
-                    HFCACertificateRequest hr = ca.newHFCACertificateRequest();
-                    hr.setEnrollmentID(((NetworkConfig.UserInfo) FabricHelper.getRegistrar(enrollmentRequest.getOrgName(), enrollmentRequest.getProfile()).toArray()[0]).getName());
-                    HFCACertificateResponse response = ca.getHFCACertificates(user, hr);
-                    FabricHelper.constructMSP(user, info, response);
+            //使用预生成的密钥对, CSR的CN须为登记ID, 由SDK用该密钥对签出
+            KeyPairPool keyPairPool = getKeyPairPool();
+            if (keyPairPool != null) {
+                er.setKeyPair(keyPairPool.take());
+            }
+            //密码登记不是幂等的(登记次数可能受限), 只在请求没有发出时换副本重试
+            Enrollment enrollment = CA_ROUTER.call("enroll", replicas, false, deadline, caInfo -> {
+                HFCAClient ca = getHFCAClient(network, caInfo, orgName, profile, true);
+                Enrollment result = null;
+                Timer.Sample sample = FabricMetrics.start();
+                try {
+                    result = ca.enroll(enrollmentRequest.getEnrollmentID(), enrollmentRequest.getEnrollmentSecret(), er);
+                    return result;
+                } finally {
+                    FabricMetrics.stop(sample, FabricMetrics.CA_ENROLL, FabricMetrics.caTags(orgName, ca.getCAName(), profile), result != null);
                 }
-                return true;
-            } else {
-                return false;
+            });
+            user.setEnrollment(enrollment);
+            if (enrollment == null) {
+                return null;
             }
+            if (enrollmentRequest.getProfile() != null) {
+                return new EnrolledUser(user, info, null, enrollmentRequest.getProfile());
+            }
+            //获取Admin证书
+            byte[] adminCerts = getAdminCerts(network, user, orgName, profile, deadline);
+            return new EnrolledUser(user, info, adminCerts, null);
+        } catch (MyException e) {
+            throw e;
         } catch (InfoException e) {
             logger.error("FabricHelper | enrollUser ", e.getMessage());
             throw new MyException("获取CA信息异常");
+        } catch (CertificateException e) {
+            logger.error("FabricHelper | enrollUser ", e.getMessage());
+            throw new MyException("生成证书异常");
         } catch (EnrollmentException e) {
             logger.error("FabricHelper | enrollUser ", e.getMessage());
             throw new MyException("用户登记异常");
@@ -450,4 +746,269 @@ public class FabricHelper {
         }
     }
 
+    /**
+     * 获取Registrar的证书, 作为MSP的admincerts; 优先使用缓存
+     * @param network 请求所用的网络配置快照
+     * @param user 发起请求的已登记用户
+     * @param orgName 组织名称
+     * @param profile 用于颁发证书的签名配置文件的名称
+     * @param deadline 截止时间, 见{@link CARouter#deadline()}
+     * @return 拼接后的Admin证书
+     */
+    private static byte[] getAdminCerts(NetworkSnapshot network, HyperUser user, String orgName, String profile, long deadline)
+            throws MyException, HFCACertificateException {
+        NetworkSnapshot.Route route = network.route(orgName, profile);
+        if (route.getRegistrars().isEmpty()) {
+            throw new MyException("Registrar not found!");
+        }
+        String registrar = route.getRegistrars().get(0).getName();
+        return ADMIN_CERTS_CACHE.get(network, route.getCa().getName(), registrar,
+                () -> fetchAdminCerts(network, user, orgName, profile, registrar, deadline));
+    }
+
+    private static HFCACertificateResponse fetchAdminCerts(NetworkSnapshot network, HyperUser user, String orgName, String profile,
+                                                           String registrar, long deadline) throws MyException, HFCACertificateException {
+        NetworkSnapshot.Route route = network.route(orgName, profile);
+        try {
+            return CA_ROUTER.call("certificates", route.getReplicas(), true, deadline, caInfo -> {
+                HFCAClient ca = getHFCAClient(network, caInfo, orgName, profile, true);
+                HFCACertificateRequest hr = ca.newHFCACertificateRequest();
+                hr.setEnrollmentID(registrar);
+                HFCACertificateResponse response = null;
+                Timer.Sample sample = FabricMetrics.start();
+                try {
+                    response = ca.getHFCACertificates(user, hr);
+                    return response;
+                } finally {
+                    FabricMetrics.stop(sample, FabricMetrics.CA_CERTIFICATES, FabricMetrics.caTags(orgName, ca.getCAName(), profile), response != null);
+                }
+            });
+        } catch (MyException | HFCACertificateException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new HFCACertificateException("获取Admin证书异常", e);
+        }
+    }
+
+    /**
+     * 登记用户的文件阶段: 创建符合MSP规范的证书或TLS证书; 跟随者结果不再写入, 等待第一个请求写完
+     * @param enrolled 登记结果
+     * @throws MyException
+     */
+    public static void storeEnrollment(EnrolledUser enrolled) throws MyException {
+        if (enrolled.isFollower()) {
+            enrolled.awaitStored();
+            return;
+        }
+        try {
+            if (enrolled.isTls()) {
+                FabricHelper.constructTLS(enrolled.getUser(), enrolled.getCaChain(), enrolled.getProfile());
+            } else {
+                writeArtifacts(enrolled.getUser(), mspTree(enrolled.getUser(), enrolled.getCaChain(), enrolled.getAdminCerts()));
+            }
+            enrolled.stored(null);
+        } catch (IOException e) {
+            logger.error("FabricHelper | storeEnrollment ", e.getMessage());
+            MyException error = new MyException("用户登记异常");
+            enrolled.stored(error);
+            throw error;
+        } catch (RuntimeException e) {
+            enrolled.stored(e);
+            throw e;
+        }
+    }
+
+    /**
+     * 续期用户证书: 用现有证书向CA重新登记, 原子重写msp或tls目录中的证书, 目录中其余文件保持不变.
+     * SDK的reenroll总是沿用原密钥对, 私钥不变
+     * @param username 用户名
+     * @param orgName 组织名称
+     * @param profile 用于颁发证书的签名配置文件的名称, 为null时续期msp证书, 否则续期tls证书
+     * @throws MyException
+     */
+    public static void reenroll(String username, String orgName, String profile) throws MyException {
+        reenroll(NETWORK.get(), username, orgName, profile);
+    }
+
+    private static void reenroll(NetworkSnapshot network, String username, String orgName, String profile) throws MyException {
+        NetworkSnapshot.Route route = network.route(orgName, profile);
+        boolean tls = profile != null;
+        String keyPath = tls ? "server.key" : "keystore/user_ls";
+        String certPath = tls ? CertificateExpiryIndex.TLS_CERT : CertificateExpiryIndex.MSP_CERT;
+        File dir = new File(new File(ARTIFACTS_STORE_PATH, username), tls ? "tls" : "msp");
+        if (!new File(dir, certPath).isFile()) {
+            throw new MyException("用户" + username + "不存在");
+        }
+        HyperUser user;
+        ArtifactTree tree;
+        try {
+            user = SAMPLE_STORE.getMember(username, orgName, route.getCa().getCAName(), route.getOrg().getMspId(),
+                    new File(dir, keyPath), new File(dir, certPath));
+            tree = ArtifactTree.read(dir);
+        } catch (Exception e) {
+            logger.error("FabricHelper | reenroll ", e.getMessage());
+            throw new MyException("获取用户异常");
+        }
+        Enrollment enrollment;
+        try {
+            org.hyperledger.fabric_ca.sdk.EnrollmentRequest er = new org.hyperledger.fabric_ca.sdk.EnrollmentRequest();
+            er.setProfile(profile);
+            //续期不计入登记次数, 重复续期只会多签发一张证书, 可以重试
+            enrollment = CA_ROUTER.call("reenroll", route.getReplicas(), true, CA_ROUTER.deadline(), caInfo -> {
+                HFCAClient ca = getHFCAClient(network, caInfo, orgName, profile, true);
+                Enrollment result = null;
+                Timer.Sample sample = FabricMetrics.start();
+                try {
+                    result = ca.reenroll(user, er);
+                    return result;
+                } finally {
+                    FabricMetrics.stop(sample, FabricMetrics.CA_REENROLL, FabricMetrics.caTags(orgName, ca.getCAName(), profile), result != null);
+                }
+            });
+        } catch (MyException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("FabricHelper | reenroll ", e.getMessage());
+            throw new MyException("证书续期异常");
+        }
+        if (enrollment == null) {
+            throw new MyException("证书续期异常");
+        }
+        try {
+            tree.add(certPath, enrollment.getCert().getBytes());
+            writeArtifacts(user, tree);
+        } catch (IOException e) {
+            logger.error("FabricHelper | reenroll ", e.getMessage());
+            throw new MyException("写入文件异常");
+        }
+        user.setEnrollment(enrollment);
+    }
+
+    /**
+     * 自动续期索引中的一张证书, 证书目录中没有组织信息, 按Store中已有的用户记录确定组织;
+     * TLS证书按登记时记录的签名配置文件续期, 没有记录的按{@link #TLS_PROFILE}
+     * @param entry 待续期的证书
+     * @throws MyException
+     */
+    private static void renewCertificate(CertificateExpiryIndex.Entry entry) throws MyException {
+        NetworkSnapshot network = NETWORK.get();
+        String profile = null;
+        if ("tls".equals(entry.getTree())) {
+            profile = entry.getProfile() != null ? entry.getProfile() : TLS_PROFILE;
+        }
+        for (NetworkConfig.OrgInfo org : network.getConfig().getOrganizationInfos()) {
+            NetworkSnapshot.Route route;
+            try {
+                route = network.route(org.getName(), profile);
+            } catch (MyException e) {
+                continue;
+            }
+            if (SAMPLE_STORE.hasMember(entry.getUsername(), org.getName(), route.getCa().getCAName())) {
+                reenroll(network, entry.getUsername(), org.getName(), profile);
+                return;
+            }
+        }
+        throw new MyException("用户" + entry.getUsername() + "所属组织未知");
+    }
+
+    /**
+     * 获取已登记的Registrar, 首次使用时向CA登记, 之后复用该登记结果直到网络配置重新加载
+     * @param network 请求所用的网络配置快照
+     * @param orgName 组织名称
+     * @param profile 用于颁发证书的签名配置文件的名称
+     * @param deadline 截止时间, 见{@link CARouter#deadline()}
+     * @return 已登记的Registrar
+     * @throws MyException
+     */
+    private static NetworkConfig.UserInfo getEnrolledRegistrar(NetworkSnapshot network, String orgName, String profile, long deadline) throws MyException {
+        NetworkSnapshot.Route route = network.route(orgName, profile);
+        List<NetworkConfig.UserInfo> registrars = route.getRegistrars();
+        if (registrars.isEmpty()) {
+            throw new MyException("Registrar not found!");
+        }
+        NetworkConfig.UserInfo registrar = registrars.get(0);
+        synchronized (registrar) {
+            if (registrar.getEnrollment() == null) {
+                try {
+                    registrar.setEnrollment(CA_ROUTER.call("enroll", route.getReplicas(), false, deadline, caInfo ->
+                            getHFCAClient(network, caInfo, orgName, profile, true).enroll(registrar.getName(), registrar.getEnrollSecret())));
+                    //Registrar新签发了证书, 缓存的Admin证书已不完整
+                    ADMIN_CERTS_CACHE.invalidate(route.getCa().getName(), registrar.getName());
+                } catch (MyException e) {
+                    throw e;
+                } catch (Exception e) {
+                    logger.error("FabricHelper | getEnrolledRegistrar ", e.getMessage());
+                    throw new MyException("Registrar登记异常");
+                }
+            }
+        }
+        return registrar;
+    }
+
+    /**
+     * 注册用户
+     * @param registrationRequest
+     * @return 登记Secret, 请求中未指定时由CA生成
+     * @throws MyException
+     */
+    public static String register(com.blockchain.dto.RegistrationRequest registrationRequest) throws MyException {
+        if(registrationRequest.getOrgName() == null || registrationRequest.getOrgName().isEmpty()){
+            throw new MyException("orgName can not be null");
+        }
+        if(registrationRequest.getEnrollmentID() == null || registrationRequest.getEnrollmentID().isEmpty()){
+            throw new MyException("enrollmentID can not be null");
+        }
+        if(registrationRequest.getAffiliation() == null || registrationRequest.getAffiliation().isEmpty()){
+            throw new MyException("affiliation can not be null");
+        }
+        NetworkSnapshot network = NETWORK.get();
+        String orgName = registrationRequest.getOrgName();
+        String profile = registrationRequest.getProfile();
+        long deadline = CA_ROUTER.deadline();
+        NetworkConfig.UserInfo registrar = getEnrolledRegistrar(network, orgName, profile, deadline);
+        try {
+            RegistrationRequest rr = new RegistrationRequest(registrationRequest.getEnrollmentID(), registrationRequest.getAffiliation());
+            rr.setType(registrationRequest.getType());
+            if (registrationRequest.getEnrollmentSecret() != null && !registrationRequest.getEnrollmentSecret().isEmpty()) {
+                rr.setSecret(registrationRequest.getEnrollmentSecret());
+            }
+            return CA_ROUTER.call("register", network.route(orgName, profile).getReplicas(), false, deadline, caInfo -> {
+                HFCAClient ca = getHFCAClient(network, caInfo, orgName, profile, true);
+                String secret = null;
+                Timer.Sample sample = FabricMetrics.start();
+                try {
+                    secret = ca.register(rr, registrar);
+                    return secret;
+                } finally {
+                    FabricMetrics.stop(sample, FabricMetrics.CA_REGISTER, FabricMetrics.caTags(orgName, ca.getCAName(), profile), secret != null);
+                }
+            });
+        } catch (MyException e) {
+            throw e;
+        } catch (RegistrationException e) {
+            logger.error("FabricHelper | register ", e.getMessage());
+            throw new MyException("用户注册异常");
+        } catch (Exception e) {
+            logger.error("FabricHelper | register ", e.getMessage());
+            throw new MyException("注册参数错误");
+        }
+    }
+
+    /**
+     * 注册并登记用户的网络阶段: 注册返回后立即登记, 注册得到的secret写回请求
+     * @param registrationRequest
+     * @return 登记结果, CA未返回证书时为null
+     * @throws MyException
+     */
+    public static EnrolledUser registerAndEnrollWithCA(com.blockchain.dto.RegistrationRequest registrationRequest) throws MyException {
+        String secret = register(registrationRequest);
+        registrationRequest.setEnrollmentSecret(secret);
+        com.blockchain.dto.EnrollmentRequest enrollmentRequest = new com.blockchain.dto.EnrollmentRequest();
+        enrollmentRequest.setOrgName(registrationRequest.getOrgName());
+        enrollmentRequest.setEnrollmentID(registrationRequest.getEnrollmentID());
+        enrollmentRequest.setEnrollmentSecret(secret);
+        enrollmentRequest.setProfile(registrationRequest.getProfile());
+        return enrollWithCA(enrollmentRequest);
+    }
+
 }
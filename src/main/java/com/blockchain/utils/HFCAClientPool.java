@@ -0,0 +1,186 @@
+package com.blockchain.utils;
+
+import com.blockchain.exception.MyException;
+import com.blockchain.metrics.FabricMetrics;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.hyperledger.fabric_ca.sdk.HFCAClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CA客户端实例池
+ * <p>
+ * 按(CA副本, skipCA)复用{@link HFCAClient}, 所有实例共用一个CryptoSuite;
+ * 空闲超过指定时间的实例会被回收, 网络配置重新加载后所有实例重新创建;
+ * 仍在使用旧配置快照的请求得到不放入池中的新实例, 不影响新配置的实例.
+ * 每个实例记录创建时的配置版本, 与池的版本不一致的实例不再返回, 清空池时并发放入的旧实例也不会被复用
+ *
+ * @author shurenwei
+ */
+public class HFCAClientPool {
+    private static final Logger logger = LoggerFactory.getLogger(HFCAClientPool.class);
+
+    /**
+     * 创建CA客户端
+     */
+    public interface ClientFactory {
+        HFCAClient create(CryptoSuite cryptoSuite) throws MyException;
+    }
+
+    private static final class Entry {
+        private final HFCAClient client;
+        private final long version;
+        private volatile long lastUsed = System.nanoTime();
+
+        private Entry(HFCAClient client, long version) {
+            this.client = client;
+            this.version = version;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> clients = new ConcurrentHashMap<>();
+    private final long idleNanos;
+    private volatile CryptoSuite cryptoSuite;
+    private volatile long version;
+
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    public HFCAClientPool(long idleSeconds) {
+        this.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hfca-client-pool");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1, idleSeconds / 2);
+        cleaner.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 获取CA客户端实例, 不存在时创建
+     * @param network 请求所用的网络配置快照, 比池中的新时清空池
+     * @param ca CA副本
+     * @param skipCA 是否跳过CA名称
+     * @param factory 创建客户端
+     * @return 客户端实例
+     * @throws MyException
+     */
+    public HFCAClient get(NetworkSnapshot network, NetworkConfig.CAInfo ca, boolean skipCA, ClientFactory factory) throws MyException {
+        long requested = network.getVersion();
+        if (requested != version) {
+            synchronized (this) {
+                if (requested > version) {
+                    evicted.addAndGet(clients.size());
+                    clients.clear();
+                    version = requested;
+                }
+            }
+            if (requested < version) {
+                FabricMetrics.cache("ca.client", false);
+                return factory.create(getCryptoSuite());
+            }
+        }
+        // 网络配置中每个CA的名称唯一
+        String key = ca.getName() + "|" + skipCA;
+        Entry entry = clients.get(key);
+        if (entry != null && entry.version == requested) {
+            hits.incrementAndGet();
+            FabricMetrics.cache("ca.client", true);
+            entry.lastUsed = System.nanoTime();
+            return entry.client;
+        }
+        FabricMetrics.cache("ca.client", false);
+        Entry fresh = new Entry(factory.create(getCryptoSuite()), requested);
+        while (true) {
+            entry = clients.putIfAbsent(key, fresh);
+            if (entry == null) {
+                created.incrementAndGet();
+                return fresh.client;
+            }
+            if (entry.version == requested) {
+                // 并发创建时以先放入的实例为准
+                hits.incrementAndGet();
+                return entry.client;
+            }
+            if (entry.version > requested) {
+                // 池已切换到更新的配置, 本实例只给这次请求使用
+                return fresh.client;
+            }
+            // 清空池时并发放入的旧配置实例
+            if (clients.replace(key, entry, fresh)) {
+                evicted.incrementAndGet();
+                created.incrementAndGet();
+                return fresh.client;
+            }
+        }
+    }
+
+    /**
+     * 清空池, 下次获取时重新创建
+     */
+    public void clear() {
+        evicted.addAndGet(clients.size());
+        clients.clear();
+    }
+
+    /**
+     * 获取所有实例共用的CryptoSuite
+     * @return CryptoSuite
+     * @throws MyException
+     */
+    public CryptoSuite getCryptoSuite() throws MyException {
+        if (cryptoSuite == null) {
+            synchronized (this) {
+                if (cryptoSuite == null) {
+                    try {
+                        cryptoSuite = CryptoSuite.Factory.getCryptoSuite();
+                    } catch (Exception e) {
+                        logger.error("HFCAClientPool | getCryptoSuite ", e.getMessage());
+                        throw new MyException("获取CA客户端异常");
+                    }
+                }
+            }
+        }
+        return cryptoSuite;
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Entry> e : clients.entrySet()) {
+            if (now - e.getValue().lastUsed > idleNanos && clients.remove(e.getKey(), e.getValue())) {
+                evicted.incrementAndGet();
+            }
+        }
+    }
+
+    public int size() {
+        return clients.size();
+    }
+
+    public long getCreated() {
+        return created.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("HFCAClientPool{size=%d, created=%d, hits=%d, evicted=%d}", size(), getCreated(), getHits(), getEvicted());
+    }
+}
@@ -0,0 +1,151 @@
+package com.blockchain.utils;
+
+import com.blockchain.model.Utils;
+import org.apache.http.HttpHost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+import org.hyperledger.fabric_ca.sdk.HFCAClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+/**
+ * CA客户端的单次尝试超时
+ * <p>
+ * fabric-ca SDK的连接及读取超时是进程级的系统属性, 只在第一次使用HFCAClient时读取一次.
+ * 这里按每个CA的Properties中的connectTimeout和socketTimeout(毫秒)给单个客户端的连接工厂设置超时,
+ * 不影响其他客户端; 没有配置的按{@link CARouter#attemptTimeoutMillis()}设置.
+ * SDK通过系统属性设置了读取超时时, 每个请求仍以系统属性为准
+ *
+ * @author shurenwei
+ */
+public final class HFCAClientTimeouts {
+    private static final Logger logger = LoggerFactory.getLogger(HFCAClientTimeouts.class);
+
+    /** 连接超时(毫秒)的属性名 */
+    public static final String CONNECT_TIMEOUT = "connectTimeout";
+    /** 读取超时(毫秒)的属性名 */
+    public static final String SOCKET_TIMEOUT = "socketTimeout";
+
+    private HFCAClientTimeouts() {
+    }
+
+    /**
+     * 复制CA的Properties, 没有配置超时的填入默认值
+     * @param properties 网络配置中CA的Properties, 可以为null
+     * @param timeoutMillis 默认的单次尝试超时(毫秒), 0为不设置
+     * @return 新的Properties
+     */
+    public static Properties withDefaults(Properties properties, long timeoutMillis) {
+        Properties copy = new Properties();
+        if (properties != null) {
+            copy.putAll(properties);
+        }
+        if (timeoutMillis > 0) {
+            String timeout = String.valueOf(Math.min(timeoutMillis, Integer.MAX_VALUE));
+            copy.putIfAbsent(CONNECT_TIMEOUT, timeout);
+            copy.putIfAbsent(SOCKET_TIMEOUT, timeout);
+        }
+        return copy;
+    }
+
+    /**
+     * 按properties中的超时设置客户端的连接工厂; 没有配置超时或设置失败时客户端保持不变
+     * @param client 新建的客户端, 尚未发出请求
+     * @param properties 创建客户端时使用的Properties
+     */
+    public static void apply(HFCAClient client, Properties properties) {
+        int connectTimeout = millis(properties, CONNECT_TIMEOUT);
+        int socketTimeout = millis(properties, SOCKET_TIMEOUT);
+        if (connectTimeout <= 0 && socketTimeout <= 0) {
+            return;
+        }
+        try {
+            // 先让SDK按pemBytes/pemFile等配置建立https的连接工厂, 再逐个包装
+            Method setUpSSL = HFCAClient.class.getDeclaredMethod("setUpSSL");
+            setUpSSL.setAccessible(true);
+            setUpSSL.invoke(client);
+            Field field = HFCAClient.class.getDeclaredField("registry");
+            field.setAccessible(true);
+            @SuppressWarnings("unchecked")
+            Registry<ConnectionSocketFactory> registry = (Registry<ConnectionSocketFactory>) field.get(client);
+            ConnectionSocketFactory http = registry == null ? PlainConnectionSocketFactory.getSocketFactory() : registry.lookup("http");
+            ConnectionSocketFactory https = registry == null ? SSLConnectionSocketFactory.getSocketFactory() : registry.lookup("https");
+            RegistryBuilder<ConnectionSocketFactory> builder = RegistryBuilder.create();
+            if (http != null) {
+                builder.register("http", new TimeoutSocketFactory(http, connectTimeout, socketTimeout));
+            }
+            if (https != null) {
+                builder.register("https", new TimeoutSocketFactory(https, connectTimeout, socketTimeout));
+            }
+            Utils.setField(client, "registry", builder.build());
+        } catch (Exception e) {
+            logger.error("HFCAClientTimeouts | apply ", e.getMessage());
+        }
+    }
+
+    private static int millis(Properties properties, String key) {
+        String value = properties == null ? null : properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            return 0;
+        }
+        try {
+            return (int) Math.min(Long.parseLong(value.trim()), Integer.MAX_VALUE);
+        } catch (NumberFormatException e) {
+            logger.error("HFCAClientTimeouts | " + key, e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * 建立连接时使用较短的连接超时, 连接建立后设置读取超时
+     */
+    private static final class TimeoutSocketFactory implements ConnectionSocketFactory {
+        private final ConnectionSocketFactory delegate;
+        private final int connectTimeout;
+        private final int socketTimeout;
+
+        private TimeoutSocketFactory(ConnectionSocketFactory delegate, int connectTimeout, int socketTimeout) {
+            this.delegate = delegate;
+            this.connectTimeout = connectTimeout;
+            this.socketTimeout = socketTimeout;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            Socket socket = delegate.createSocket(context);
+            if (socketTimeout > 0) {
+                // https握手也受读取超时限制
+                socket.setSoTimeout(socketTimeout);
+            }
+            return socket;
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            int timeout = connectTimeout;
+            if (this.connectTimeout > 0 && (timeout <= 0 || this.connectTimeout < timeout)) {
+                timeout = this.connectTimeout;
+            }
+            if (socket != null && socketTimeout > 0) {
+                socket.setSoTimeout(socketTimeout);
+            }
+            Socket connected = delegate.connectSocket(timeout, socket, host, remoteAddress, localAddress, context);
+            if (socketTimeout > 0) {
+                connected.setSoTimeout(socketTimeout);
+            }
+            return connected;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.blockchain.utils;
+
+import org.hyperledger.fabric.sdk.exception.CryptoException;
+import org.hyperledger.fabric.sdk.security.CryptoSuite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.KeyPair;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 预生成密钥对池
+ * <p>
+ * 后台线程按近期取用速率把池补充到目标水位: 目标水位为最近每秒取用数的指数平均乘以{@link #LEAD_SECONDS},
+ * 不低于容量的1/4, 不超过容量; 池为空时在调用线程生成, 不会阻塞登记
+ *
+ * @author shurenwei
+ */
+public class KeyPairPool {
+    private static final Logger logger = LoggerFactory.getLogger(KeyPairPool.class);
+
+    /**
+     * 水位按多少秒的取用量准备
+     */
+    private static final int LEAD_SECONDS = 2;
+    /**
+     * 取用速率的指数平均权重
+     */
+    private static final double ALPHA = 0.3;
+
+    private final CryptoSuite cryptoSuite;
+    private final int capacity;
+    private final ArrayBlockingQueue<KeyPair> pool;
+    private final Object signal = new Object();
+
+    private final AtomicLong taken = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong generated = new AtomicLong();
+
+    private volatile int target;
+    private double rate;
+    private long lastTaken;
+    private long lastSample = System.nanoTime();
+
+    /**
+     * @param cryptoSuite 生成密钥对, 需与CA客户端使用的一致
+     * @param capacity 池容量
+     * @param threads 补充线程数
+     */
+    public KeyPairPool(CryptoSuite cryptoSuite, int capacity, int threads) {
+        this.cryptoSuite = cryptoSuite;
+        this.capacity = capacity;
+        this.pool = new ArrayBlockingQueue<>(capacity);
+        this.target = minTarget();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::refill, "key-pair-pool-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * 取一个密钥对, 池为空时当场生成
+     * @return 未使用过的密钥对
+     * @throws CryptoException 生成失败
+     */
+    public KeyPair take() throws CryptoException {
+        taken.incrementAndGet();
+        KeyPair keyPair = pool.poll();
+        synchronized (signal) {
+            signal.notifyAll();
+        }
+        if (keyPair != null) {
+            hits.incrementAndGet();
+            return keyPair;
+        }
+        misses.incrementAndGet();
+        return cryptoSuite.keyGen();
+    }
+
+    private void refill() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                updateTarget();
+                if (pool.size() >= target) {
+                    synchronized (signal) {
+                        signal.wait(TimeUnit.SECONDS.toMillis(1));
+                    }
+                    continue;
+                }
+                if (pool.offer(cryptoSuite.keyGen())) {
+                    generated.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (CryptoException e) {
+                logger.error("KeyPairPool | refill ", e.getMessage());
+                try {
+                    Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 每秒按取用数更新一次目标水位
+     */
+    private synchronized void updateTarget() {
+        long now = System.nanoTime();
+        long elapsed = now - lastSample;
+        if (elapsed < TimeUnit.SECONDS.toNanos(1)) {
+            return;
+        }
+        long count = taken.get();
+        double perSecond = (count - lastTaken) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+        rate = ALPHA * perSecond + (1 - ALPHA) * rate;
+        lastTaken = count;
+        lastSample = now;
+        target = (int) Math.min(capacity, Math.max(minTarget(), Math.ceil(rate * LEAD_SECONDS)));
+    }
+
+    private int minTarget() {
+        return Math.max(1, capacity / 4);
+    }
+
+    public int size() {
+        return pool.size();
+    }
+
+    public int getTarget() {
+        return target;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("KeyPairPool{size=%d, target=%d, hits=%d, misses=%d, generated=%d}",
+                size(), getTarget(), getHits(), getMisses(), getGenerated());
+    }
+}
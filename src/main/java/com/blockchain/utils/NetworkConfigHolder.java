@@ -0,0 +1,148 @@
+package com.blockchain.utils;
+
+import com.blockchain.exception.MyException;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+import org.hyperledger.fabric.sdk.exception.InvalidArgumentException;
+import org.hyperledger.fabric.sdk.exception.NetworkConfigurationException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 当前网络配置
+ * <p>
+ * 持有最新的{@link NetworkSnapshot}, 首次使用时加载, 重新加载时整体替换;
+ * 已经取得快照的请求继续使用原快照直到结束. 加载失败时保留原快照.
+ * 配置来自文件且开启监听时, 文件修改(包括先写临时文件再改名)后自动重新加载
+ *
+ * @author shurenwei
+ */
+public class NetworkConfigHolder {
+    private static final Logger logger = LoggerFactory.getLogger(NetworkConfigHolder.class);
+
+    private static final String CLASSPATH_RESOURCE = "/network-config.yaml";
+    /** 编辑器保存时可能产生多个事件, 等待事件停止后再加载 */
+    private static final long SETTLE_MILLIS = 200;
+
+    private final String path;
+    private final boolean watch;
+    private final AtomicReference<NetworkSnapshot> current = new AtomicReference<>();
+    private long version;
+    private Thread watcher;
+
+    /**
+     * @param path 网络配置文件路径, 为null时使用classpath中的network-config.yaml
+     * @param watch 是否监听配置文件修改
+     */
+    public NetworkConfigHolder(String path, boolean watch) {
+        this.path = path;
+        this.watch = watch && path != null;
+    }
+
+    /**
+     * 获取当前快照, 首次调用时加载
+     * @return 网络配置快照
+     * @throws MyException 首次加载失败
+     */
+    public NetworkSnapshot get() throws MyException {
+        NetworkSnapshot snapshot = current.get();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (this) {
+            snapshot = current.get();
+            if (snapshot == null) {
+                snapshot = load();
+                current.set(snapshot);
+                startWatcher();
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * 重新读取网络配置并替换当前快照
+     * @return 新的快照
+     * @throws MyException 读取失败, 当前快照不变
+     */
+    public synchronized NetworkSnapshot reload() throws MyException {
+        NetworkSnapshot snapshot = load();
+        NetworkSnapshot previous = current.getAndSet(snapshot);
+        startWatcher();
+        logger.info("NetworkConfigHolder | reload {} -> {}", previous, snapshot);
+        return snapshot;
+    }
+
+    private NetworkSnapshot load() throws MyException {
+        NetworkConfig config;
+        try {
+            if (path != null) {
+                config = NetworkConfig.fromYamlFile(new File(path));
+            } else {
+                try (InputStream inputStream = NetworkConfig.class.getResourceAsStream(CLASSPATH_RESOURCE)) {
+                    config = NetworkConfig.fromYamlStream(inputStream);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("NetworkConfigHolder | load ", e.getMessage());
+            throw new MyException("读取网络配置文件异常");
+        } catch (InvalidArgumentException e) {
+            logger.error("NetworkConfigHolder | load ", e.getMessage());
+            throw new MyException("加载yaml文件参数错误");
+        } catch (NetworkConfigurationException | RuntimeException e) {
+            // yaml格式错误时抛出的是非受检异常
+            logger.error("NetworkConfigHolder | load ", e.getMessage());
+            throw new MyException("网络配置错误");
+        }
+        return new NetworkSnapshot(config, ++version, path != null ? path : "classpath:" + CLASSPATH_RESOURCE);
+    }
+
+    private void startWatcher() {
+        if (!watch || watcher != null) {
+            return;
+        }
+        Path file = Paths.get(path).toAbsolutePath();
+        WatchService service;
+        try {
+            service = file.getFileSystem().newWatchService();
+            file.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            logger.error("NetworkConfigHolder | startWatcher ", e.getMessage());
+            return;
+        }
+        watcher = new Thread(() -> watch(service, file), "network-config-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void watch(WatchService service, Path file) {
+        Path name = file.getFileName();
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                boolean changed = false;
+                do {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed |= name.equals(event.context());
+                    }
+                    key.reset();
+                } while ((key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                if (changed) {
+                    try {
+                        reload();
+                    } catch (MyException e) {
+                        logger.error("NetworkConfigHolder | watch 重新加载失败, 继续使用原配置 ", e.getMessage());
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.blockchain.utils;
+
+import com.blockchain.exception.MyException;
+import org.hyperledger.fabric.sdk.NetworkConfig;
+
+import java.util.*;
+
+/**
+ * 网络配置快照
+ * <p>
+ * 加载后不再修改, 按组织以及(组织, 是否使用TLS CA)预先建好查找表, 请求时不再遍历网络配置.
+ * 组织下caName相同的CA视为同一CA的多个副本, 按首次出现的顺序分组;
+ * CA选择与原有规则一致: 未指定profile时使用第一组CA, 指定profile时使用第二组CA(TLS CA),
+ * 组内副本由{@link CARouter}选择.
+ * 每次重新加载生成新的快照和新的{@link NetworkConfig.UserInfo}, Registrar的登记结果随之重置
+ *
+ * @author shurenwei
+ */
+public final class NetworkSnapshot {
+
+    /**
+     * 一个组织下选定的CA: 同一caName的所有副本及Registrar
+     */
+    public static final class Route {
+        private final NetworkConfig.OrgInfo org;
+        private final List<NetworkConfig.CAInfo> replicas;
+        private final List<NetworkConfig.UserInfo> registrars;
+
+        private Route(NetworkConfig.OrgInfo org, List<NetworkConfig.CAInfo> replicas) {
+            this.org = org;
+            this.replicas = Collections.unmodifiableList(replicas);
+            Collection<NetworkConfig.UserInfo> users = replicas.get(0).getRegistrars();
+            this.registrars = users == null ? Collections.emptyList() : Collections.unmodifiableList(new ArrayList<>(users));
+        }
+
+        public NetworkConfig.OrgInfo getOrg() {
+            return org;
+        }
+
+        /**
+         * @return 第一个副本
+         */
+        public NetworkConfig.CAInfo getCa() {
+            return replicas.get(0);
+        }
+
+        /**
+         * @return 所有副本, 按网络配置中的顺序
+         */
+        public List<NetworkConfig.CAInfo> getReplicas() {
+            return replicas;
+        }
+
+        /**
+         * 副本共用同一个数据库, 在任一副本登记的Registrar在其它副本同样有效
+         * @return 第一个副本的Registrar
+         */
+        public List<NetworkConfig.UserInfo> getRegistrars() {
+            return registrars;
+        }
+    }
+
+    private final NetworkConfig config;
+    private final long version;
+    private final String source;
+    private final Map<String, NetworkConfig.OrgInfo> orgs;
+    private final Map<String, Route> routes;
+
+    /**
+     * @param config 已解析的网络配置, 之后不应再修改
+     * @param version 版本号, 每次加载递增
+     * @param source 配置来源, 文件路径或classpath资源
+     */
+    public NetworkSnapshot(NetworkConfig config, long version, String source) {
+        this.config = config;
+        this.version = version;
+        this.source = source;
+        Map<String, NetworkConfig.OrgInfo> orgs = new HashMap<>();
+        Map<String, Route> routes = new HashMap<>();
+        for (NetworkConfig.OrgInfo org : config.getOrganizationInfos()) {
+            orgs.put(org.getName(), org);
+            List<List<NetworkConfig.CAInfo>> groups = groupReplicas(org.getCertificateAuthorities());
+            if (groups.size() > 0) {
+                routes.put(key(org.getName(), null), new Route(org, groups.get(0)));
+            }
+            if (groups.size() > 1) {
+                routes.put(key(org.getName(), ""), new Route(org, groups.get(1)));
+            }
+        }
+        this.orgs = Collections.unmodifiableMap(orgs);
+        this.routes = Collections.unmodifiableMap(routes);
+    }
+
+    /**
+     * 获取组织信息
+     * @param orgName 组织名称
+     * @return 组织
+     * @throws MyException 组织不存在
+     */
+    public NetworkConfig.OrgInfo org(String orgName) throws MyException {
+        NetworkConfig.OrgInfo org = orgName == null ? null : orgs.get(orgName);
+        if (org == null) {
+            throw new MyException("Organization Info not found!");
+        }
+        return org;
+    }
+
+    /**
+     * 获取组织下用于登记的CA
+     * @param orgName 组织名称
+     * @param profile 用于颁发证书的签名配置文件的名称
+     * @return CA及其Registrar
+     * @throws MyException 组织或CA不存在
+     */
+    public Route route(String orgName, String profile) throws MyException {
+        Route route = orgName == null ? null : routes.get(key(orgName, profile));
+        if (route == null) {
+            org(orgName);
+            throw new MyException("CA Info not found!");
+        }
+        return route;
+    }
+
+    public NetworkConfig getConfig() {
+        return config;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * 按caName分组, 未配置caName的CA单独成组
+     */
+    private static List<List<NetworkConfig.CAInfo>> groupReplicas(List<NetworkConfig.CAInfo> cas) {
+        Map<String, List<NetworkConfig.CAInfo>> groups = new LinkedHashMap<>();
+        for (NetworkConfig.CAInfo ca : cas) {
+            String caName = ca.getCAName() == null || ca.getCAName().isEmpty() ? "name:" + ca.getName() : ca.getCAName();
+            groups.computeIfAbsent(caName, k -> new ArrayList<>()).add(ca);
+        }
+        return new ArrayList<>(groups.values());
+    }
+
+    private static String key(String orgName, String profile) {
+        return orgName + "|" + (profile != null);
+    }
+
+    @Override
+    public String toString() {
+        return "NetworkSnapshot{version=" + version + ", source=" + source + ", orgs=" + orgs.keySet() + "}";
+    }
+}
@@ -0,0 +1,99 @@
+package com.blockchain.utils;
+
+import com.blockchain.exception.MyException;
+import com.blockchain.metrics.FabricMetrics;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.UnaryOperator;
+
+/**
+ * 相同请求合并执行
+ * <p>
+ * 同一key的任务同时只执行一次: 第一个请求在自己的线程中执行, 执行期间到达的相同请求等待并共享其结果或异常,
+ * 不再重复调用CA. 任务结束后立即移除, 之后的请求重新执行. 合并的请求数按操作名记录
+ *
+ * @author shurenwei
+ */
+public class SingleFlight<K, V> {
+
+    private final String op;
+    private final ConcurrentHashMap<K, CompletableFuture<V>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * @param op 操作名, 作为指标标签
+     */
+    public SingleFlight(String op) {
+        this.op = op;
+    }
+
+    /**
+     * 执行任务, 相同key的任务正在执行时等待其结果
+     * @param key 请求标识, 相同key的请求应当完全等价
+     * @param task 任务
+     * @return 任务结果
+     * @throws MyException 任务抛出的异常, 合并的请求得到同一异常
+     */
+    public V execute(K key, AsyncExecutors.Task<V> task) throws MyException {
+        return execute(key, task, UnaryOperator.identity());
+    }
+
+    /**
+     * 执行任务, 相同key的任务正在执行时等待其结果, 并把结果转换后返回
+     * @param key 请求标识, 相同key的请求应当完全等价
+     * @param task 任务
+     * @param shared 把第一个请求的结果转换为合并请求得到的结果, 如标记为不必重复后续处理; 结果为null时不调用
+     * @return 任务结果
+     * @throws MyException 任务抛出的异常, 合并的请求得到同一异常
+     */
+    public V execute(K key, AsyncExecutors.Task<V> task, UnaryOperator<V> shared) throws MyException {
+        CompletableFuture<V> call = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = calls.putIfAbsent(key, call);
+        if (inFlight != null) {
+            FabricMetrics.coalesced(op);
+            V result = await(inFlight);
+            return result == null ? null : shared.apply(result);
+        }
+        try {
+            V result = task.call();
+            call.complete(result);
+            return result;
+        } catch (MyException | RuntimeException | Error e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            calls.remove(key, call);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> call) throws MyException {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MyException("等待请求结果被中断");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MyException) {
+                throw (MyException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * @return 正在执行的任务数
+     */
+    public int inFlight() {
+        return calls.size();
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight{op=" + op + ", inFlight=" + calls.size() + "}";
+    }
+}